@@ -0,0 +1,480 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * BTreeBulkLoader builds a BTreeFile from a stream of tuples in any order,
+ * bottom-up, without going through insertTuple. Tuples are sorted on the key
+ * field with an external sort: runs of at most runSize tuples are sorted in
+ * memory and spilled to temporary files, then merged. Once the number of tuples
+ * is known the shape of the tree is fixed, so every page is written once, in
+ * page number order, with its parent and sibling pointers already set: first
+ * the leaves, then each level of internal pages, the root last.
+ * <p>
+ * The pages are written through the channel of the BTreeFile, a batch of them
+ * per write call, and do not go through the buffer pool; nothing is locked or
+ * logged. The file must be empty, in the catalog, and not used by anyone else
+ * until finish returns.
+ * <p>
+ * Usage:
+ * <pre>
+ * BTreeBulkLoader loader = new BTreeBulkLoader(bf).setFillFactor(0.9);
+ * loader.addAll(heapFile.iterator(tid));
+ * loader.finish();
+ * </pre>
+ */
+public class BTreeBulkLoader {
+
+	/** The default number of tuples sorted in memory at a time. */
+	public static final int DEFAULT_RUN_SIZE = 100000;
+
+	/** The largest number of runs merged at once, more take several passes. */
+	public static final int MERGE_FAN_IN = 64;
+
+	/** The number of pages written with one write call. */
+	public static final int WRITE_BATCH = 64;
+
+	private final BTreeFile bf;
+	private final TupleDesc td;
+	private final int keyField;
+	private final BTreeFileEncoder.TupleComparator comparator;
+	private double fillFactor = 1.0;
+	private int runSize = DEFAULT_RUN_SIZE;
+
+	// the tuples of the current run, and the runs spilled so far
+	private ArrayList<Tuple> run = new ArrayList<Tuple>();
+	private final ArrayList<File> runs = new ArrayList<File>();
+	private long count = 0;
+	private boolean finished = false;
+
+	/**
+	 * @param bf - the BTreeFile to load, its file must be empty
+	 */
+	public BTreeBulkLoader(BTreeFile bf) {
+		this.bf = bf;
+		this.td = bf.getTupleDesc();
+		this.keyField = bf.keyField();
+		this.comparator = new BTreeFileEncoder.TupleComparator(keyField);
+	}
+
+	/**
+	 * Set how full the pages are filled, 1.0 for full pages, which is best for
+	 * tables that are only read. Lower values leave room for later inserts
+	 * before pages split. No page is filled less than half, except the root.
+	 *
+	 * @param fillFactor - a fraction between 0.5 and 1.0
+	 * @return this loader
+	 */
+	public BTreeBulkLoader setFillFactor(double fillFactor) {
+		if(fillFactor < 0.5 || fillFactor > 1.0) {
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1.0: " + fillFactor);
+		}
+		this.fillFactor = fillFactor;
+		return this;
+	}
+
+	/**
+	 * Set the number of tuples sorted in memory at a time
+	 *
+	 * @return this loader
+	 */
+	public BTreeBulkLoader setRunSize(int runSize) {
+		if(runSize < 1) {
+			throw new IllegalArgumentException("run size must be positive: " + runSize);
+		}
+		this.runSize = runSize;
+		return this;
+	}
+
+	/**
+	 * Add a tuple, in any order. It must match the TupleDesc of the file.
+	 */
+	public void add(Tuple t) throws IOException {
+		if(finished) {
+			throw new IllegalStateException("bulk load already finished");
+		}
+		run.add(t);
+		count++;
+		if(run.size() >= runSize) {
+			spill();
+		}
+	}
+
+	/**
+	 * Add all the tuples of an iterator, which is opened and closed here
+	 */
+	public void addAll(DbFileIterator it) throws IOException, DbException, TransactionAbortedException {
+		it.open();
+		try {
+			while(it.hasNext()) {
+				add(it.next());
+			}
+		}
+		finally {
+			it.close();
+		}
+	}
+
+	/**
+	 * Sort the tuples of the current run and write them to a temporary file
+	 */
+	private void spill() throws IOException {
+		Collections.sort(run, comparator);
+		File f = File.createTempFile("btreeRun", ".dat");
+		f.deleteOnExit();
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+		try {
+			for(Tuple t : run) {
+				for(int i = 0; i < td.numFields(); i++) {
+					t.getField(i).serialize(dos);
+				}
+			}
+		}
+		finally {
+			dos.close();
+		}
+		runs.add(f);
+		run = new ArrayList<Tuple>();
+	}
+
+	/**
+	 * Sort the tuples and write the tree.
+	 *
+	 * @return the number of tuples loaded
+	 * @throws DbException if the file is not empty
+	 */
+	public long finish() throws IOException, DbException {
+		if(finished) {
+			throw new IllegalStateException("bulk load already finished");
+		}
+		finished = true;
+		if(bf.getFile().length() > 0) {
+			throw new DbException("bulk load into a file that is not empty: " + bf.getFile());
+		}
+
+		Iterator<Tuple> sorted;
+		if(runs.isEmpty()) {
+			// everything fit in memory
+			Collections.sort(run, comparator);
+			sorted = run.iterator();
+		}
+		else {
+			if(!run.isEmpty()) {
+				spill();
+			}
+			run = null;
+			while(runs.size() > MERGE_FAN_IN) {
+				mergePass();
+			}
+			sorted = new Merger(runs);
+		}
+
+		try {
+			write(sorted);
+		}
+		finally {
+			if(sorted instanceof Merger) {
+				((Merger) sorted).close();
+			}
+			for(File f : runs) {
+				f.delete();
+			}
+			runs.clear();
+			run = null;
+		}
+		return count;
+	}
+
+	/**
+	 * Merge the runs in groups of MERGE_FAN_IN into longer runs
+	 */
+	private void mergePass() throws IOException {
+		ArrayList<File> merged = new ArrayList<File>();
+		for(int i = 0; i < runs.size(); i += MERGE_FAN_IN) {
+			List<File> group = runs.subList(i, Math.min(i + MERGE_FAN_IN, runs.size()));
+			File f = File.createTempFile("btreeRun", ".dat");
+			f.deleteOnExit();
+			Merger m = new Merger(group);
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+			try {
+				while(m.hasNext()) {
+					Tuple t = m.next();
+					for(int j = 0; j < td.numFields(); j++) {
+						t.getField(j).serialize(dos);
+					}
+				}
+			}
+			finally {
+				dos.close();
+				m.close();
+			}
+			for(File g : group) {
+				g.delete();
+			}
+			merged.add(f);
+		}
+		runs.clear();
+		runs.addAll(merged);
+	}
+
+	/**
+	 * Reads the tuples of one sorted run file
+	 */
+	private class RunReader {
+		private final DataInputStream dis;
+		private long left;
+		Tuple head;
+
+		RunReader(File f) throws IOException {
+			this.dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+			this.left = f.length() / td.getSize();
+		}
+
+		/**
+		 * @return false at the end of the run
+		 */
+		boolean advance() throws IOException {
+			if(left == 0) {
+				head = null;
+				return false;
+			}
+			left--;
+			Tuple t = new Tuple(td);
+			try {
+				for(int i = 0; i < td.numFields(); i++) {
+					t.setField(i, td.getFieldType(i).parse(dis));
+				}
+			} catch (ParseException e) {
+				throw new IOException("corrupt sort run", e);
+			}
+			head = t;
+			return true;
+		}
+
+		void close() throws IOException {
+			dis.close();
+		}
+	}
+
+	/**
+	 * Merges sorted runs into one sorted stream of tuples
+	 */
+	private class Merger implements Iterator<Tuple> {
+		private final ArrayList<RunReader> readers = new ArrayList<RunReader>();
+		private final PriorityQueue<RunReader> heads;
+
+		Merger(List<File> files) throws IOException {
+			heads = new PriorityQueue<RunReader>(Math.max(1, files.size()), new Comparator<RunReader>() {
+				public int compare(RunReader a, RunReader b) {
+					return comparator.compare(a.head, b.head);
+				}
+			});
+			for(File f : files) {
+				RunReader r = new RunReader(f);
+				readers.add(r);
+				if(r.advance()) {
+					heads.add(r);
+				}
+			}
+		}
+
+		public boolean hasNext() {
+			return !heads.isEmpty();
+		}
+
+		public Tuple next() {
+			RunReader r = heads.poll();
+			if(r == null) {
+				throw new NoSuchElementException();
+			}
+			Tuple t = r.head;
+			try {
+				if(r.advance()) {
+					heads.add(r);
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			return t;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		void close() throws IOException {
+			for(RunReader r : readers) {
+				r.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of pages to spread items over, with at most perPage
+	 * items per page, but at least minPerPage on every page if there is more
+	 * than one
+	 */
+	static int numPages(long items, int perPage, int minPerPage) {
+		long pages = Math.max(1, (items + perPage - 1) / perPage);
+		if(pages > 1 && items / pages < minPerPage) {
+			pages = Math.max(1, items / minPerPage);
+		}
+		return (int) pages;
+	}
+
+	/**
+	 * @return the number of items of page i, when items are spread evenly over pages
+	 */
+	static int share(long items, int pages, int i) {
+		return (int) (items / pages) + (i < items % pages ? 1 : 0);
+	}
+
+	/**
+	 * @return the page of item i, when items are spread evenly over pages
+	 */
+	static int pageOf(long items, int pages, long i) {
+		long small = items / pages;
+		long bigPages = items % pages;
+		long inBig = bigPages * (small + 1);
+		if(i < inBig) {
+			return (int) (i / (small + 1));
+		}
+		return (int) (bigPages + (i - inBig) / small);
+	}
+
+	/**
+	 * Write the tree, the tuples come in key order
+	 */
+	private void write(Iterator<Tuple> sorted) throws IOException, DbException {
+		int npagebytes = BufferPool.getPageSize();
+		int tableid = bf.getId();
+		Type[] typeAr = new Type[td.numFields()];
+		for(int i = 0; i < typeAr.length; i++) {
+			typeAr[i] = td.getFieldType(i);
+		}
+		Type keyType = typeAr[keyField];
+
+		// the same sizes as the pages compute, see BTreeFileEncoder.convert
+		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE;
+		int nrecords = (npagebytes * 8 - leafpointerbytes * 8) / (td.getSize() * 8 + 1);
+		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
+		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1;
+		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) / (nentrybytes * 8 + 1);
+		int nchildren = nentries + 1;
+
+		// the number of pages of each level, leaves first, and the first page
+		// number of each level; the root is the last page
+		ArrayList<Integer> levels = new ArrayList<Integer>();
+		levels.add(numPages(count, Math.max(1, (int) (nrecords * fillFactor)), Math.max(1, nrecords / 2)));
+		while(levels.get(levels.size() - 1) > 1) {
+			int children = levels.get(levels.size() - 1);
+			levels.add(numPages(children, Math.max(2, (int) (nchildren * fillFactor)), Math.max(2, nchildren / 2)));
+		}
+		int[] firstPage = new int[levels.size()];
+		firstPage[0] = 1;
+		for(int k = 1; k < levels.size(); k++) {
+			firstPage[k] = firstPage[k - 1] + levels.get(k - 1);
+		}
+		int top = levels.size() - 1;
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+
+		// the root pointer first, so that the file is not mistaken for an empty one
+		bf.writePage(new BTreeRootPtrPage(rootPtrId, BTreeRootPtrPage.createEmptyPageData()));
+		PageWriter out = new PageWriter(npagebytes);
+
+		// the leaves, and the smallest key of each
+		int nleaves = levels.get(0);
+		Field[] mins = new Field[nleaves];
+		for(int i = 0; i < nleaves; i++) {
+			int n = share(count, nleaves, i);
+			ArrayList<Tuple> tuples = new ArrayList<Tuple>(n);
+			for(int j = 0; j < n; j++) {
+				tuples.add(sorted.next());
+			}
+			BTreePageId pid = new BTreePageId(tableid, firstPage[0] + i, BTreePageId.LEAF);
+			BTreeLeafPage page = new BTreeLeafPage(pid,
+					BTreeFileEncoder.convertToLeafPage(tuples, npagebytes, typeAr.length, typeAr, keyField), keyField);
+			page.setParentId(top == 0 ? rootPtrId :
+				new BTreePageId(tableid, firstPage[1] + pageOf(nleaves, levels.get(1), i), BTreePageId.INTERNAL));
+			if(i > 0) {
+				page.setLeftSiblingId(new BTreePageId(tableid, pid.pageNumber() - 1, BTreePageId.LEAF));
+			}
+			if(i < nleaves - 1) {
+				page.setRightSiblingId(new BTreePageId(tableid, pid.pageNumber() + 1, BTreePageId.LEAF));
+			}
+			if(n > 0) {
+				mins[i] = tuples.get(0).getField(keyField);
+			}
+			out.add(pid.pageNumber(), page.getPageData());
+		}
+
+		// the internal pages, level by level; the key between two children is
+		// the smallest key below the right one
+		for(int k = 1; k <= top; k++) {
+			int nchild = levels.get(k - 1);
+			int npages = levels.get(k);
+			int childCategory = (k == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
+			Field[] levelMins = new Field[npages];
+			int c = 0;
+			for(int j = 0; j < npages; j++) {
+				int n = share(nchild, npages, j);
+				ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>(n - 1);
+				for(int t = 1; t < n; t++) {
+					entries.add(new BTreeEntry(mins[c + t],
+							new BTreePageId(tableid, firstPage[k - 1] + c + t - 1, childCategory),
+							new BTreePageId(tableid, firstPage[k - 1] + c + t, childCategory)));
+				}
+				levelMins[j] = mins[c];
+				c += n;
+
+				BTreePageId pid = new BTreePageId(tableid, firstPage[k] + j, BTreePageId.INTERNAL);
+				BTreeInternalPage page = new BTreeInternalPage(pid,
+						BTreeFileEncoder.convertToInternalPage(entries, npagebytes, keyType, childCategory), keyField);
+				page.setParentId(k == top ? rootPtrId :
+					new BTreePageId(tableid, firstPage[k + 1] + pageOf(npages, levels.get(k + 1), j), BTreePageId.INTERNAL));
+				out.add(pid.pageNumber(), page.getPageData());
+			}
+			mins = levelMins;
+		}
+		out.flush();
+
+		int root = firstPage[top];
+		int rootCategory = (top == 0 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
+		bf.writePage(new BTreeRootPtrPage(rootPtrId, BTreeFileEncoder.convertToRootPtrPage(root, rootCategory, 0)));
+	}
+
+	/**
+	 * Collects pages with consecutive page numbers and writes them with one call
+	 */
+	private class PageWriter {
+		private final byte[] batch;
+		private final int npagebytes;
+		private int first = -1;
+		private int n = 0;
+
+		PageWriter(int npagebytes) {
+			this.npagebytes = npagebytes;
+			this.batch = new byte[WRITE_BATCH * npagebytes];
+		}
+
+		void add(int pgNo, byte[] data) throws IOException {
+			if(n == WRITE_BATCH || (n > 0 && pgNo != first + n)) {
+				flush();
+			}
+			if(n == 0) {
+				first = pgNo;
+			}
+			System.arraycopy(data, 0, batch, n * npagebytes, npagebytes);
+			n++;
+		}
+
+		void flush() throws IOException {
+			if(n > 0) {
+				bf.writePages(first, n == WRITE_BATCH ? batch : Arrays.copyOf(batch, n * npagebytes));
+				n = 0;
+			}
+		}
+	}
+}
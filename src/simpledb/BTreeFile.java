@@ -24,6 +24,8 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	// all disk I/O of this file goes through one long-lived channel
+	private final PageChannel channel;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -34,10 +36,26 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, key, td, false);
+	}
+
+	/**
+	 * Constructs a B+ tree file backed by the specified file, optionally in the
+	 * memory-mapped storage mode for read-mostly tables.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param key - the field which index is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @param mapped - read pages from a memory mapping of the file instead of with
+	 *            read calls, see MappedPageChannel
+	 */
+	public BTreeFile(File f, int key, TupleDesc td, boolean mapped) {
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.channel = mapped ? new MappedPageChannel(f) : new PageChannel(f);
 	}
 
 	/**
@@ -47,6 +65,13 @@ public class BTreeFile implements DbFile {
 		return f;
 	}
 
+	/**
+	 * Returns true if this file is in the memory-mapped storage mode.
+	 */
+	public boolean isMapped() {
+		return channel instanceof MappedPageChannel;
+	}
+
 	/**
 	 * Returns an ID uniquely identifying this BTreeFile. Implementation note:
 	 * you will need to generate this tableid somewhere and ensure that each
@@ -78,13 +103,11 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
+				int retval = channel.read(0, pageBuf);
 				if (retval == -1) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
@@ -98,12 +121,7 @@ public class BTreeFile implements DbFile {
 			}
 			else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) != 
-						BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
+				int retval = channel.read(pageOffset(id.pageNumber()), pageBuf);
 				if (retval == -1) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
@@ -127,17 +145,20 @@ public class BTreeFile implements DbFile {
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
-			}
 		}
 	}
 
+	/**
+	 * The root pointer page sits at the start of the file, page number n > 0
+	 * of any other category right after it at a fixed page size.
+	 * 
+	 * @param pageNumber - the page number of a non root pointer page
+	 * @return the offset of that page in the file
+	 */
+	private static long pageOffset(int pageNumber) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pageNumber-1) * BufferPool.getPageSize();
+	}
+
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
 	 * be called from the BufferPool when pages are flushed to disk
@@ -148,24 +169,35 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			channel.write(0, data);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().pageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			channel.write(pageOffset(page.getId().pageNumber()), data);
 		}
 	}
 	
+	/**
+	 * Write consecutive pages with one write call, bypassing the buffer pool.
+	 * Only for BTreeBulkLoader, which writes a new file in page number order.
+	 *
+	 * @param pgNo - the page number of the first page
+	 * @param data - the data of the pages, a whole number of pages
+	 */
+	void writePages(int pgNo, byte[] data) throws IOException {
+		channel.write(pageOffset(pgNo), data);
+	}
+
 	/**
 	 * Returns the number of pages in this BTreeFile.
 	 */
 	public int numPages() {
 		// we only ever write full pages
-		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		try {
+			return (int) ((channel.size() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 	}
 
 	/**
@@ -176,58 +208,105 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
-	 * leaf node with permission perm.
+	 * Function which finds and locks the leaf page in the B+ tree corresponding to
+	 * the left-most page possibly containing the key field f, starting from the root
+	 * pointer. It locks the root pointer and the internal nodes along the path to the
+	 * leaf node with READ_ONLY permission, and locks the leaf node with permission perm.
+	 * <p>
+	 * The pages on the path are only needed to find the way down, so they are locked
+	 * by crabbing: the lock on a page is released as soon as its child is locked,
+	 * unless tid held the page before. Inserters and readers then keep only their
+	 * leaves locked, and a split only waits for the transactions that are passing
+	 * through its pages at that moment instead of every transaction that ever did.
+	 * A child lock is never waited for while holding the parent: if it is not free
+	 * the parent is released first, and once the child is granted the search starts
+	 * over from the root pointer, since the tree may have changed meanwhile.
 	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
+	 * @return the left-most leaf page possibly containing the key field f, or null if
+	 * the tree has no root page yet
 	 * 
 	 */
-	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
+	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, Permissions perm,
 			Field f) throws DbException, TransactionAbortedException {
-		// some code goes here
-		if (pid.pgcateg() == BTreePageId.LEAF) {
-			return (BTreeLeafPage)getPage(tid, dirtypages, pid, perm);
-		} else {
-			BTreeInternalPage internalPage = (BTreeInternalPage)getPage(tid, dirtypages, pid, perm);
-			Iterator<BTreeEntry> interiter = internalPage.iterator();
-			BTreeEntry nextEntry = new BTreeEntry(internalPage.getKey(1), null, null);
-			while (interiter.hasNext()) {
-				nextEntry = interiter.next();
-				if (f == null || f.compare(Op.LESS_THAN_OR_EQ, nextEntry.getKey())) {
-					return findLeafPage(tid, dirtypages, nextEntry.getLeftChild(), Permissions.READ_ONLY, f);
+		BufferPool bp = Database.getBufferPool();
+		// pages locked only while waiting for them, let go of unless they end up on the path
+		ArrayList<BTreePageId> waitedFor = new ArrayList<BTreePageId>();
+		while(true) {
+			BTreePageId cur = BTreeRootPtrPage.getId(tableid);
+			boolean curHeld = lockedBefore(tid, dirtypages, cur, waitedFor);
+			BTreePageId child = ((BTreeRootPtrPage) getPage(tid, dirtypages, cur, Permissions.READ_ONLY)).getRootId();
+			if(child == null) {
+				return null;
+			}
+			Permissions childPerm;
+			boolean childHeld;
+			while(true) {
+				childPerm = child.pgcateg() == BTreePageId.LEAF ? perm : Permissions.READ_ONLY;
+				childHeld = lockedBefore(tid, dirtypages, child, waitedFor);
+				Page page = tryGetPage(tid, dirtypages, child, childPerm);
+				if(page == null) {
+					break;
 				}
+				if(!curHeld) {
+					bp.releasePage(tid, cur);
+					waitedFor.remove(cur);
+				}
+				cur = child;
+				curHeld = childHeld;
+				if(cur.pgcateg() == BTreePageId.LEAF) {
+					waitedFor.remove(cur);
+					for(BTreePageId pid : waitedFor) {
+						bp.releasePage(tid, pid);
+					}
+					return (BTreeLeafPage) page;
+				}
+				child = ((BTreeInternalPage) page).findChildId(f);
+			}
+			// the child is locked by someone else: wait for it without holding the parent
+			if(!curHeld) {
+				bp.releasePage(tid, cur);
+				waitedFor.remove(cur);
+			}
+			bp.getPage(tid, child, childPerm);
+			if(!childHeld) {
+				waitedFor.add(child);
 			}
-			return findLeafPage(tid, dirtypages, nextEntry.getRightChild(), Permissions.READ_ONLY, f);
 		}
 	}
 
-
-
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
 	 * Used by the BTreeFile iterator.
-	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+	 * @see #findLeafPage(TransactionId, HashMap, Permissions, Field)
 	 * 
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
+	 * @return the left-most leaf page possibly containing the key field f, or null if
+	 * the tree has no root page yet
 	 * 
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
-			Field f) 
+	BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f) 
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+		return findLeafPage(tid, new HashMap<PageId, Page>(), perm, f);
+	}
+
+	/**
+	 * @return true if tid has the page locked already, so that finding the way through it
+	 * must not release the lock. A page in waitedFor was only locked by the search itself.
+	 */
+	private boolean lockedBefore(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid,
+			ArrayList<BTreePageId> waitedFor) {
+		if(waitedFor.contains(pid)) {
+			return false;
+		}
+		return dirtypages.containsKey(pid) || Database.getBufferPool().holdsLock(tid, pid);
 	}
 
 	/**
@@ -301,13 +380,11 @@ public class BTreeFile implements DbFile {
         dirtypages.put(leftLeaf.getId(),leftLeaf);
         dirtypages.put(rightLeaf.getId(), rightLeaf);
 
-        return findLeafPage(tid, dirtypages, parentpage.getId(), Permissions.READ_WRITE, field);
-        /*// if the field to insert in is in left page's range, return left page; else return right page.
-        if (field.compare(Op.GREATER_THAN_OR_EQ, leftmin.getField(keyField)) ||
-                field.compare(Op.LESS_THAN_OR_EQ, leftmax.getField(keyField))) {
+        // the left-most page possibly containing field, like findLeafPage
+        if (field.compare(Op.LESS_THAN_OR_EQ, entryToCopy.getKey())) {
             return leftLeaf;
         }
-        return rightLeaf;*/
+        return rightLeaf;
 	}
 
 	/**
@@ -514,6 +591,22 @@ public class BTreeFile implements DbFile {
 		}
 	}
 
+	/**
+	 * Like getPage, but return null instead of waiting if the page is locked by another transaction.
+	 * @see #getPage(TransactionId, HashMap, BTreePageId, Permissions)
+	 */
+	private Page tryGetPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm) 
+			throws DbException, TransactionAbortedException {
+		if(dirtypages.containsKey(pid)) {
+			return dirtypages.get(pid);
+		}
+		Page p = Database.getBufferPool().tryGetPage(tid, pid, perm);
+		if(p != null && perm == Permissions.READ_WRITE) {
+			dirtypages.put(pid, p);
+		}
+		return p;
+	}
+
 	/**
 	 * Insert a tuple into this BTreeFile, keeping the tuples in sorted order. 
 	 * May cause pages to split if the page where tuple t belongs is full.
@@ -529,24 +622,35 @@ public class BTreeFile implements DbFile {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
 		// get a read lock on the root pointer page and use it to locate the root page
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		boolean rootPtrHeld = lockedBefore(tid, dirtypages, rootPtrId, new ArrayList<BTreePageId>());
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
 		BTreePageId rootId = rootPtr.getRootId();
 
 		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
 			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
 			rootPtr.setRootId(rootId);
 		}
-
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+		else if(!rootPtrHeld) {
+			// findLeafPage locks it again on the way down, only as long as it needs it
+			Database.getBufferPool().releasePage(tid, rootPtrId);
 		}
 
-		// insert the tuple into the leaf page
-		leafPage.insertTuple(t);
+		try {
+			// find and lock the left-most leaf page corresponding to the key field,
+			// and split the leaf page if there are no more slots available
+			BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, t.getField(keyField));
+			if(leafPage.getNumEmptySlots() == 0) {
+				leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			}
+
+			// insert the tuple into the leaf page
+			leafPage.insertTuple(t);
+		} catch(TransactionAbortedException | DbException | IOException e) {
+			markChanged(tid, dirtypages);
+			throw e;
+		}
 
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
 		dirtyPagesArr.addAll(dirtypages.values());
@@ -1027,14 +1131,19 @@ public class BTreeFile implements DbFile {
 
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().pageNumber(), 
 				BTreePageId.LEAF);
-		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
-		page.deleteTuple(t);
-
-		// if the page is below minimum occupancy, get some tuples from its siblings
-		// or merge with one of the siblings
-		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
-		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+		try {
+			BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+			page.deleteTuple(t);
+
+			// if the page is below minimum occupancy, get some tuples from its siblings
+			// or merge with one of the siblings
+			int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
+			if(page.getNumEmptySlots() > maxEmptySlots) { 
+				handleMinOccupancyPage(tid, dirtypages, page);
+			}
+		} catch(TransactionAbortedException | DbException | IOException e) {
+			markChanged(tid, dirtypages);
+			throw e;
 		}
 
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
@@ -1042,6 +1151,19 @@ public class BTreeFile implements DbFile {
 		return dirtyPagesArr;
 	}
 
+	/**
+	 * An insert or delete that fails, often as a deadlock victim while it waits for
+	 * a parent in the middle of a split or merge, has changed some of its pages in
+	 * the buffer pool already. They are marked dirty here, since BufferPool only marks
+	 * the pages of an operation that returns, so that the abort throws them away.
+	 * tid holds all of them exclusively.
+	 */
+	private void markChanged(TransactionId tid, HashMap<PageId, Page> dirtypages) {
+		for(Page p : dirtypages.values()) {
+			p.markDirty(true, tid);
+		}
+	}
+
 	/**
 	 * Get a read lock on the root pointer page. Create the root pointer page and root page
 	 * if necessary.
@@ -1055,15 +1177,12 @@ public class BTreeFile implements DbFile {
 	 */
 	private BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
 		synchronized(this) {
-			if(f.length() == 0) {
+			if(channel.size() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
 				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				channel.write(0, emptyRootPtrData);
+				channel.write(pageOffset(1), emptyLeafData);
 			}
 		}
 
@@ -1085,9 +1204,15 @@ public class BTreeFile implements DbFile {
 	 */
 	protected int getEmptyPageNo(TransactionId tid, HashMap<PageId, Page> dirtypages) 
 			throws DbException, IOException, TransactionAbortedException {
-		// get a read lock on the root pointer page and use it to locate the first header page
+		// get a read lock on the root pointer page and use it to locate the first header page.
+		// the lock is not kept, so that splits elsewhere in the tree can still grow a new root
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		boolean rootPtrHeld = lockedBefore(tid, dirtypages, rootPtrId, new ArrayList<BTreePageId>());
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
 		BTreePageId headerId = rootPtr.getHeaderId();
+		if(!rootPtrHeld) {
+			Database.getBufferPool().releasePage(tid, rootPtrId);
+		}
 		int emptyPageNo = 0;
 
 		if(headerId != null) {
@@ -1119,11 +1244,8 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				channel.write(channel.size(), emptyData);
 				emptyPageNo = numPages();
 			}
 		}
@@ -1154,10 +1276,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		channel.write(pageOffset(emptyPageNo), BTreePage.createEmptyPageData());
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1278,6 +1397,21 @@ public class BTreeFile implements DbFile {
 		return new BTreeFileIterator(this, tid);
 	}
 
+	/**
+	 * Get an iterator for all tuples in this B+ tree file in sorted order that reads
+	 * the leaf pages which are not already cached through the given ring instead of
+	 * the shared buffer pool. The internal pages on the way to the first leaf are
+	 * still read through the buffer pool.
+	 * 
+	 * @param tid - the transaction id
+	 * @param ring - private ring of frames for a bulk read, or null for a normal scan
+	 * @return an iterator for all the tuples in this file
+	 * @see BulkReadRing
+	 */
+	public DbFileIterator iterator(TransactionId tid, BulkReadRing ring) {
+		return new BTreeFileIterator(this, tid, ring);
+	}
+
 }
 
 /**
@@ -1290,6 +1424,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	TransactionId tid;
 	BTreeFile f;
+	BulkReadRing ring;
+	BTreeLeafPrefetcher prefetcher;
 
 	/**
 	 * Constructor for this iterator
@@ -1297,19 +1433,31 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * @param tid - the transaction id
 	 */
 	public BTreeFileIterator(BTreeFile f, TransactionId tid) {
+		this(f, tid, null);
+	}
+
+	/**
+	 * Constructor for a bulk read iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param ring - private ring the leaf pages are read through, or null
+	 */
+	public BTreeFileIterator(BTreeFile f, TransactionId tid, BulkReadRing ring) {
 		this.f = f;
 		this.tid = tid;
+		this.ring = ring;
+		this.prefetcher = new BTreeLeafPrefetcher(f, null);
 	}
 
 	/**
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
-		it = curp.iterator();
+		curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
+		if(curp != null) {
+			prefetcher.advance(curp);
+			it = curp.iterator();
+		}
 	}
 
 	/**
@@ -1330,7 +1478,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			}
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+						nextp, Permissions.READ_ONLY, ring);
+				prefetcher.advance(curp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1357,6 +1506,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		super.close();
 		it = null;
 		curp = null;
+		prefetcher.reset();
+		if (ring != null)
+			ring.clear();
 	}
 }
 
@@ -1372,6 +1524,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	TransactionId tid;
 	BTreeFile f;
 	IndexPredicate ipred;
+	BTreeLeafPrefetcher prefetcher;
 
 	/**
 	 * Constructor for this iterator
@@ -1383,6 +1536,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		this.f = f;
 		this.tid = tid;
 		this.ipred = ipred;
+		this.prefetcher = new BTreeLeafPrefetcher(f, ipred);
 	}
 
 	/**
@@ -1390,17 +1544,23 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, ipred.getField());
+			if(curp != null) {
+				// skip the smaller keys on the first page by binary search
+				it = curp.iterator(ipred.getField());
+			}
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
+			if(curp != null) {
+				it = curp.iterator();
+			}
+		}
+		if(curp != null) {
+			prefetcher.advance(curp);
 		}
-		it = curp.iterator();
 	}
 
 	/**
@@ -1440,6 +1600,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				prefetcher.advance(curp);
 				it = curp.iterator();
 			}
 		}
@@ -1461,5 +1622,131 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
+		prefetcher.reset();
+	}
+}
+
+/**
+ * Helper class that reads ahead the leaf pages a range scan on a B+ Tree File
+ * is going to visit next. The right sibling pointers only name one leaf at a
+ * time, so the upcoming leaves are taken from the child pointers of the current
+ * leaf's parent instead, and up to BufferPool.getReadAheadWindow() of them are
+ * read in the background while the current leaf is consumed.
+ * 
+ * The parent is only peeked at, without a lock; a stale parent just makes the
+ * read-ahead miss, the scan itself still follows the sibling pointers.
+ */
+class BTreeLeafPrefetcher {
+
+	BTreeFile f;
+	IndexPredicate ipred;
+
+	BTreePageId parentId = null;
+	// child pointers of parentId in key order, and the first key left of each child
+	ArrayList<BTreePageId> children = new ArrayList<BTreePageId>();
+	ArrayList<Field> keys = new ArrayList<Field>();
+	// index in children of the last leaf a read was issued for
+	int readAheadTo = -1;
+
+	/**
+	 * Constructor for this prefetcher
+	 * @param f - the BTreeFile being scanned
+	 * @param ipred - the predicate of the scan, or null for a full scan. With a less than
+	 * or an equals predicate no leaf is read ahead past the end of the range.
+	 */
+	public BTreeLeafPrefetcher(BTreeFile f, IndexPredicate ipred) {
+		this.f = f;
+		this.ipred = ipred;
+	}
+
+	/**
+	 * The scan moved to the given leaf, read ahead the leaves after it
+	 * @param leaf - the leaf page the scan is on now
+	 */
+	public void advance(BTreeLeafPage leaf) {
+		BufferPool bp = Database.getBufferPool();
+		int window = bp.getReadAheadWindow();
+		BTreePageId parent = leaf.getParentId();
+		if(window == 0 || parent == null || parent.pgcateg() != BTreePageId.INTERNAL) {
+			return;
+		}
+		if(!parent.equals(parentId) && !loadParent(bp, parent)) {
+			return;
+		}
+		int i = children.indexOf(leaf.getId());
+		if(i < 0) {
+			// the parent changed since it was peeked at, look again next time
+			parentId = null;
+			return;
+		}
+		int last = Math.min(i + window, children.size() - 1);
+		for(int j = Math.max(readAheadTo, i) + 1; j <= last; j++) {
+			if(pastRange(keys.get(j))) {
+				break;
+			}
+			bp.readAhead(children.get(j));
+			readAheadTo = j;
+		}
+	}
+
+	/**
+	 * forget the parent, called when the scan is rewound or closed
+	 */
+	public void reset() {
+		parentId = null;
+		children.clear();
+		keys.clear();
+		readAheadTo = -1;
+	}
+
+	/**
+	 * peek at the parent and remember its child pointers. The page may be the one
+	 * cached in the buffer pool, so its read latch is held while its entries are read.
+	 * @return false if the parent could not be looked at
+	 */
+	private boolean loadParent(BufferPool bp, BTreePageId parent) {
+		reset();
+		Page p = bp.peekPage(parent);
+		if(p == null) {
+			return false;
+		}
+		p.getLatch().readLock().lock();
+		try {
+			Iterator<BTreeEntry> it = ((BTreeInternalPage) p).iterator();
+			while(it.hasNext()) {
+				BTreeEntry e = it.next();
+				if(children.isEmpty()) {
+					children.add(e.getLeftChild());
+					keys.add(null);
+				}
+				children.add(e.getRightChild());
+				keys.add(e.getKey());
+			}
+		} finally {
+			p.getLatch().readLock().unlock();
+		}
+		parentId = parent;
+		return true;
+	}
+
+	/**
+	 * Every key in the child right of a key is at least that key, and every key left
+	 * of it at most that key. So when this returns false the scan does not stop before
+	 * the child either, and nothing is read ahead that the scan would not read itself.
+	 * 
+	 * @return true if every tuple in the child right of this key is out of the scan range
+	 */
+	private boolean pastRange(Field key) {
+		if(ipred == null || key == null) {
+			return false;
+		}
+		Op op = ipred.getOp();
+		if(op == Op.LESS_THAN) {
+			return key.compare(Op.GREATER_THAN_OR_EQ, ipred.getField());
+		}
+		if(op == Op.LESS_THAN_OR_EQ || op == Op.EQUALS) {
+			return key.compare(Op.GREATER_THAN, ipred.getField());
+		}
+		return false;
 	}
 }
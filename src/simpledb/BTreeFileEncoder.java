@@ -8,7 +8,8 @@ import simpledb.Predicate.Op;
 /**
  * BTreeFileEncoder reads a comma delimited text file and converts it to
  * pages of binary data in the appropriate format for simpledb B+ tree
- * pages.
+ * pages. These methods hold all the tuples in memory, or insert them one at a
+ * time; for large tables use BTreeBulkLoader.
  */
 
 public class BTreeFileEncoder {
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Each instance of BTreeHeaderPage stores data for one page of a BTreeFile and 
@@ -25,6 +26,8 @@ public class BTreeHeaderPage implements Page {
 
 	byte[] oldData;
 	private final Byte oldDataLock=new Byte((byte)0);
+	// held while the contents are read or changed, see Page#getLatch
+	private final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
 
 	/**
 	 * Create a BTreeHeaderPage from a set of bytes of data read from disk.
@@ -68,8 +71,13 @@ public class BTreeHeaderPage implements Page {
 	 * Initially mark all slots in the header used.
 	 */
 	public void init() {
-		for (int i=0; i<header.length; i++)
-			header[i] = (byte) 0xFF;
+		latch.writeLock().lock();
+		try {
+			for (int i=0; i<header.length; i++)
+				header[i] = (byte) 0xFF;
+		} finally {
+			latch.writeLock().unlock();
+		}
 	}
 
 	/**
@@ -120,6 +128,13 @@ public class BTreeHeaderPage implements Page {
 		return pid;
 	}
 
+	/**
+	 * @return the latch of this page, see Page#getLatch
+	 */
+	public ReentrantReadWriteLock getLatch() {
+		return latch;
+	}
+
 	/**
 	 * Generates a byte array representing the contents of this page.
 	 * Used to serialize this page to disk.
@@ -132,41 +147,46 @@ public class BTreeHeaderPage implements Page {
 	 * @return A byte array correspond to the bytes of this page.
 	 */
 	public byte[] getPageData() {
-		int len = BufferPool.getPageSize();
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-		DataOutputStream dos = new DataOutputStream(baos);
-
-		// write out the next and prev pointers
+		latch.readLock().lock();
 		try {
-			dos.writeInt(nextPage);
+			int len = BufferPool.getPageSize();
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+			DataOutputStream dos = new DataOutputStream(baos);
 
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		try {
-			dos.writeInt(prevPage);
+			// write out the next and prev pointers
+			try {
+				dos.writeInt(nextPage);
 
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			try {
+				dos.writeInt(prevPage);
+
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+
+			// create the header of the page
+			for (int i=0; i<header.length; i++) {
+				try {
+					dos.writeByte(header[i]);
+				} catch (IOException e) {
+					// this really shouldn't happen
+					e.printStackTrace();
+				}
+			}
 
-		// create the header of the page
-		for (int i=0; i<header.length; i++) {
 			try {
-				dos.writeByte(header[i]);
+				dos.flush();
 			} catch (IOException e) {
-				// this really shouldn't happen
 				e.printStackTrace();
 			}
-		}
 
-		try {
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
+			return baos.toByteArray();
+		} finally {
+			latch.readLock().unlock();
 		}
-
-		return baos.toByteArray();
 	}
 
 	/**
@@ -211,17 +231,22 @@ public class BTreeHeaderPage implements Page {
 	 * @throws DbException
 	 */
 	public void setPrevPageId(BTreePageId id) throws DbException {
-		if(id == null) {
-			prevPage = 0;
-		}
-		else {
-			if(id.getTableId() != pid.getTableId()) {
-				throw new DbException("table id mismatch in setPrevPageId");
+		latch.writeLock().lock();
+		try {
+			if(id == null) {
+				prevPage = 0;
 			}
-			if(id.pgcateg() != BTreePageId.HEADER) {
-				throw new DbException("prevPage must be a header page");
+			else {
+				if(id.getTableId() != pid.getTableId()) {
+					throw new DbException("table id mismatch in setPrevPageId");
+				}
+				if(id.pgcateg() != BTreePageId.HEADER) {
+					throw new DbException("prevPage must be a header page");
+				}
+				prevPage = id.pageNumber();
 			}
-			prevPage = id.pageNumber();
+		} finally {
+			latch.writeLock().unlock();
 		}
 	}
 
@@ -231,17 +256,22 @@ public class BTreeHeaderPage implements Page {
 	 * @throws DbException
 	 */
 	public void setNextPageId(BTreePageId id) throws DbException {
-		if(id == null) {
-			nextPage = 0;
-		}
-		else {
-			if(id.getTableId() != pid.getTableId()) {
-				throw new DbException("table id mismatch in setNextPageId");
+		latch.writeLock().lock();
+		try {
+			if(id == null) {
+				nextPage = 0;
 			}
-			if(id.pgcateg() != BTreePageId.HEADER) {
-				throw new DbException("nextPage must be a header page");
+			else {
+				if(id.getTableId() != pid.getTableId()) {
+					throw new DbException("table id mismatch in setNextPageId");
+				}
+				if(id.pgcateg() != BTreePageId.HEADER) {
+					throw new DbException("nextPage must be a header page");
+				}
+				nextPage = id.pageNumber();
 			}
-			nextPage = id.pageNumber();
+		} finally {
+			latch.writeLock().unlock();
 		}
 	}
 
@@ -277,14 +307,19 @@ public class BTreeHeaderPage implements Page {
 	 * Abstraction to mark a page of the BTreeFile used or unused
 	 */
 	public void markSlotUsed(int i, boolean value) {
-		int headerbit = i % 8;
-		int headerbyte = (i - headerbit) / 8;
-
-		Debug.log(1, "BTreeHeaderPage.setSlot: setting slot %d to %b", i, value);
-		if(value)
-			header[headerbyte] |= 1 << headerbit;
-		else
-			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		latch.writeLock().lock();
+		try {
+			int headerbit = i % 8;
+			int headerbyte = (i - headerbit) / 8;
+
+			Debug.log(1, "BTreeHeaderPage.setSlot: setting slot %d to %b", i, value);
+			if(value)
+				header[headerbyte] |= 1 << headerbit;
+			else
+				header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		} finally {
+			latch.writeLock().unlock();
+		}
 	}
 
 	/**
@@ -20,6 +20,14 @@ public class BTreeInternalPage extends BTreePage {
 	private final int numSlots;
 	
 	private int childCategory; // either leaf or internal
+
+	// the used key slots (from 1 on) in key order, to search the page by binary search
+	private final BTreeSlotDirectory directory;
+	private final BTreeSlotDirectory.Mover mover = new BTreeSlotDirectory.Mover() {
+		public void move(int from, int to) {
+			moveEntry(from, to);
+		}
+	};
 	
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
@@ -88,6 +96,12 @@ public class BTreeInternalPage extends BTreePage {
 		}
 		dis.close();
 
+		directory = new BTreeSlotDirectory(numSlots - 1, td.getFieldType(keyField));
+		for (int i=1; i<keys.length; i++) {
+			if (isSlotUsed(i))
+				directory.insert(directory.size(), i, keys[i]);
+		}
+
 		setBeforeImage();
 	}
 
@@ -212,105 +226,110 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return A byte array correspond to the bytes of this page.
 	 */
 	public byte[] getPageData() {
-		int len = BufferPool.getPageSize();
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-		DataOutputStream dos = new DataOutputStream(baos);
-
-		// write out the parent pointer
+		latch.readLock().lock();
 		try {
-			dos.writeInt(parent);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+			int len = BufferPool.getPageSize();
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+			DataOutputStream dos = new DataOutputStream(baos);
 
-		// write out the child page category
-		try {
-			dos.writeByte((byte) childCategory);
+			// write out the parent pointer
+			try {
+				dos.writeInt(parent);
 
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 
-		// create the header of the page
-		for (int i=0; i<header.length; i++) {
+			// write out the child page category
 			try {
-				dos.writeByte(header[i]);
+				dos.writeByte((byte) childCategory);
+
 			} catch (IOException e) {
-				// this really shouldn't happen
 				e.printStackTrace();
 			}
-		}
 
-		// create the keys
-		// start from 1 because the first key slot is not used
-		// since a node with m keys has m+1 pointers
-		for (int i=1; i<keys.length; i++) {
+			// create the header of the page
+			for (int i=0; i<header.length; i++) {
+				try {
+					dos.writeByte(header[i]);
+				} catch (IOException e) {
+					// this really shouldn't happen
+					e.printStackTrace();
+				}
+			}
+
+			// create the keys
+			// start from 1 because the first key slot is not used
+			// since a node with m keys has m+1 pointers
+			for (int i=1; i<keys.length; i++) {
+
+				// empty slot
+				if (!isSlotUsed(i)) {
+					for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
+						try {
+							dos.writeByte(0);
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
 
-			// empty slot
-			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
 					}
+					continue;
+				}
 
+				// non-empty slot
+				try {
+					keys[i].serialize(dos);
+				} catch (IOException e) {
+					e.printStackTrace();
 				}
-				continue;
-			}
 
-			// non-empty slot
-			try {
-				keys[i].serialize(dos);
-			} catch (IOException e) {
-				e.printStackTrace();
 			}
 
-		}
+			// create the child pointers
+			for (int i=0; i<children.length; i++) {
 
-		// create the child pointers
-		for (int i=0; i<children.length; i++) {
+				// empty slot
+				if (!isSlotUsed(i)) {
+					for (int j=0; j<INDEX_SIZE; j++) {
+						try {
+							dos.writeByte(0);
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
 
-			// empty slot
-			if (!isSlotUsed(i)) {
-				for (int j=0; j<INDEX_SIZE; j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
 					}
+					continue;
+				}
 
+				// non-empty slot
+				try {
+					dos.writeInt(children[i]);
+
+				} catch (IOException e) {
+					e.printStackTrace();
 				}
-				continue;
 			}
 
-			// non-empty slot
+			// padding
+			int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
+					td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
+			byte[] zeroes = new byte[zerolen];
 			try {
-				dos.writeInt(children[i]);
-
+				dos.write(zeroes, 0, zerolen);
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
-		}
 
-		// padding
-		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
-		byte[] zeroes = new byte[zerolen];
-		try {
-			dos.write(zeroes, 0, zerolen);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+			try {
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 
-		try {
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
+			return baos.toByteArray();
+		} finally {
+			latch.readLock().unlock();
 		}
-
-		return baos.toByteArray();
 	}
 
 	/**
@@ -325,26 +344,33 @@ public class BTreeInternalPage extends BTreePage {
 	 *        delete the left child
 	 */
 	private void deleteEntry(BTreeEntry e, boolean deleteRightChild) throws DbException {
-		RecordId rid = e.getRecordId();
-		if(rid == null)
-			throw new DbException("tried to delete entry with null rid");
-		if((rid.getPageId().pageNumber() != pid.pageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
-			throw new DbException("tried to delete entry on invalid page or table");
-		if (!isSlotUsed(rid.getTupleNumber()))
-			throw new DbException("tried to delete null entry.");
-		if(deleteRightChild) {
-			markSlotUsed(rid.getTupleNumber(), false);
-		}
-		else {
-			for(int i = rid.getTupleNumber() - 1; i >= 0; i--) {
-				if(isSlotUsed(i)) {
-					children[i] = children[rid.getTupleNumber()];
+		latch.writeLock().lock();
+		try {
+			RecordId rid = e.getRecordId();
+			if(rid == null)
+				throw new DbException("tried to delete entry with null rid");
+			if((rid.getPageId().pageNumber() != pid.pageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
+				throw new DbException("tried to delete entry on invalid page or table");
+			if (!isSlotUsed(rid.getTupleNumber()))
+				throw new DbException("tried to delete null entry.");
+			int rank = directory.rankOf(rid.getTupleNumber());
+			if(deleteRightChild) {
+				markSlotUsed(rid.getTupleNumber(), false);
+				directory.remove(rank);
+			}
+			else {
+				// the right child takes the place of the left one, in the previous used slot
+				int prev = rank > 0 ? directory.slot(rank - 1) : 0;
+				if(isSlotUsed(prev)) {
+					children[prev] = children[rid.getTupleNumber()];
 					markSlotUsed(rid.getTupleNumber(), false);
-					break;
-				}	
+					directory.remove(rank);
+				}
 			}
+			e.setRecordId(null);
+		} finally {
+			latch.writeLock().unlock();
 		}
-		e.setRecordId(null);
 	}
 
 	/**
@@ -382,35 +408,35 @@ public class BTreeInternalPage extends BTreePage {
 	 *         order on the page
 	 */
 	public void updateEntry(BTreeEntry e) throws DbException {
-		RecordId rid = e.getRecordId();
-		if(rid == null)
-			throw new DbException("tried to update entry with null rid");
-		if((rid.getPageId().pageNumber() != pid.pageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
-			throw new DbException("tried to update entry on invalid page or table");
-		if (!isSlotUsed(rid.getTupleNumber()))
-			throw new DbException("tried to update null entry.");
+		latch.writeLock().lock();
+		try {
+			RecordId rid = e.getRecordId();
+			if(rid == null)
+				throw new DbException("tried to update entry with null rid");
+			if((rid.getPageId().pageNumber() != pid.pageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
+				throw new DbException("tried to update entry on invalid page or table");
+			if (!isSlotUsed(rid.getTupleNumber()))
+				throw new DbException("tried to update null entry.");
 		
-		for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(keys[i].compare(Op.LESS_THAN, e.getKey())) {
-					throw new DbException("attempt to update entry with invalid key " + e.getKey() +
-							" HINT: updated key must be less than or equal to keys on the right");
-				}
-				break;
-			}	
-		}
-		for(int i = rid.getTupleNumber() - 1; i >= 0; i--) {
-			if(isSlotUsed(i)) {
-				if(i > 0 && keys[i].compare(Op.GREATER_THAN, e.getKey())) {
-					throw new DbException("attempt to update entry with invalid key " + e.getKey() +
-							" HINT: updated key must be greater than or equal to keys on the left");
-				}
-				children[i] = e.getLeftChild().pageNumber();
-				break;
-			}	
+			int rank = directory.rankOf(rid.getTupleNumber());
+			if(rank + 1 < directory.size() && directory.compare(rank + 1, e.getKey()) < 0) {
+				throw new DbException("attempt to update entry with invalid key " + e.getKey() +
+						" HINT: updated key must be less than or equal to keys on the right");
+			}
+			if(rank > 0 && directory.compare(rank - 1, e.getKey()) > 0) {
+				throw new DbException("attempt to update entry with invalid key " + e.getKey() +
+						" HINT: updated key must be greater than or equal to keys on the left");
+			}
+			int prev = rank > 0 ? directory.slot(rank - 1) : 0;
+			if(isSlotUsed(prev)) {
+				children[prev] = e.getLeftChild().pageNumber();
+			}
+			children[rid.getTupleNumber()] = e.getRightChild().pageNumber();
+			keys[rid.getTupleNumber()] = e.getKey();
+			directory.setKey(rank, e.getKey());
+		} finally {
+			latch.writeLock().unlock();
 		}
-		children[rid.getTupleNumber()] = e.getRightChild().pageNumber();
-		keys[rid.getTupleNumber()] = e.getKey();
 	}
 
 	/**
@@ -421,108 +447,82 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
-		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
-			throw new DbException("key field type mismatch, in insertEntry");
+		latch.writeLock().lock();
+		try {
+			if (!e.getKey().getType().equals(td.getFieldType(keyField)))
+				throw new DbException("key field type mismatch, in insertEntry");
 
-		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
-			throw new DbException("table id mismatch in insertEntry");
+			if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
+				throw new DbException("table id mismatch in insertEntry");
 
-		if(childCategory == 0) {
-			if(e.getLeftChild().pgcateg() != e.getRightChild().pgcateg())
-				throw new DbException("child page category mismatch in insertEntry");
+			if(childCategory == 0) {
+				if(e.getLeftChild().pgcateg() != e.getRightChild().pgcateg())
+					throw new DbException("child page category mismatch in insertEntry");
 
-			childCategory = e.getLeftChild().pgcateg();
-		}
-		else if(e.getLeftChild().pgcateg() != childCategory || e.getRightChild().pgcateg() != childCategory)
-			throw new DbException("child page category mismatch in insertEntry");
-
-		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
-			children[0] = e.getLeftChild().pageNumber();
-			children[1] = e.getRightChild().pageNumber();
-			keys[1] = e.getKey();
-			markSlotUsed(0, true);
-			markSlotUsed(1, true);
-			e.setRecordId(new RecordId(pid, 1));
-			return;
-		}
+				childCategory = e.getLeftChild().pgcateg();
+			}
+			else if(e.getLeftChild().pgcateg() != childCategory || e.getRightChild().pgcateg() != childCategory)
+				throw new DbException("child page category mismatch in insertEntry");
 
-		// find the first empty slot, starting from 1
-		int emptySlot = -1;
-		for (int i=1; i<numSlots; i++) {
-			if (!isSlotUsed(i)) {
-				emptySlot = i;
-				break;
+			// if this is the first entry, add it and return
+			if(directory.size() == 0) {
+				children[0] = e.getLeftChild().pageNumber();
+				children[1] = e.getRightChild().pageNumber();
+				keys[1] = e.getKey();
+				markSlotUsed(0, true);
+				markSlotUsed(1, true);
+				directory.insert(0, 1, e.getKey());
+				e.setRecordId(new RecordId(pid, 1));
+				return;
 			}
-		}
 
-		if (emptySlot == -1)
-			throw new DbException("called insertEntry on page with no empty slots.");        
-
-		// find the child pointer matching the left or right child in this entry
-		int lessOrEqKey = -1;
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(children[i] == e.getLeftChild().pageNumber() || children[i] == e.getRightChild().pageNumber()) {
-					if(i > 0 && keys[i].compare(Op.GREATER_THAN, e.getKey())) {
-						throw new DbException("attempt to insert invalid entry with left child " + 
-								e.getLeftChild().pageNumber() + ", right child " + 
-								e.getRightChild().pageNumber() + " and key " + e.getKey() +
-								" HINT: one of these children must match an existing child on the page" +
-								" and this key must be correctly ordered in between that child's" +
-								" left and right keys");
-					}
+			if (directory.size() == numSlots - 1)
+				throw new DbException("called insertEntry on page with no empty slots.");        
+
+			// find the child pointer matching the left or right child in this entry, among
+			// the entries whose keys are less than or equal to the key of the entry, and
+			// whose next keys are greater than or equal to it (rank -1 is the child in slot 0)
+			int lessOrEqKey = -1;
+			int rank = -1;
+			int hi = directory.search(e.getKey(), true);
+			for (int r = directory.search(e.getKey(), false) - 1; r < hi; r++) {
+				int i = r < 0 ? 0 : directory.slot(r);
+				if(isSlotUsed(i) && (children[i] == e.getLeftChild().pageNumber() || children[i] == e.getRightChild().pageNumber())) {
 					lessOrEqKey = i;
+					rank = r + 1;
 					if(children[i] == e.getRightChild().pageNumber()) {
 						children[i] = e.getLeftChild().pageNumber();
 					}
 				}
 				else if(lessOrEqKey != -1) {
-					// validate that the next key is greater than or equal to the one we are inserting
-					if(keys[i].compare(Op.LESS_THAN, e.getKey())) {
-						throw new DbException("attempt to insert invalid entry with left child " + 
-								e.getLeftChild().pageNumber() + ", right child " + 
-								e.getRightChild().pageNumber() + " and key " + e.getKey() +
-								" HINT: one of these children must match an existing child on the page" +
-								" and this key must be correctly ordered in between that child's" +
-								" left and right keys");
-					}
+					// like a scan of the slots, take the last of neighbouring matches
 					break;
 				}
 			}
-		}
 
-		if(lessOrEqKey == -1) {
-			throw new DbException("attempt to insert invalid entry with left child " + 
-					e.getLeftChild().pageNumber() + ", right child " + 
-					e.getRightChild().pageNumber() + " and key " + e.getKey() +
-					" HINT: one of these children must match an existing child on the page" +
-					" and this key must be correctly ordered in between that child's" +
-					" left and right keys");
-		}
-
-		// shift entries back or forward to fill empty slot and make room for new entry
-		// while keeping entries in sorted order
-		int goodSlot = -1;
-		if(emptySlot < lessOrEqKey) {
-			for(int i = emptySlot; i < lessOrEqKey; i++) {
-				moveEntry(i+1, i);
-			}
-			goodSlot = lessOrEqKey;
-		}
-		else {
-			for(int i = emptySlot; i > lessOrEqKey + 1; i--) {
-				moveEntry(i-1, i);
+			if(lessOrEqKey == -1) {
+				throw new DbException("attempt to insert invalid entry with left child " + 
+						e.getLeftChild().pageNumber() + ", right child " + 
+						e.getRightChild().pageNumber() + " and key " + e.getKey() +
+						" HINT: one of these children must match an existing child on the page" +
+						" and this key must be correctly ordered in between that child's" +
+						" left and right keys");
 			}
-			goodSlot = lessOrEqKey + 1;
-		}
 
-		// insert new entry into the correct spot in sorted order
-		markSlotUsed(goodSlot, true);
-		Debug.log(1, "BTreeLeafPage.insertEntry: new entry, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.pageNumber(), goodSlot);
-		keys[goodSlot] = e.getKey();
-		children[goodSlot] = e.getRightChild().pageNumber();
-		e.setRecordId(new RecordId(pid, goodSlot));
+			// shift entries back or forward to the nearest empty slot to make room for
+			// the new entry while keeping entries in sorted order
+			int goodSlot = directory.makeRoom(rank, 1, numSlots, mover);
+
+			// insert new entry into the correct spot in sorted order
+			markSlotUsed(goodSlot, true);
+			directory.insert(rank, goodSlot, e.getKey());
+			Debug.log(1, "BTreeLeafPage.insertEntry: new entry, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.pageNumber(), goodSlot);
+			keys[goodSlot] = e.getKey();
+			children[goodSlot] = e.getRightChild().pageNumber();
+			e.setRecordId(new RecordId(pid, goodSlot));
+		} finally {
+			latch.writeLock().unlock();
+		}
 	}
 
 	/**
@@ -549,13 +549,37 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of empty slots on this page.
 	 */
 	public int getNumEmptySlots() {
-		int cnt = 0;
-		// start from 1 because the first key slot is not used
-		// since a node with m keys has m+1 pointers
-		for(int i=1; i<numSlots; i++)
-			if(!isSlotUsed(i))
-				cnt++;
-		return cnt;
+		// the first key slot is not used since a node with m keys has m+1 pointers
+		return numSlots - 1 - directory.size();
+	}
+
+	/**
+	 * Find the child to follow to the left-most leaf possibly containing key: the left
+	 * child of the first entry whose key is greater than or equal to key, which is found
+	 * by binary search, or the right child of the last entry if there is none.
+	 * @param key - the key to search for, null for the left-most child
+	 * @return the id of the child, null if the page has no entries
+	 */
+	public BTreePageId findChildId(Field key) {
+		latch.readLock().lock();
+		try {
+			int size = directory.size();
+			if(size == 0) {
+				return null;
+			}
+			int rank = key == null ? 0 : directory.search(key, false);
+			int slot;
+			if(rank == size) {
+				slot = directory.slot(size - 1);
+			}
+			else {
+				// the left child of an entry is in the previous used slot
+				slot = rank > 0 ? directory.slot(rank - 1) : 0;
+			}
+			return new BTreePageId(pid.getTableId(), children[slot], childCategory);
+		} finally {
+			latch.readLock().unlock();
+		}
 	}
 
 	/**
@@ -604,22 +628,27 @@ public class BTreeInternalPage extends BTreePage {
 	 * @throws NoSuchElementException
 	 */
 	protected Field getKey(int i) throws NoSuchElementException {
+		latch.readLock().lock();
+		try {
 
-		// key at slot 0 is not used
-		if (i <= 0 || i >= keys.length)
-			throw new NoSuchElementException();
+			// key at slot 0 is not used
+			if (i <= 0 || i >= keys.length)
+				throw new NoSuchElementException();
 
-		try {
-			if(!isSlotUsed(i)) {
-				Debug.log(1, "BTreeInternalPage.getKey: slot %d in %d:%d is not used", i, pid.getTableId(), pid.pageNumber());
-				return null;
-			}
+			try {
+				if(!isSlotUsed(i)) {
+					Debug.log(1, "BTreeInternalPage.getKey: slot %d in %d:%d is not used", i, pid.getTableId(), pid.pageNumber());
+					return null;
+				}
 
-			Debug.log(1, "BTreeInternalPage.getKey: returning key %d", i);
-			return keys[i];
+				Debug.log(1, "BTreeInternalPage.getKey: returning key %d", i);
+				return keys[i];
 
-		} catch (ArrayIndexOutOfBoundsException e) {
-			throw new NoSuchElementException();
+			} catch (ArrayIndexOutOfBoundsException e) {
+				throw new NoSuchElementException();
+			}
+		} finally {
+			latch.readLock().unlock();
 		}
 	}
 
@@ -630,21 +659,26 @@ public class BTreeInternalPage extends BTreePage {
 	 * @throws NoSuchElementException
 	 */
 	protected BTreePageId getChildId(int i) throws NoSuchElementException {
+		latch.readLock().lock();
+		try {
 
-		if (i < 0 || i >= children.length)
-			throw new NoSuchElementException();
+			if (i < 0 || i >= children.length)
+				throw new NoSuchElementException();
 
-		try {
-			if(!isSlotUsed(i)) {
-				Debug.log(1, "BTreeInternalPage.getChildId: slot %d in %d:%d is not used", i, pid.getTableId(), pid.pageNumber());
-				return null;
-			}
+			try {
+				if(!isSlotUsed(i)) {
+					Debug.log(1, "BTreeInternalPage.getChildId: slot %d in %d:%d is not used", i, pid.getTableId(), pid.pageNumber());
+					return null;
+				}
 
-			Debug.log(1, "BTreeInternalPage.getChildId: returning child id %d", i);
-			return new BTreePageId(pid.getTableId(), children[i], childCategory);
+				Debug.log(1, "BTreeInternalPage.getChildId: returning child id %d", i);
+				return new BTreePageId(pid.getTableId(), children[i], childCategory);
 
-		} catch (ArrayIndexOutOfBoundsException e) {
-			throw new NoSuchElementException();
+			} catch (ArrayIndexOutOfBoundsException e) {
+				throw new NoSuchElementException();
+			}
+		} finally {
+			latch.readLock().unlock();
 		}
 	}
 }
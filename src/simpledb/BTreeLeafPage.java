@@ -19,6 +19,14 @@ public class BTreeLeafPage extends BTreePage {
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
 
+	// the used slots in key order, to search the page by binary search
+	private final BTreeSlotDirectory directory;
+	private final BTreeSlotDirectory.Mover mover = new BTreeSlotDirectory.Mover() {
+		public void move(int from, int to) {
+			moveRecord(from, to);
+		}
+	};
+
 	/**
 	 * Create a BTreeLeafPage from a set of bytes of data read from disk.
 	 * The format of a BTreeLeafPage is a set of header bytes indicating
@@ -82,6 +90,12 @@ public class BTreeLeafPage extends BTreePage {
 		}
 		dis.close();
 
+		directory = new BTreeSlotDirectory(numSlots, td.getFieldType(keyField));
+		for (int i=0; i<tuples.length; i++) {
+			if (isSlotUsed(i))
+				directory.insert(directory.size(), i, tuples[i].getField(keyField));
+		}
+
 		setBeforeImage();
 	}
 
@@ -178,84 +192,89 @@ public class BTreeLeafPage extends BTreePage {
 	 * @return A byte array corresponding to the bytes of this page.
 	 */
 	public byte[] getPageData() {
-		int len = BufferPool.getPageSize();
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-		DataOutputStream dos = new DataOutputStream(baos);
-
-		// write out the parent and sibling pointers
+		latch.readLock().lock();
 		try {
-			dos.writeInt(parent);
+			int len = BufferPool.getPageSize();
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+			DataOutputStream dos = new DataOutputStream(baos);
 
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		try {
-			dos.writeInt(leftSibling);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		try {
-			dos.writeInt(rightSibling);
+			// write out the parent and sibling pointers
+			try {
+				dos.writeInt(parent);
 
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			try {
+				dos.writeInt(leftSibling);
 
-		// create the header of the page
-		for (int i=0; i<header.length; i++) {
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 			try {
-				dos.writeByte(header[i]);
+				dos.writeInt(rightSibling);
+
 			} catch (IOException e) {
-				// this really shouldn't happen
 				e.printStackTrace();
 			}
-		}
 
-		// create the tuples
-		for (int i=0; i<tuples.length; i++) {
+			// create the header of the page
+			for (int i=0; i<header.length; i++) {
+				try {
+					dos.writeByte(header[i]);
+				} catch (IOException e) {
+					// this really shouldn't happen
+					e.printStackTrace();
+				}
+			}
+
+			// create the tuples
+			for (int i=0; i<tuples.length; i++) {
 
-			// empty slot
-			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getSize(); j++) {
+				// empty slot
+				if (!isSlotUsed(i)) {
+					for (int j=0; j<td.getSize(); j++) {
+						try {
+							dos.writeByte(0);
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+
+					}
+					continue;
+				}
+
+				// non-empty slot
+				for (int j=0; j<td.numFields(); j++) {
+					Field f = tuples[i].getField(j);
 					try {
-						dos.writeByte(0);
+						f.serialize(dos);
+
 					} catch (IOException e) {
 						e.printStackTrace();
 					}
-
 				}
-				continue;
 			}
 
-			// non-empty slot
-			for (int j=0; j<td.numFields(); j++) {
-				Field f = tuples[i].getField(j);
-				try {
-					f.serialize(dos);
-
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
+			// padding
+			int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE); //- numSlots * td.getSize();
+			byte[] zeroes = new byte[zerolen];
+			try {
+				dos.write(zeroes, 0, zerolen);
+			} catch (IOException e) {
+				e.printStackTrace();
 			}
-		}
 
-		// padding
-		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE); //- numSlots * td.getSize();
-		byte[] zeroes = new byte[zerolen];
-		try {
-			dos.write(zeroes, 0, zerolen);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+			try {
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 
-		try {
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
+			return baos.toByteArray();
+		} finally {
+			latch.readLock().unlock();
 		}
-
-		return baos.toByteArray();
 	}
 
 	/**
@@ -266,15 +285,21 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param t The tuple to delete
 	 */
 	public void deleteTuple(Tuple t) throws DbException {
-		RecordId rid = t.getRecordId();
-		if(rid == null)
-			throw new DbException("tried to delete tuple with null rid");
-		if((rid.getPageId().pageNumber() != pid.pageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
-			throw new DbException("tried to delete tuple on invalid page or table");
-		if (!isSlotUsed(rid.getTupleNumber()))
-			throw new DbException("tried to delete null tuple.");
-		markSlotUsed(rid.getTupleNumber(), false);
-		t.setRecordId(null);
+		latch.writeLock().lock();
+		try {
+			RecordId rid = t.getRecordId();
+			if(rid == null)
+				throw new DbException("tried to delete tuple with null rid");
+			if((rid.getPageId().pageNumber() != pid.pageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
+				throw new DbException("tried to delete tuple on invalid page or table");
+			if (!isSlotUsed(rid.getTupleNumber()))
+				throw new DbException("tried to delete null tuple.");
+			markSlotUsed(rid.getTupleNumber(), false);
+			directory.remove(directory.rankOf(rid.getTupleNumber()));
+			t.setRecordId(null);
+		} finally {
+			latch.writeLock().unlock();
+		}
 	}
 
 	/**
@@ -286,55 +311,31 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param t The tuple to add.
 	 */
 	public void insertTuple(Tuple t) throws DbException {
-		if (!t.getTupleDesc().equals(td))
-			throw new DbException("type mismatch, in addTuple");
-
-		// find the first empty slot 
-		int emptySlot = -1;
-		for (int i=0; i<numSlots; i++) {
-			if (!isSlotUsed(i)) {
-				emptySlot = i;
-				break;
-			}
-		}
-
-		if (emptySlot == -1)
-			throw new DbException("called addTuple on page with no empty slots.");
-
-		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
-		}
-
-		// shift records back or forward to fill empty slot and make room for new record
-		// while keeping records in sorted order
-		int goodSlot = -1;
-		if(emptySlot < lessOrEqKey) {
-			for(int i = emptySlot; i < lessOrEqKey; i++) {
-				moveRecord(i+1, i);
-			}
-			goodSlot = lessOrEqKey;
-		}
-		else {
-			for(int i = emptySlot; i > lessOrEqKey + 1; i--) {
-				moveRecord(i-1, i);
-			}
-			goodSlot = lessOrEqKey + 1;
+		latch.writeLock().lock();
+		try {
+			if (!t.getTupleDesc().equals(td))
+				throw new DbException("type mismatch, in addTuple");
+
+			if (directory.size() == numSlots)
+				throw new DbException("called addTuple on page with no empty slots.");
+
+			// the new record goes after the last key less than or equal to its key;
+			// shift records back or forward to the nearest empty slot to make room
+			// for it while keeping records in sorted order
+			Field key = t.getField(keyField);
+			int rank = directory.search(key, true);
+			int goodSlot = directory.makeRoom(rank, 0, numSlots, mover);
+
+			// insert new record into the correct spot in sorted order
+			markSlotUsed(goodSlot, true);
+			directory.insert(rank, goodSlot, key);
+			Debug.log(1, "BTreeLeafPage.insertTuple: new tuple, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.pageNumber(), goodSlot);
+			RecordId rid = new RecordId(pid, goodSlot);
+			t.setRecordId(rid);
+			tuples[goodSlot] = t;
+		} finally {
+			latch.writeLock().unlock();
 		}
-
-		// insert new record into the correct spot in sorted order
-		markSlotUsed(goodSlot, true);
-		Debug.log(1, "BTreeLeafPage.insertTuple: new tuple, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.pageNumber(), goodSlot);
-		RecordId rid = new RecordId(pid, goodSlot);
-		t.setRecordId(rid);
-		tuples[goodSlot] = t;
 	}
 
 	/**
@@ -379,17 +380,22 @@ public class BTreeLeafPage extends BTreePage {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setLeftSiblingId(BTreePageId id) throws DbException {
-		if(id == null) {
-			leftSibling = 0;
-		}
-		else {
-			if(id.getTableId() != pid.getTableId()) {
-				throw new DbException("table id mismatch in setLeftSiblingId");
+		latch.writeLock().lock();
+		try {
+			if(id == null) {
+				leftSibling = 0;
 			}
-			if(id.pgcateg() != BTreePageId.LEAF) {
-				throw new DbException("leftSibling must be a leaf node");
+			else {
+				if(id.getTableId() != pid.getTableId()) {
+					throw new DbException("table id mismatch in setLeftSiblingId");
+				}
+				if(id.pgcateg() != BTreePageId.LEAF) {
+					throw new DbException("leftSibling must be a leaf node");
+				}
+				leftSibling = id.pageNumber();
 			}
-			leftSibling = id.pageNumber();
+		} finally {
+			latch.writeLock().unlock();
 		}
 	}
 
@@ -399,17 +405,22 @@ public class BTreeLeafPage extends BTreePage {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setRightSiblingId(BTreePageId id) throws DbException {
-		if(id == null) {
-			rightSibling = 0;
-		}
-		else {
-			if(id.getTableId() != pid.getTableId()) {
-				throw new DbException("table id mismatch in setRightSiblingId");
+		latch.writeLock().lock();
+		try {
+			if(id == null) {
+				rightSibling = 0;
 			}
-			if(id.pgcateg() != BTreePageId.LEAF) {
-				throw new DbException("rightSibling must be a leaf node");
+			else {
+				if(id.getTableId() != pid.getTableId()) {
+					throw new DbException("table id mismatch in setRightSiblingId");
+				}
+				if(id.pgcateg() != BTreePageId.LEAF) {
+					throw new DbException("rightSibling must be a leaf node");
+				}
+				rightSibling = id.pageNumber();
 			}
-			rightSibling = id.pageNumber();
+		} finally {
+			latch.writeLock().unlock();
 		}
 	}
 
@@ -424,11 +435,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * Returns the number of empty slots on this page.
 	 */
 	public int getNumEmptySlots() {
-		int cnt = 0;
-		for(int i=0; i<numSlots; i++)
-			if(!isSlotUsed(i))
-				cnt++;
-		return cnt;
+		return numSlots - directory.size();
 	}
 
 	/**
@@ -459,7 +466,23 @@ public class BTreeLeafPage extends BTreePage {
 	 * (note that this iterator shouldn't return tuples in empty slots!)
 	 */
 	public Iterator<Tuple> iterator() {
-		return new BTreeLeafPageIterator(this);
+		return new BTreeLeafPageIterator(this, 0);
+	}
+
+	/**
+	 * @param key - the key to start from
+	 * @return an iterator over the tuples on this page starting from the first one
+	 * whose key is greater than or equal to key, which is found by binary search
+	 * (calling remove on this iterator throws an UnsupportedOperationException)
+	 */
+	public Iterator<Tuple> iterator(Field key) {
+		latch.readLock().lock();
+		try {
+			int rank = directory.search(key, false);
+			return new BTreeLeafPageIterator(this, rank < directory.size() ? directory.slot(rank) : numSlots);
+		} finally {
+			latch.readLock().unlock();
+		}
 	}
 
 	/**
@@ -477,21 +500,26 @@ public class BTreeLeafPage extends BTreePage {
 	 * @throws NoSuchElementException
 	 */
 	Tuple getTuple(int i) throws NoSuchElementException {
+		latch.readLock().lock();
+		try {
 
-		if (i >= tuples.length)
-			throw new NoSuchElementException();
+			if (i >= tuples.length)
+				throw new NoSuchElementException();
 
-		try {
-			if(!isSlotUsed(i)) {
-				Debug.log(1, "BTreeLeafPage.getTuple: slot %d in %d:%d is not used", i, pid.getTableId(), pid.pageNumber());
-				return null;
-			}
+			try {
+				if(!isSlotUsed(i)) {
+					Debug.log(1, "BTreeLeafPage.getTuple: slot %d in %d:%d is not used", i, pid.getTableId(), pid.pageNumber());
+					return null;
+				}
 
-			Debug.log(1, "BTreeLeafPage.getTuple: returning tuple %d", i);
-			return tuples[i];
+				Debug.log(1, "BTreeLeafPage.getTuple: returning tuple %d", i);
+				return tuples[i];
 
-		} catch (ArrayIndexOutOfBoundsException e) {
-			throw new NoSuchElementException();
+			} catch (ArrayIndexOutOfBoundsException e) {
+				throw new NoSuchElementException();
+			}
+		} finally {
+			latch.readLock().unlock();
 		}
 	}
 }
@@ -500,12 +528,13 @@ public class BTreeLeafPage extends BTreePage {
  * Helper class that implements the Java Iterator for tuples on a BTreeLeafPage.
  */
 class BTreeLeafPageIterator implements Iterator<Tuple> {
-	int curTuple = 0;
+	int curTuple;
 	Tuple nextToReturn = null;
 	BTreeLeafPage p;
 
-	public BTreeLeafPageIterator(BTreeLeafPage p) {
+	public BTreeLeafPageIterator(BTreeLeafPage p, int start) {
 		this.p = p;
+		this.curTuple = start;
 	}
 
 	public boolean hasNext() {
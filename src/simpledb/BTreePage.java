@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
@@ -23,6 +24,8 @@ public abstract class BTreePage implements Page {
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
 	protected final Byte oldDataLock=new Byte((byte)0);
+	// held while the contents are read or changed, see Page#getLatch
+	protected final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
 
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
@@ -61,6 +64,13 @@ public abstract class BTreePage implements Page {
 		return pid;
 	}
 
+	/**
+	 * @return the latch of this page, see Page#getLatch
+	 */
+	public ReentrantReadWriteLock getLatch() {
+		return latch;
+	}
+
 	/**
 	 * Static method to generate a byte array corresponding to an empty
 	 * BTreePage.
@@ -92,20 +102,25 @@ public abstract class BTreePage implements Page {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setParentId(BTreePageId id) throws DbException {
-		if(id == null) {
-			throw new DbException("parent id must not be null");
-		}
-		if(id.getTableId() != pid.getTableId()) {
-			throw new DbException("table id mismatch in setParentId");
-		}
-		if(id.pgcateg() != BTreePageId.INTERNAL && id.pgcateg() != BTreePageId.ROOT_PTR) {
-			throw new DbException("parent must be an internal node or root pointer");
-		}
-		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			parent = 0;
-		}
-		else {
-			parent = id.pageNumber();
+		latch.writeLock().lock();
+		try {
+			if(id == null) {
+				throw new DbException("parent id must not be null");
+			}
+			if(id.getTableId() != pid.getTableId()) {
+				throw new DbException("table id mismatch in setParentId");
+			}
+			if(id.pgcateg() != BTreePageId.INTERNAL && id.pgcateg() != BTreePageId.ROOT_PTR) {
+				throw new DbException("parent must be an internal node or root pointer");
+			}
+			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
+				parent = 0;
+			}
+			else {
+				parent = id.pageNumber();
+			}
+		} finally {
+			latch.writeLock().unlock();
 		}
 	}
 
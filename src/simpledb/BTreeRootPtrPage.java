@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * BTreeRootPtrPage stores the pointer to the root node used in the B+ tree and
@@ -23,6 +24,8 @@ public class BTreeRootPtrPage implements Page {
 	private int header;
 
 	private byte[] oldData;
+	// held while the contents are read or changed, see Page#getLatch
+	private final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
 
 	/**
 	 * Constructor.
@@ -58,6 +61,13 @@ public class BTreeRootPtrPage implements Page {
 		return pid;
 	}
 
+	/**
+	 * @return the latch of this page, see Page#getLatch
+	 */
+	public ReentrantReadWriteLock getLatch() {
+		return latch;
+	}
+
 	/**
 	 * There is only one instance of a BTreeRootPtrPage per table. This static 
 	 * method is separate from getId() in order to maintain the Page interface
@@ -78,38 +88,43 @@ public class BTreeRootPtrPage implements Page {
 	 * @return A byte array corresponding to the bytes of this root pointer page.
 	 */
 	public byte[] getPageData(){
-		int len = PAGE_SIZE;
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-		DataOutputStream dos = new DataOutputStream(baos);
+		latch.readLock().lock();
+		try {
+			int len = PAGE_SIZE;
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+			DataOutputStream dos = new DataOutputStream(baos);
+
+			// write out the root pointer (page number of the root page)
+			try{
+				dos.writeInt(root);
+			}catch(IOException e){
+				e.printStackTrace();
+			}
 
-		// write out the root pointer (page number of the root page)
-		try{
-			dos.writeInt(root);
-		}catch(IOException e){
-			e.printStackTrace();
-		}
+			// write out the category of the root page (leaf or internal)
+			try{
+				dos.writeByte((byte) rootCategory);
+			}catch(IOException e){
+				e.printStackTrace();
+			}
 
-		// write out the category of the root page (leaf or internal)
-		try{
-			dos.writeByte((byte) rootCategory);
-		}catch(IOException e){
-			e.printStackTrace();
-		}
+			// write out the header pointer (page number of the first header page)
+			try{
+				dos.writeInt(header);
+			}catch(IOException e){
+				e.printStackTrace();
+			}
 
-		// write out the header pointer (page number of the first header page)
-		try{
-			dos.writeInt(header);
-		}catch(IOException e){
-			e.printStackTrace();
-		}
+			try {
+				dos.flush();
+			}catch(IOException e) {
+				e.printStackTrace();
+			}
 
-		try {
-			dos.flush();
-		}catch(IOException e) {
-			e.printStackTrace();
+			return baos.toByteArray();
+		} finally {
+			latch.readLock().unlock();
 		}
-
-		return baos.toByteArray();
 	}
 
 	/**
@@ -168,18 +183,23 @@ public class BTreeRootPtrPage implements Page {
 	 * @throws DbException if the id is invalid
 	 */
 	public void setRootId(BTreePageId id) throws DbException {
-		if(id == null) {
-			root = 0;
-		}
-		else {
-			if(id.getTableId() != pid.getTableId()) {
-				throw new DbException("table id mismatch in setRootId");
+		latch.writeLock().lock();
+		try {
+			if(id == null) {
+				root = 0;
 			}
-			if(id.pgcateg() != BTreePageId.INTERNAL && id.pgcateg() != BTreePageId.LEAF) {
-				throw new DbException("root must be an internal node or leaf node");
+			else {
+				if(id.getTableId() != pid.getTableId()) {
+					throw new DbException("table id mismatch in setRootId");
+				}
+				if(id.pgcateg() != BTreePageId.INTERNAL && id.pgcateg() != BTreePageId.LEAF) {
+					throw new DbException("root must be an internal node or leaf node");
+				}
+				root = id.pageNumber();
+				rootCategory = id.pgcateg();
 			}
-			root = id.pageNumber();
-			rootCategory = id.pgcateg();
+		} finally {
+			latch.writeLock().unlock();
 		}
 	}
 
@@ -200,17 +220,22 @@ public class BTreeRootPtrPage implements Page {
 	 * @throws DbException if the id is invalid
 	 */
 	public void setHeaderId(BTreePageId id) throws DbException {
-		if(id == null) {
-			header = 0;
-		}
-		else {
-			if(id.getTableId() != pid.getTableId()) {
-				throw new DbException("table id mismatch in setHeaderId");
+		latch.writeLock().lock();
+		try {
+			if(id == null) {
+				header = 0;
 			}
-			if(id.pgcateg() != BTreePageId.HEADER) {
-				throw new DbException("header must be of type BTreePageId.HEADER");
+			else {
+				if(id.getTableId() != pid.getTableId()) {
+					throw new DbException("table id mismatch in setHeaderId");
+				}
+				if(id.pgcateg() != BTreePageId.HEADER) {
+					throw new DbException("header must be of type BTreePageId.HEADER");
+				}
+				header = id.pageNumber();
 			}
-			header = id.pageNumber();
+		} finally {
+			latch.writeLock().unlock();
 		}
 	}
 
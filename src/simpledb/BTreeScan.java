@@ -60,6 +60,20 @@ public class BTreeScan implements DbIterator {
 		return this.alias;
 	}
 
+	/**
+	 * @return the transaction the scan runs in
+	 */
+	TransactionId getTransactionId() {
+		return this.tid;
+	}
+
+	/**
+	 * @return the index predicate the scan matches, null if it returns all tuples
+	 */
+	public IndexPredicate getIndexPredicate() {
+		return this.ipred;
+	}
+
 	/**
 	 * Reset the tableid, and tableAlias of this operator.
 	 * @param tableid
@@ -77,7 +91,14 @@ public class BTreeScan implements DbIterator {
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
 		if(ipred == null) {
-			this.it = Database.getCatalog().getDbFile(tableid).iterator(tid);
+			// a full scan of a large tree is a bulk read through a private ring
+			BTreeFile bf = (BTreeFile) Database.getCatalog().getDbFile(tableid);
+			if(Database.getBufferPool().isBulkRead(bf.numPages())) {
+				this.it = bf.iterator(tid, new BulkReadRing());
+			}
+			else {
+				this.it = bf.iterator(tid);
+			}
 		}
 		else {
 			this.it = ((BTreeFile) Database.getCatalog().getDbFile(tableid)).indexIterator(tid, ipred);
@@ -0,0 +1,206 @@
+package simpledb;
+
+/**
+ * The used slots of a BTreeLeafPage or BTreeInternalPage in key order, with a
+ * copy of their keys, so that the page is searched by binary search. The pages
+ * keep their entries in key order from slot to slot, with empty slots in
+ * between, so the directory lists the used slots in ascending order. It is not
+ * stored on disk; a page builds it when it is read and keeps it up to date.
+ * <p>
+ * Integer keys are kept as ints, so a search compares primitives and does not
+ * call Field.compare.
+ */
+class BTreeSlotDirectory {
+
+	/**
+	 * Moves the entry of a page from one slot to an empty one, see makeRoom
+	 */
+	interface Mover {
+		void move(int from, int to);
+	}
+
+	private final int[] slots;
+	private final int[] ints; // the keys if they are integers
+	private final Field[] fields; // the keys otherwise
+	private int size;
+
+	/**
+	 * @param capacity - the largest number of entries
+	 * @param keyType - the type of the keys
+	 */
+	BTreeSlotDirectory(int capacity, Type keyType) {
+		this.slots = new int[capacity];
+		if(keyType == Type.INT_TYPE) {
+			this.ints = new int[capacity];
+			this.fields = null;
+		}
+		else {
+			this.ints = null;
+			this.fields = new Field[capacity];
+		}
+	}
+
+	/**
+	 * @return the number of used slots
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return the slot of the entry with the given rank in key order
+	 */
+	int slot(int rank) {
+		return slots[rank];
+	}
+
+	/**
+	 * @return a negative number, zero or a positive number if the key of the entry
+	 * with the given rank is less than, equal to or greater than key
+	 */
+	int compare(int rank, Field key) {
+		if(ints != null) {
+			return Integer.compare(ints[rank], ((IntField) key).getValue());
+		}
+		if(fields[rank].compare(Predicate.Op.LESS_THAN, key)) {
+			return -1;
+		}
+		return fields[rank].compare(Predicate.Op.EQUALS, key) ? 0 : 1;
+	}
+
+	/**
+	 * @param strict - false to find the first key greater than or equal to key,
+	 * true to find the first key greater than key
+	 * @return the rank of that key, size() if there is none
+	 */
+	int search(Field key, boolean strict) {
+		int lo = 0;
+		int hi = size;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int c = compare(mid, key);
+			if(c < 0 || (strict && c == 0)) {
+				lo = mid + 1;
+			}
+			else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * @return the rank of the entry in the given slot, -1 if the slot is not used
+	 */
+	int rankOf(int slot) {
+		int lo = 0;
+		int hi = size - 1;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if(slots[mid] < slot) {
+				lo = mid + 1;
+			}
+			else if(slots[mid] > slot) {
+				hi = mid - 1;
+			}
+			else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Add an entry, the entries from rank on move up by one rank
+	 */
+	void insert(int rank, int slot, Field key) {
+		System.arraycopy(slots, rank, slots, rank + 1, size - rank);
+		slots[rank] = slot;
+		if(ints != null) {
+			System.arraycopy(ints, rank, ints, rank + 1, size - rank);
+			ints[rank] = ((IntField) key).getValue();
+		}
+		else {
+			System.arraycopy(fields, rank, fields, rank + 1, size - rank);
+			fields[rank] = key;
+		}
+		size++;
+	}
+
+	/**
+	 * Remove the entry with the given rank
+	 */
+	void remove(int rank) {
+		size--;
+		System.arraycopy(slots, rank + 1, slots, rank, size - rank);
+		if(ints != null) {
+			System.arraycopy(ints, rank + 1, ints, rank, size - rank);
+		}
+		else {
+			System.arraycopy(fields, rank + 1, fields, rank, size - rank);
+			fields[size] = null;
+		}
+	}
+
+	/**
+	 * Change the key of the entry with the given rank, it must stay in order
+	 */
+	void setKey(int rank, Field key) {
+		if(ints != null) {
+			ints[rank] = ((IntField) key).getValue();
+		}
+		else {
+			fields[rank] = key;
+		}
+	}
+
+	/**
+	 * Find the slot for a new entry of the given rank, between the slots of the
+	 * entries of rank - 1 and rank. If they are next to each other, the entries
+	 * from rank up to the next empty slot move up by one slot, or if there is no
+	 * empty slot above, the entries below rank down to the previous one move down
+	 * by one. mover moves each entry on the page, in an order that only moves
+	 * entries into empty slots.
+	 *
+	 * @param rank - the rank of the new entry
+	 * @param first - the lowest slot the page keeps entries in
+	 * @param end - one past the highest slot
+	 * @param mover - moves the entries on the page
+	 * @return the slot for the new entry, -1 if the page is full
+	 */
+	int makeRoom(int rank, int first, int end, Mover mover) {
+		int prev = rank > 0 ? slots[rank - 1] : first - 1;
+		int next = rank < size ? slots[rank] : end;
+		if(next - prev > 1) {
+			return prev + 1;
+		}
+		if(rank < size) {
+			int last = rank;
+			while(last + 1 < size && slots[last + 1] == slots[last] + 1) {
+				last++;
+			}
+			if(slots[last] + 1 < end) {
+				for(int r = last; r >= rank; r--) {
+					mover.move(slots[r], slots[r] + 1);
+					slots[r]++;
+				}
+				return prev + 1;
+			}
+		}
+		if(rank == 0) {
+			return -1;
+		}
+		int firstOfRun = rank - 1;
+		while(firstOfRun > 0 && slots[firstOfRun - 1] == slots[firstOfRun] - 1) {
+			firstOfRun--;
+		}
+		if(slots[firstOfRun] - 1 < first) {
+			return -1;
+		}
+		for(int r = firstOfRun; r < rank; r++) {
+			mover.move(slots[r], slots[r] - 1);
+			slots[r]--;
+		}
+		return prev;
+	}
+}
@@ -4,6 +4,15 @@ import java.io.*;
 import java.text.MessageFormat;
 import java.util.*;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -29,10 +38,96 @@ public class BufferPool {
 
     public static final int DEAD_LOCK_TIME_OUT = 4000;
 
-    private List<Page> pageList ;
+    /** Longest a getPage waits for a lock, in milliseconds. Deadlocks are found by
+    the waits-for graph of the LockControlBoard right away; this only ends waits
+    for a transaction that never completes, which the graph cannot tell from a
+    long legitimate wait. */
+    public static final int LOCK_WAIT_TIME_OUT = 30000;
+
+    /** Default number of pages a sequential scan reads ahead of itself. */
+    public static final int DEFAULT_READ_AHEAD_PAGES = 8;
+
+    /** Number of background threads issuing read-ahead reads, shared by all pools. */
+    public static final int READ_AHEAD_THREADS = 2;
+
+    private static final ExecutorService readAheadExecutor =
+            Executors.newFixedThreadPool(READ_AHEAD_THREADS, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "simpledb-read-ahead");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /*
+    * page table: PageId -> cached page, so that a hit, a miss, discardPage and
+    * flushPage are all a single hash lookup instead of a walk over the pool.
+    * the replacement order is kept apart by the replacement policy.
+    * */
+    private final ConcurrentHashMap<PageId, Page> pageTable;
+    private final ReplacementPolicy policy;
     private int max_page_num;
     public LockControlBoard controlBoard;
 
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /*
+    * read-ahead staging area: pages requested by readAhead are read in the
+    * background and parked here, outside the pool, until a miss on them takes
+    * them out. insertion ordered so that pages nobody asked for in the end
+    * (e.g. a scan that stopped early) are dropped oldest first.
+    * */
+    private final LinkedHashMap<PageId, Future<Page>> staged = new LinkedHashMap<>();
+    private volatile int readAheadWindow = DEFAULT_READ_AHEAD_PAGES;
+
+    /*
+    * tuples inserted and deleted under record locks (see getPageForRecordWrite),
+    * by transaction, oldest first. pages with such changes are not dropped on
+    * abort, the changes are taken back one by one instead, since the page may
+    * hold changes of other transactions too.
+    * */
+    private final ConcurrentHashMap<TransactionId, ConcurrentLinkedDeque<RecordUpdate>> recordUpdates = new ConcurrentHashMap<>();
+
+    private static class RecordUpdate {
+        final TransactionId tid;
+        final HeapPage page;
+        // a copy of the tuple, with its RecordId
+        final Tuple tuple;
+        final boolean insert;
+
+        RecordUpdate(TransactionId tid, HeapPage page, Tuple t, boolean insert) {
+            this.tid = tid;
+            this.page = page;
+            this.insert = insert;
+            tuple = new Tuple(t.getTupleDesc());
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+                tuple.setField(i, t.getField(i));
+            }
+            tuple.setRecordId(t.getRecordId());
+        }
+
+        /** take the change back out of p, the page or a copy of it */
+        void undo(HeapPage p) throws DbException {
+            if (insert) {
+                p.deleteTuple(tuple);
+            } else {
+                Tuple t = new Tuple(tuple.getTupleDesc());
+                for (int i = 0; i < tuple.getTupleDesc().numFields(); i++) {
+                    t.setField(i, tuple.getField(i));
+                }
+                p.insertTuple(t, tuple.getRecordId().getTupleNumber());
+            }
+        }
+    }
+
+    /*
+    * read-only transactions reading a snapshot instead of locking, with their
+    * snapshot, and the old page versions they may still ask for.
+    * */
+    private final ConcurrentHashMap<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+    private final VersionStore versions = new VersionStore();
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
@@ -41,7 +136,20 @@ public class BufferPool {
      * when launch a new bufferpool, create a new board.
      */
     public BufferPool(int numPages) {
-        pageList = Collections.synchronizedList(new LinkedList<Page>());
+        this(numPages, new LRUPolicy());
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and evicts
+     * according to the given replacement policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy decides which page is evicted when the pool is full,
+     *               e.g. LRUPolicy, ClockPolicy, LRUKPolicy, TwoQPolicy
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
+        pageTable = new ConcurrentHashMap<>(numPages);
+        this.policy = policy;
         max_page_num = numPages;
         controlBoard = new LockControlBoard();
     }
@@ -71,9 +179,13 @@ public class BufferPool {
      * space in the buffer pool, an page should be evicted and the new page
      * should be added in its place.
      *
-     * Lock is detected by time, assuming that withing such time limit,
-     * if the lock is not obtained then it is a deadlock, Abort the running
-     * transaction (by @throw the TransactionAbortException)
+     * Deadlock is detected when the request has to wait and it closes a cycle
+     * in the waits-for graph; the youngest transaction of the cycle is aborted
+     * (by @throw the TransactionAbortException), the others go on waiting.
+     *
+     * A transaction reading a snapshot (see beginSnapshot) takes no lock and
+     * never waits; it gets its own copy of the page as of its snapshot, which
+     * is not cached in the pool.
      *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
@@ -81,26 +193,58 @@ public class BufferPool {
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
-        for (Page pg : pageList) {
-            if (pg.getId().equals(pid)) {
-                lockPage(tid, pid, perm);
-                moveAroundPage(pg);
-                return pg;
-            }
+        Long snapshot = snapshots.get(tid);
+        if (snapshot != null) {
+            return snapshotPage(pid, perm, snapshot);
         }
-        // if the page is not in bufferpool, there must be no lock on it
-        DbFile dbfile = Database.getCatalog().getDbFile(pid.getTableId());
-        Page noExistPage = dbfile.readPage(pid);
         lockPage(tid, pid, perm);
-        if (pageList.size() < max_page_num) {
-            pageList.add(pageList.size(), noExistPage);
-            return noExistPage;
-        } else {
-            /*Eviction Policy afterwards */
-            evictPage();
-            pageList.add(pageList.size(), noExistPage);
-            return noExistPage;
+        return fetchPage(pid);
+    }
+
+    /**
+     * Like getPage, but never waits for the lock.
+     * @return the page, or null if the lock can not be granted right now
+     */
+    public Page tryGetPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        Long snapshot = snapshots.get(tid);
+        if (snapshot != null) {
+            return snapshotPage(pid, perm, snapshot);
+        }
+        Lock.LOCKTYPE type = perm == Permissions.READ_ONLY ?
+                Lock.LOCKTYPE.SHARE_LOCK : Lock.LOCKTYPE.EXCLUSIVE_LOCK;
+        if (new Lock(tid, pid, type).inilize(pid, controlBoard) < 0) {
+            return null;
+        }
+        return fetchPage(pid);
+    }
+
+    private Page fetchPage(PageId pid) throws DbException {
+        Page pg = pageTable.get(pid);
+        if (pg != null) {
+            hitCount.incrementAndGet();
+            policy.pageAccessed(pid);
+            return pg;
+        }
+        // the page is not in bufferpool, load it; double check under the pool monitor
+        // so that two transactions missing on the same page do not both read it in.
+        synchronized (this) {
+            pg = pageTable.get(pid);
+            if (pg != null) {
+                hitCount.incrementAndGet();
+                policy.pageAccessed(pid);
+                return pg;
+            }
+            missCount.incrementAndGet();
+            pg = loadPage(pid);
+            if (pageTable.size() >= max_page_num) {
+                /*Eviction Policy afterwards */
+                evictPage();
+            }
+            pageTable.put(pid, pg);
+            policy.pageAdded(pid);
         }
+        return pg;
     }
 
     private void lockPage(TransactionId tid, PageId pid, Permissions perm)
@@ -111,32 +255,317 @@ public class BufferPool {
             } else {
                 lock = new Lock(tid, pid, Lock.LOCKTYPE.EXCLUSIVE_LOCK);
             }
-        long timeOutLimit = System.currentTimeMillis() + DEAD_LOCK_TIME_OUT;
+        // the request waits in the page's queue, without spinning, until it is
+        // granted or its transaction is aborted to break a deadlock
+        lock.acquire(pid, controlBoard, LOCK_WAIT_TIME_OUT);
+    }
+
+    /**
+     * Retrieve a heap page to insert or delete single tuples of. The page is only
+     * locked in intention exclusive mode, so transactions changing different
+     * tuples of it do not wait for each other; the caller locks each tuple it
+     * changes (lockRecord, tryLockRecord), changes the page holding its write latch,
+     * and reports the change with recordInserted or recordDeleted.
+     * <p>
+     * Such a page may hold the changes of several running transactions. An abort
+     * takes back only its own changes, and a commit writes the page without the
+     * changes of the others.
+     */
+    public Page getPageForRecordWrite(TransactionId tid, PageId pid)
+            throws TransactionAbortedException, DbException {
+        if (snapshots.containsKey(tid)) {
+            throw new DbException("a snapshot transaction can only read");
+        }
+        new Lock(tid, pid, Lock.LOCKTYPE.INTENTION_EXCLUSIVE_LOCK).acquire(pid, controlBoard, LOCK_WAIT_TIME_OUT);
+        return fetchPage(pid);
+    }
+
+    /** lock the tuple exclusively, waiting if another transaction holds it */
+    public void lockRecord(TransactionId tid, RecordId rid)
+            throws TransactionAbortedException, DbException {
+        RecordLockId r = new RecordLockId(rid);
+        new Lock(tid, r, Lock.LOCKTYPE.EXCLUSIVE_LOCK).acquire(r, controlBoard, LOCK_WAIT_TIME_OUT);
+    }
+
+    /**
+     * lock the tuple exclusively if that is possible without waiting
+     * @return true if tid holds the lock now
+     */
+    public boolean tryLockRecord(TransactionId tid, RecordId rid)
+            throws TransactionAbortedException, DbException {
+        RecordLockId r = new RecordLockId(rid);
+        return new Lock(tid, r, Lock.LOCKTYPE.EXCLUSIVE_LOCK).inilize(r, controlBoard) > 0;
+    }
+
+    /** tid has put t into page (a page from getPageForRecordWrite), call holding its write latch */
+    public void recordInserted(TransactionId tid, HeapPage page, Tuple t) {
+        addRecordUpdate(new RecordUpdate(tid, page, t, true));
+    }
+
+    /** tid has taken t out of page (a page from getPageForRecordWrite), call holding its write latch */
+    public void recordDeleted(TransactionId tid, HeapPage page, Tuple t) {
+        addRecordUpdate(new RecordUpdate(tid, page, t, false));
+    }
+
+    private void addRecordUpdate(RecordUpdate u) {
+        ConcurrentLinkedDeque<RecordUpdate> updates = recordUpdates.get(u.tid);
+        if (updates == null) {
+            recordUpdates.putIfAbsent(u.tid, new ConcurrentLinkedDeque<RecordUpdate>());
+            updates = recordUpdates.get(u.tid);
+        }
+        updates.addLast(u);
+    }
+
+    /**
+     * @return the changes of transactions other than tid to the page that are
+     * not committed yet, oldest first per transaction. call holding its write latch
+     */
+    private List<RecordUpdate> pendingUpdates(HeapPage page, TransactionId tid) {
+        List<RecordUpdate> pending = new ArrayList<>();
+        for (Map.Entry<TransactionId, ConcurrentLinkedDeque<RecordUpdate>> e : recordUpdates.entrySet()) {
+            if (e.getKey().equals(tid)) {
+                continue;
+            }
+            for (RecordUpdate u : e.getValue()) {
+                if (u.page.getId().equals(page.getId())) {
+                    pending.add(u);
+                }
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Make tid a read-only transaction that reads a consistent snapshot of the
+     * database, the state after the last commit that finished before this call.
+     * It takes no locks, so it never waits for writers and writers never wait for
+     * it; asking for a page READ_WRITE is an error. Call it before tid reads
+     * anything. The snapshot ends with transactionComplete.
+     * <p>
+     * Each commit keeps the before-images of the pages it writes (the last
+     * committed contents, which every page already maintains for the log) while
+     * snapshots older than it run. A page no commit has replaced since the
+     * snapshot is read from the before-image of the cached page, or from disk: by
+     * NO STEAL a page on disk only ever holds committed data.
+     */
+    public void beginSnapshot(TransactionId tid) {
+        snapshots.put(tid, versions.begin());
+    }
+
+    /** @return number of old page versions kept for running snapshots */
+    public int getVersionCount() {
+        return versions.size();
+    }
+
+    private Page snapshotPage(PageId pid, Permissions perm, long snapshot) throws DbException {
+        if (perm != Permissions.READ_ONLY) {
+            throw new DbException("a snapshot transaction can only read");
+        }
         while (true) {
-            // deal with deadlock with time detection and self-borting
-            long timeWaited = timeOutLimit - System.currentTimeMillis();
-            if (timeWaited < 0) {
-                throw new TransactionAbortedException();
+            long commits = versions.startedCommits();
+            Page pg = versions.lookup(pid, snapshot);
+            if (pg != null) {
+                return pg;
             }
-            int res = lock.inilize(pid, controlBoard);
-            if (res > 0) {
-                return;
+            Page cached = pageTable.get(pid);
+            if (cached != null) {
+                pg = cached.getBeforeImage();
             } else {
-                continue;
+                pg = loadPage(pid);
+                DbFile f = Database.getCatalog().getDbFile(pid.getTableId());
+                if (f instanceof HeapFile && ((HeapFile) f).isMapped()) {
+                    // the page reads the mapping, which the next commit of the page
+                    // writes over; its before-image is a copy
+                    pg = pg.getBeforeImage();
+                }
+            }
+            // a commit that started meanwhile may have changed what was read, its
+            // versions are recorded now so the next round finds them
+            if (versions.startedCommits() == commits) {
+                return pg;
             }
         }
     }
 
     /**
-     * serve for evistion policy
-     * whenever a page is get accessed
-     * move it to the very last of the list.
+     * Retrieve a page for a bulk read (a large scan).
+     * Locks the page like {@link #getPage(TransactionId, PageId, Permissions)}.
+     * A page that is already cached is returned from the pool. Otherwise it is read
+     * into the scan's private ring and never enters the pool or the replacement
+     * policy, so the scan does not push out the pages other transactions use.
+     * <p>
+     * Only READ_ONLY requests use the ring; READ_WRITE requests and a null ring
+     * fall back to the normal getPage.
      *
+     * @param ring the scan's private ring of frames, may be null
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, BulkReadRing ring)
+            throws TransactionAbortedException, DbException {
+        if (ring == null || perm != Permissions.READ_ONLY || snapshots.containsKey(tid)) {
+            return getPage(tid, pid, perm);
+        }
+        lockPage(tid, pid, perm);
+        Page pg = pageTable.get(pid);
+        if (pg == null) {
+            pg = ring.get(pid);
+        }
+        if (pg != null) {
+            hitCount.incrementAndGet();
+            return pg;
+        }
+        missCount.incrementAndGet();
+        pg = loadPage(pid);
+        ring.put(pg);
+        return pg;
+    }
+
+    /**
+     * read a page that missed in the pool, from the read-ahead staging area if
+     * a background read for it was issued, otherwise synchronously from disk.
+     */
+    private Page loadPage(PageId pid) {
+        Future<Page> pending;
+        synchronized (staged) {
+            pending = staged.remove(pid);
+        }
+        if (pending != null) {
+            try {
+                Page pg = pending.get();
+                if (pg != null) {
+                    return pg;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // the background read failed, retry it in this thread below
+            }
+        }
+        DbFile dbfile = Database.getCatalog().getDbFile(pid.getTableId());
+        return dbfile.readPage(pid);
+    }
+
+    /**
+     * Hint that the page will be asked for soon: if it is neither cached nor
+     * already being read ahead, read it from disk in the background so that the
+     * later getPage finds it staged instead of waiting for the disk.
+     * <p>
+     * No lock is taken here, the page only becomes visible to a transaction through
+     * getPage, which locks it as usual. Staged pages do not count against the pool
+     * size and are not seen by the replacement policy until they are asked for;
+     * at most numPages of them are kept.
+     *
+     * @param pid the page to read ahead
+     */
+    public void readAhead(final PageId pid) {
+        if (pageTable.containsKey(pid)) {
+            return;
+        }
+        synchronized (staged) {
+            if (staged.containsKey(pid)) {
+                return;
+            }
+            if (staged.size() >= max_page_num) {
+                Iterator<Map.Entry<PageId, Future<Page>>> oldest = staged.entrySet().iterator();
+                oldest.next().getValue().cancel(false);
+                oldest.remove();
+            }
+            final DbFile dbfile = Database.getCatalog().getDbFile(pid.getTableId());
+            staged.put(pid, readAheadExecutor.submit(new Callable<Page>() {
+                public Page call() {
+                    return dbfile.readPage(pid);
+                }
+            }));
+        }
+    }
+
+    /**
+     * Look at a page without locking it and without caching it, for decisions
+     * that only need a hint, e.g. which pages to read ahead. Returns the cached
+     * page itself if it is clean, otherwise reads the page from disk; a page that
+     * some transaction has marked dirty is not looked at and null is returned.
+     * <p>
+     * A cached page is shared with the transactions using it and can start being
+     * modified at any time: hold its read latch (Page#getLatch) while reading
+     * more than one thing from it. The result may be out of date as soon as it
+     * is returned, never use it to answer a query.
+     *
+     * @param pid the page to look at
+     * @return the cached page, a page read from disk, or null if it is dirty
+     */
+    public Page peekPage(PageId pid) {
+        Page pg = pageTable.get(pid);
+        if (pg != null) {
+            return pg.isDirty() == null ? pg : null;
+        }
+        DbFile dbfile = Database.getCatalog().getDbFile(pid.getTableId());
+        return dbfile.readPage(pid);
+    }
+
+    /**
+     * drop a staged read-ahead copy of the page, it is stale once the page has
+     * been written or discarded.
+     */
+    private void unstage(PageId pid) {
+        Future<Page> pending;
+        synchronized (staged) {
+            pending = staged.remove(pid);
+        }
+        if (pending != null) {
+            pending.cancel(false);
+        }
+    }
+
+    /**
+     * @return how many pages a sequential scan reads ahead of the page it is on
+     */
+    public int getReadAheadWindow() {
+        return readAheadWindow;
+    }
+
+    /**
+     * Set how many pages a sequential scan reads ahead of the page it is on,
+     * 0 turns read-ahead off.
+     */
+    public void setReadAheadWindow(int pages) {
+        if (pages < 0) {
+            throw new IllegalArgumentException("read-ahead window can not be negative");
+        }
+        readAheadWindow = pages;
+    }
+
+    /**
+     * A scan should use a BulkReadRing when the table is larger than the whole
+     * pool. Caching it could not help the next scan and would only push out
+     * every other page, tables that fit are still cached.
+     *
+     * @param tablePages number of pages the scan will read
+     */
+    public boolean isBulkRead(int tablePages) {
+        return tablePages > max_page_num;
+    }
+
+    /** @return maximum number of pages in this buffer pool */
+    public int getNumPages() {
+        return max_page_num;
+    }
+
+    /**
+     * drop a page from the page table and tell the replacement policy.
      * */
-    private void moveAroundPage(Page pg) {
-       pageList.remove(pg);
-       pageList.add(pageList.size(), pg);
-       return;
+    private void removeFromPool(PageId pid) {
+        if (pageTable.remove(pid) != null) {
+            policy.pageRemoved(pid);
+        }
+    }
+
+    /** @return number of getPage calls served from the pool */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /** @return number of getPage calls that had to read the page from disk */
+    public long getMissCount() {
+        return missCount.get();
     }
 
     /**
@@ -172,6 +601,15 @@ public class BufferPool {
         return controlBoard.holdsLock(tid, p);
     }
 
+    /**
+     * @param topN the number of most contended pages to list
+     * @return the lock counters of the lock manager and the transactions waiting
+     * for a lock right now, see LockStats
+     */
+    public LockStats.Snapshot getLockStats(int topN) {
+        return controlBoard.snapshot(topN);
+    }
+
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
@@ -183,33 +621,140 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        Long snapshot = snapshots.remove(tid);
+        if (snapshot != null) {
+            versions.end(snapshot);
+        }
+        // pages tid changed tuples of under record locks
+        Set<HeapPage> recordPages = new LinkedHashSet<>();
+        ConcurrentLinkedDeque<RecordUpdate> updates = recordUpdates.remove(tid);
+        if (updates != null) {
+            for (RecordUpdate u : updates) {
+                recordPages.add(u.page);
+            }
+        }
         if (commit) {
-            for (Page p: pageList) {
-                if (p.isDirty() == tid) {
+            // keep the versions this commit replaces for the snapshots that began
+            // before it, until it is done
+            ArrayList<Page> written = new ArrayList<>();
+            ArrayList<Page> replaced = new ArrayList<>();
+            for (Page p : recordPages) {
+                replaced.add(p.getBeforeImage());
+            }
+            for (Page p: pageTable.values()) {
+                if (p.isDirty() == tid && !recordPages.contains(p)) {
+                    written.add(p);
+                    replaced.add(p.getBeforeImage());
+                }
+            }
+            if (!replaced.isEmpty()) {
+                long commitNo = versions.beginCommit(replaced);
+                for (HeapPage p : recordPages) {
+                    commitRecordPage(tid, p);
+                }
+                for (Page p : written) {
                     flushPage(p.getId());
 
                     // use current page contents as the before-image
                     // for the next transaction that modifies this page.
                     p.setBeforeImage();
                 }
+                versions.endCommit(commitNo);
             }
             controlBoard.closeLock(tid);
+            // the slots of the tuples tid deleted are free for good now. an inserter
+            // that found them still locked has marked their pages full meanwhile
+            if (updates != null) {
+                for (RecordUpdate u : updates) {
+                    if (!u.insert) {
+                        slotFreed(u.page);
+                    }
+                }
+            }
         }
         // if it is aborted, then delete all dirty page, need to get from disk if
         // it is asked again, which is unchanged
         else {
-            List<Page> pageListCopy = Collections.synchronizedList(new LinkedList<>());
-            for (Page p : pageList) {
-                if (p.isDirty() == null || p.isDirty() != tid) {
-                    pageListCopy.add(pageListCopy.size(), p);
+            // except the pages changed under record locks, other transactions may
+            // have changed them too. take back tid's changes newest first
+            if (updates != null) {
+                Iterator<RecordUpdate> it = updates.descendingIterator();
+                while (it.hasNext()) {
+                    RecordUpdate u = it.next();
+                    u.page.getLatch().writeLock().lock();
+                    try {
+                        u.undo(u.page);
+                    } catch (DbException e) {
+                        throw new RuntimeException("can not roll back " + u.tuple.getRecordId(), e);
+                    } finally {
+                        u.page.getLatch().writeLock().unlock();
+                    }
+                    if (u.insert) {
+                        slotFreed(u.page);
+                    }
+                }
+                for (HeapPage p : recordPages) {
+                    p.getLatch().writeLock().lock();
+                    try {
+                        List<RecordUpdate> pending = pendingUpdates(p, tid);
+                        if (pending.isEmpty()) {
+                            p.markDirty(false, null);
+                        } else {
+                            p.markDirty(true, pending.get(0).tid);
+                        }
+                    } finally {
+                        p.getLatch().writeLock().unlock();
+                    }
+                }
+            }
+            for (Page p : pageTable.values()) {
+                if (p.isDirty() == tid && !recordPages.contains(p)) {
+                    removeFromPool(p.getId());
                 }
             }
             controlBoard.closeLock(tid);
-            pageList = pageListCopy;
         }
 
     }
 
+    /** tell the file of page that a slot of it is empty, see HeapFile.slotFreed */
+    private void slotFreed(HeapPage page) {
+        DbFile f = Database.getCatalog().getDbFile(page.getId().getTableId());
+        ((HeapFile) f).slotFreed(page.getId().pageNumber());
+    }
+
+    /**
+     * write a page tid changed tuples of under record locks at its commit. if
+     * other transactions that are still running changed the page too, what is
+     * logged and written is a copy without their changes, and the page stays
+     * dirty for them.
+     */
+    private void commitRecordPage(TransactionId tid, HeapPage page) throws IOException {
+        page.getLatch().writeLock().lock();
+        try {
+            List<RecordUpdate> pending = pendingUpdates(page, tid);
+            if (pending.isEmpty()) {
+                writePage(tid, page, page);
+                page.markDirty(false, null);
+                page.setBeforeImage();
+                return;
+            }
+            HeapPage committed = new HeapPage(page.getId(), page.getPageData());
+            try {
+                for (int i = pending.size() - 1; i >= 0; i--) {
+                    pending.get(i).undo(committed);
+                }
+            } catch (DbException e) {
+                throw new IOException("can not separate the changes of " + tid, e);
+            }
+            writePage(tid, page, committed);
+            page.setBeforeImage(committed);
+            page.markDirty(true, pending.get(0).tid);
+        } finally {
+            page.getLatch().writeLock().unlock();
+        }
+    }
+
     /**
      * Add a tuple to the specified table behalf of transaction tid.  Will
      * acquire a write lock on the page the tuple is added to(Lock
@@ -220,6 +765,9 @@ public class BufferPool {
      * their markDirty bit, and updates cached versions of any pages that have
      * been dirtied so that future requests see up-to-date pages.
      *
+     * The secondary indexes of the table (see Catalog.addIndex) get an entry
+     * for the tuple in the same transaction.
+     *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
      * @param t the tuple to add
@@ -238,6 +786,9 @@ public class BufferPool {
             //f.writePage(p);
             //p.markDirty(false, tid);
         }
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            index.insert(tid, t);
+        }
         return;
     }
 
@@ -251,17 +802,30 @@ public class BufferPool {
      * been dirtied, as it is not possible that a new page was created during the deletion
      * (note difference from addTuple).
      *
+     * The entries of the tuple in the secondary indexes of the table are removed
+     * in the same transaction.
+     *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
      */
     public void deleteTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
-        int tableid = t.getRecordId().getPageId().getTableId();
+        RecordId rid = t.getRecordId();
+        int tableid = rid.getPageId().getTableId();
         DbFile f = Database.getCatalog().getDbFile(tableid);
+        List<SecondaryIndex> indexes = Database.getCatalog().getIndexes(tableid);
+        // the keys as they were, the tuple may read its fields from the page
+        Field[] keys = new Field[indexes.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = t.getField(indexes.get(i).getField());
+        }
         ArrayList<Page> plst = f.deleteTuple(tid, t);
         for (Page p : plst) {
             p.markDirty(true, tid);
         }
+        for (int i = 0; i < keys.length; i++) {
+            indexes.get(i).delete(tid, keys[i], rid);
+        }
     }
 
     /**
@@ -270,7 +834,7 @@ public class BufferPool {
      *     break simpledb if running in NO STEAL mode.
      */
     public synchronized void flushAllPages() throws IOException {
-        for (Page p : pageList) {
+        for (Page p : pageTable.values()) {
             if (p.isDirty() != null) {
                 flushPage(p.getId());
             }
@@ -285,13 +849,8 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // some code goes here
         // only necessary for lab5
-        List<Page> pageListCp = Collections.synchronizedList(new LinkedList<>());
-        for (Page pg : pageList) {
-            if (!(pg.getId().equals(pid))) {
-                pageListCp.add(pg);
-            }
-        }
-        pageList = pageListCp;
+        removeFromPool(pid);
+        unstage(pid);
     }
 
     /**
@@ -299,24 +858,32 @@ public class BufferPool {
      * @param pid an ID indicating the page to flush
      */
     private synchronized void flushPage(PageId pid) throws IOException {
-        for (Page pg : pageList) {
-            if (pg.getId().equals(pid)) {
-                TransactionId dirtier = pg.isDirty();
-                if (dirtier != null) {
-                    // append an update record to the log, with
-                    // a before-image and after-image.
-                    Database.getLogFile().logWrite(dirtier, pg.getBeforeImage(), pg);
-                    // We force the log to ensure the log record is on disk before the page is written to disk.
-                    Database.getLogFile().force();
-
-                    DbFile hf = Database.getCatalog().getDbFile(pid.getTableId());
-                    hf.writePage(pg);
-                    pg.markDirty(false, null);
-                }
-            }
+        Page pg = pageTable.get(pid);
+        if (pg == null) {
+            return;
+        }
+        TransactionId dirtier = pg.isDirty();
+        if (dirtier != null) {
+            writePage(dirtier, pg, pg);
+            pg.markDirty(false, null);
         }
     }
 
+    /**
+     * write image, the contents pg is to have on disk, as an update of tid
+     */
+    private void writePage(TransactionId tid, Page pg, Page image) throws IOException {
+        // append an update record to the log, with
+        // a before-image and after-image.
+        Database.getLogFile().logWrite(tid, pg.getBeforeImage(), image);
+        // We force the log to ensure the log record is on disk before the page is written to disk.
+        Database.getLogFile().force();
+
+        DbFile hf = Database.getCatalog().getDbFile(pg.getId().getTableId());
+        hf.writePage(image);
+        unstage(pg.getId());
+    }
+
     /** Write all pages of the specified transaction to disk.
      */
     public synchronized  void flushPages(TransactionId tid) throws IOException {
@@ -328,9 +895,7 @@ public class BufferPool {
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
      * Eviction Policy :
-     *  LRU
-     *  implementation detail:
-     *  FIFO for arraylist.
+     *  decided by the ReplacementPolicy given to the constructor, LRU by default.
      *
      *  add-on Lock feature:
      *  if the page is dirty, because of NO-STEAL policy it is remain in the memory, and check the next page
@@ -347,24 +912,18 @@ public class BufferPool {
      *  and as long as none of your operator implementations keep references to Page objects which have been evicted.
      */
     private void evictPage() throws DbException {
-        Page removePage = null;
-        for (Page intentRmPage : pageList) {
-            // if the page is not locked by any page or page is not dirty.
-            if (intentRmPage.isDirty() == null) {
-                removePage = intentRmPage;
-                break;
+        // the policy picks the victim, only dirty pages are ruled out
+        PageId removeId = policy.chooseVictim(new ReplacementPolicy.Evictable() {
+            public boolean canEvict(PageId pid) {
+                Page intentRmPage = pageTable.get(pid);
+                return intentRmPage != null && intentRmPage.isDirty() == null;
             }
-        }
-        if (removePage == null) {
+        });
+        if (removeId == null) {
             throw new DbException("fail to evit pages");
         } else {
-            pageList.remove(removePage);
-            controlBoard.recordCleanEvictPage(removePage.getId());
-        }
-        try {
-            flushPage(removePage.getId());
-        } catch (IOException e) {
-            e.printStackTrace();
+            removeFromPool(removeId);
+            controlBoard.recordCleanEvictPage(removeId);
         }
 
         /*
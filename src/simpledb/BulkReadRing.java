@@ -0,0 +1,85 @@
+package simpledb;
+
+import java.util.HashMap;
+
+/**
+ * BulkReadRing is the "bulk read" access strategy for large scans.
+ * Pages that a scan has to read from disk are kept in a small private ring
+ * of frames instead of the shared buffer pool, and the oldest frame is reused
+ * for the next page. A scan over a table much larger than the pool therefore
+ * does not push out the pages that point queries need.
+ * <p>
+ * Pages that are already in the buffer pool are still served from there, so
+ * a scan always sees the cached (possibly dirty) copy of a page.
+ * A ring belongs to one iterator and is not thread safe.
+ *
+ * @see BufferPool#getPage(TransactionId, PageId, Permissions, BulkReadRing)
+ */
+public class BulkReadRing {
+
+    /** Default number of frames in a ring. */
+    public static final int DEFAULT_RING_PAGES = 8;
+
+    private final Page[] frames;
+    private final HashMap<PageId, Integer> frameOf;
+    private int next;
+
+    public BulkReadRing() {
+        this(DEFAULT_RING_PAGES);
+    }
+
+    /**
+     * @param numPages number of frames in the ring
+     */
+    public BulkReadRing(int numPages) {
+        if (numPages < 1) {
+            throw new IllegalArgumentException("a ring needs at least one frame");
+        }
+        frames = new Page[numPages];
+        frameOf = new HashMap<>();
+        next = 0;
+    }
+
+    /**
+     * @return the page if it is in one of the ring frames, otherwise null
+     */
+    public Page get(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame == null) {
+            return null;
+        }
+        return frames[frame];
+    }
+
+    /**
+     * put a page into the ring, reusing the oldest frame.
+     */
+    public void put(Page page) {
+        Integer frame = frameOf.get(page.getId());
+        if (frame == null) {
+            frame = next;
+            next = (next + 1) % frames.length;
+            if (frames[frame] != null) {
+                frameOf.remove(frames[frame].getId());
+            }
+            frameOf.put(page.getId(), frame);
+        }
+        frames[frame] = page;
+    }
+
+    /** @return number of frames in the ring */
+    public int size() {
+        return frames.length;
+    }
+
+    /**
+     * forget all pages, called when the owning scan is rewound or closed.
+     */
+    public void clear() {
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = null;
+        }
+        frameOf.clear();
+        next = 0;
+    }
+}
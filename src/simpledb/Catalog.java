@@ -18,6 +18,8 @@ import java.lang.Integer;
  */
 public class Catalog {
     private HashMap<Integer, tableContent> tableBoard;
+    // the secondary indexes of each table that has any
+    private HashMap<Integer, List<SecondaryIndex>> indexBoard;
 
     /**
      * Constructor.
@@ -39,6 +41,7 @@ public class Catalog {
 
     public Catalog() {
         this.tableBoard = new HashMap<>();
+        this.indexBoard = new HashMap<>();
     }
 
     /**
@@ -55,6 +58,7 @@ public class Catalog {
         for (HashMap.Entry<Integer, tableContent> entry : tableBoard.entrySet()) {
             if (entry.getValue().name.equals(name)) {
                 tableBoard.remove(entry.getKey());
+                indexBoard.remove(entry.getKey());
                 tableBoard.put(file.getId(), content);
                 return;
             }
@@ -145,13 +149,71 @@ public class Catalog {
         }
     }
     
+    /**
+     * Add a secondary index on a field of a HeapFile table. The index is a
+     * BTreeFile in the given file, added to the catalog as a table of its own
+     * named tablename_fieldname_idx. If the file is empty the index is built
+     * from the tuples in the table, otherwise it must be an index built before.
+     * From then on BufferPool.insertTuple and deleteTuple keep it up to date.
+     * @param tableid the table to index
+     * @param field the index of the field to index
+     * @param f the file of the index
+     * @return the index
+     * @throws NoSuchElementException if the table doesn't exist
+     * @throws DbException if the table is not a HeapFile or already has an
+     *    index on the field
+     * @see SecondaryIndex
+     */
+    public SecondaryIndex addIndex(int tableid, int field, File f)
+            throws NoSuchElementException, DbException, IOException {
+        DbFile file = getDbFile(tableid);
+        if (!(file instanceof HeapFile)) {
+            throw new DbException("secondary indexes are only supported on HeapFiles");
+        }
+        if (getIndex(tableid, field) != null) {
+            throw new DbException("table " + getTableName(tableid) + " already has an index on field " + field);
+        }
+        String name = getTableName(tableid) + "_" + file.getTupleDesc().getFieldName(field) + "_idx";
+        SecondaryIndex index = SecondaryIndex.create((HeapFile) file, field, f, name);
+        List<SecondaryIndex> indexes = new ArrayList<>(getIndexes(tableid));
+        indexes.add(index);
+        // a new list, so that readers of the old one need no lock
+        indexBoard.put(tableid, Collections.unmodifiableList(indexes));
+        return index;
+    }
+
+    /**
+     * @return the secondary indexes of a table, an empty list if it has none
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        List<SecondaryIndex> indexes = indexBoard.get(tableid);
+        return indexes == null ? Collections.<SecondaryIndex>emptyList() : indexes;
+    }
+
+    /**
+     * @return the secondary index on a field of a table, null if there is none
+     */
+    public SecondaryIndex getIndex(int tableid, int field) {
+        for (SecondaryIndex index : getIndexes(tableid)) {
+            if (index.getField() == field) {
+                return index;
+            }
+        }
+        return null;
+    }
+
     /** Delete all tables from the catalog */
     public void clear() {
         tableBoard = new HashMap<>();
+        indexBoard = new HashMap<>();
     }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line is of the format name (field type, field type pk, ...) [mmap],
+     * a trailing mmap puts the table in the memory-mapped storage mode, which
+     * suits read-mostly tables. A field annotated with index (field type index,
+     * or field type pk index) gets a secondary index in name_field.idx.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -165,10 +227,19 @@ public class Catalog {
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
+                String storage = line.substring(line.indexOf(")") + 1).trim();
+                boolean mapped = false;
+                if (storage.toLowerCase().equals("mmap")) {
+                    mapped = true;
+                } else if (!storage.isEmpty()) {
+                    System.out.println("Unknown storage mode " + storage);
+                    System.exit(0);
+                }
                 String[] els = fields.split(",");
                 ArrayList<String> names = new ArrayList<String>();
                 ArrayList<Type> types = new ArrayList<Type>();
                 String primaryKey = "";
+                ArrayList<Integer> indexed = new ArrayList<Integer>();
                 for (String e : els) {
                     String[] els2 = e.trim().split(" ");
                     names.add(els2[0].trim());
@@ -180,11 +251,13 @@ public class Catalog {
                         System.out.println("Unknown type " + els2[1]);
                         System.exit(0);
                     }
-                    if (els2.length == 3) {
-                        if (els2[2].trim().equals("pk"))
+                    for (int i = 2; i < els2.length; i++) {
+                        if (els2[i].trim().equals("pk"))
                             primaryKey = els2[0].trim();
+                        else if (els2[i].trim().equals("index"))
+                            indexed.add(names.size() - 1);
                         else {
-                            System.out.println("Unknown annotation " + els2[2]);
+                            System.out.println("Unknown annotation " + els2[i]);
                             System.exit(0);
                         }
                     }
@@ -192,13 +265,21 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t, mapped);
                 addTable(tabHf,name,primaryKey);
-                System.out.println("Added table : " + name + " with schema " + t);
+                System.out.println("Added table : " + name + " with schema " + t
+                        + (mapped ? " (memory-mapped)" : ""));
+                for (int field : indexed) {
+                    addIndex(tabHf.getId(), field, new File(baseFolder+"/"+name + "_" + namesAr[field] + ".idx"));
+                    System.out.println("Added index on " + name + "." + namesAr[field]);
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
+        } catch (DbException e) {
+            e.printStackTrace();
+            System.exit(0);
         } catch (IndexOutOfBoundsException e) {
             System.out.println ("Invalid catalog entry : " + line);
             System.exit(0);
@@ -0,0 +1,83 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * CLOCK-sweep replacement (second chance).
+ * Pages sit in a circular list of frames, each with a reference bit that is
+ * set on every hit. The hand sweeps the frames: a set bit is cleared and the
+ * page gets a second chance, the first evictable page with a clear bit is the
+ * victim. A page touched only once by a scan is evicted on the first pass,
+ * while pages hit between two sweeps survive.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    private final ArrayList<PageId> frames = new ArrayList<>();
+    private final ArrayList<Boolean> referenced = new ArrayList<>();
+    private final HashMap<PageId, Integer> frameOf = new HashMap<>();
+    // frames emptied by pageRemoved, reused before the circle grows
+    private final ArrayList<Integer> freeFrames = new ArrayList<>();
+    private int hand = 0;
+
+    public synchronized void pageAdded(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame != null) {
+            referenced.set(frame, true);
+            return;
+        }
+        if (freeFrames.isEmpty()) {
+            frame = frames.size();
+            frames.add(pid);
+            referenced.add(false);
+        } else {
+            frame = freeFrames.remove(freeFrames.size() - 1);
+            frames.set(frame, pid);
+            referenced.set(frame, false);
+        }
+        frameOf.put(pid, frame);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame != null) {
+            referenced.set(frame, true);
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame != null) {
+            frames.set(frame, null);
+            referenced.set(frame, false);
+            freeFrames.add(frame);
+        }
+    }
+
+    /**
+     * two full turns are enough: the first one clears every reference bit,
+     * the second one finds any evictable page.
+     */
+    public synchronized PageId chooseVictim(Evictable evictable) {
+        int n = frames.size();
+        for (int step = 0; step < 2 * n; step++) {
+            if (hand >= n) {
+                hand = 0;
+            }
+            int frame = hand;
+            hand++;
+            PageId pid = frames.get(frame);
+            if (pid == null) {
+                continue;
+            }
+            if (referenced.get(frame)) {
+                referenced.set(frame, false);
+                continue;
+            }
+            if (evictable.canEvict(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+}
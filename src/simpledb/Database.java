@@ -55,11 +55,19 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(pages, new LRUPolicy());
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * with the given replacement policy and return it
+     */
+    public static BufferPool resetBufferPool(int pages, ReplacementPolicy policy) {
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), new BufferPool(pages, policy));
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -0,0 +1,77 @@
+package simpledb;
+
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap remembers which pages of a HeapFile have an empty slot, so an
+ * insert can go straight to a page with room instead of locking every page
+ * of the file until one does not throw "page is full".
+ * <p>
+ * The map is only a hint and not persisted. It starts out knowing nothing and
+ * counts every page as having room until it learns otherwise: the first insert
+ * that picks a page looks at it without locking it (see HeapFile.insertTuple)
+ * and records what it finds, and afterwards insertTuple, deleteTuple and the
+ * end of a transaction keep the page up to date. So no insert ever reads the
+ * whole file, and the map is never locked while a page is read. A page marked
+ * as having room is checked again once it is locked; if it turned out full
+ * (e.g. the delete that freed the slot was aborted) the map is corrected and
+ * the next page is tried.
+ */
+public class FreeSpaceMap {
+
+    private final HeapFile file;
+    // bit n is set if page n is known to be full
+    private final BitSet full = new BitSet();
+    // bit n is set if page n has been looked at since the map started
+    private final BitSet seen = new BitSet();
+
+    public FreeSpaceMap(HeapFile file) {
+        this.file = file;
+    }
+
+    /**
+     * Find a page that has room or has not been looked at yet, looking from page
+     * from onwards and wrapping around. Concurrent inserters that start from
+     * different pages mostly end up on different pages and do not wait for each
+     * other's locks.
+     *
+     * @param from the page to start looking at, any non negative number
+     * @return the page number, or -1 if no page has room
+     */
+    public int pageWithRoom(int from) {
+        int pages = file.numPages();
+        if (pages == 0) {
+            return -1;
+        }
+        synchronized (this) {
+            int pno = full.nextClearBit(from % pages);
+            if (pno >= pages) {
+                pno = full.nextClearBit(0);
+            }
+            return pno < pages ? pno : -1;
+        }
+    }
+
+    /**
+     * @return true if page pno has been looked at, false if its state is a guess
+     */
+    public synchronized boolean isSeen(int pno) {
+        return seen.get(pno);
+    }
+
+    /**
+     * record whether page pno has an empty slot
+     */
+    public synchronized void setHasRoom(int pno, boolean room) {
+        seen.set(pno);
+        full.set(pno, !room);
+    }
+
+    /**
+     * forget everything, every page is looked at again by the next insert that picks it
+     */
+    public synchronized void clear() {
+        full.clear();
+        seen.clear();
+    }
+}
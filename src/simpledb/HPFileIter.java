@@ -16,8 +16,22 @@ public class HPFileIter implements DbFileIterator {
     private Iterator<Tuple> iter;
     private HeapFile f;
     private HeapPageId initialId;
+    // private ring of frames for a bulk read, null for a normal scan
+    private BulkReadRing ring;
+    // highest page number a background read has been asked for
+    private int readAheadTo;
 
     public HPFileIter(TransactionId tid, int tableId) {
+        this(tid, tableId, null);
+    }
+
+    /**
+     * @param ring if not null, pages not already cached are read through this
+     *             ring instead of the shared buffer pool
+     * @see BufferPool#getPage(TransactionId, PageId, Permissions, BulkReadRing)
+     */
+    public HPFileIter(TransactionId tid, int tableId, BulkReadRing ring) {
+        this.ring = ring;
         try {
             this.tid = tid;
             this.fileId = tableId;
@@ -25,9 +39,7 @@ public class HPFileIter implements DbFileIterator {
             pid = new HeapPageId(fileId, pageIndexInThisFile);
             initialId = new HeapPageId(fileId, 0);
             f = (HeapFile) Database.getCatalog().getDbFile(fileId);
-            HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-            iter = page.iterator();
-            iter = ((HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY)).iterator();
+            iter = ((HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY, ring)).iterator();
         } catch (TransactionAbortedException | DbException e) {
             e.printStackTrace();
         }
@@ -41,6 +53,23 @@ public class HPFileIter implements DbFileIterator {
     public void open()
         throws DbException, TransactionAbortedException {
             isOpened = true;
+            readAheadTo = 0;
+            readAhead();
+    }
+
+    /**
+     * keep the pages in the read-ahead window after the current one being read in
+     * the background, only the pages that entered the window since the last call
+     * are asked for.
+     * @see BufferPool#readAhead(PageId)
+     */
+    private void readAhead() {
+        BufferPool bp = Database.getBufferPool();
+        int last = Math.min(pageIndexInThisFile + bp.getReadAheadWindow(), f.numPages() - 1);
+        for (int p = Math.max(readAheadTo, pageIndexInThisFile) + 1; p <= last; p++) {
+            bp.readAhead(new HeapPageId(fileId, p));
+        }
+        readAheadTo = Math.max(readAheadTo, last);
     }
 
     /** @return true if there are more tuples available. */
@@ -57,8 +86,9 @@ public class HPFileIter implements DbFileIterator {
             if (pageIndexInThisFile == f.numPages()) {
                 return false;
             }
+            readAhead();
             HeapPage nextpage = (HeapPage)Database.getBufferPool().getPage(
-                    tid, new HeapPageId(fileId, pageIndexInThisFile), Permissions.READ_ONLY);
+                    tid, new HeapPageId(fileId, pageIndexInThisFile), Permissions.READ_ONLY, ring);
             iter = nextpage.iterator();
         }
         return false;
@@ -80,8 +110,9 @@ public class HPFileIter implements DbFileIterator {
                     return iter.next();
                 }
                 pageIndexInThisFile++;
+                readAhead();
                 pid = new HeapPageId(fileId, pageIndexInThisFile);
-                iter = ((HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY)).iterator();
+                iter = ((HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY, ring)).iterator();
                 return iter.next();
             } catch (DbException | TransactionAbortedException | NoSuchElementException e) {
                 e.printStackTrace();
@@ -100,7 +131,12 @@ public class HPFileIter implements DbFileIterator {
         try {
                 pageIndexInThisFile = 0;
                 pid = initialId;
-                iter = ((HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY)).iterator();
+                if (ring != null) {
+                    ring.clear();
+                }
+                readAheadTo = 0;
+                readAhead();
+                iter = ((HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY, ring)).iterator();
         } catch (DbException | TransactionAbortedException e) {
                 e.printStackTrace();
         }
@@ -112,6 +148,9 @@ public class HPFileIter implements DbFileIterator {
 
     public void close() {
         isOpened = false;
+        if (ring != null) {
+            ring.clear();
+        }
     }
 
 
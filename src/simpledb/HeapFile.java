@@ -2,6 +2,7 @@ package simpledb;
 
 import javax.xml.crypto.Data;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -19,6 +20,9 @@ public class HeapFile implements DbFile {
     private final File file;
     private final TupleDesc td;
     private final int fileId;
+    // all disk I/O of this file goes through one long-lived channel
+    private final PageChannel channel;
+    private final FreeSpaceMap freeSpace;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -28,9 +32,26 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, optionally in the
+     * memory-mapped storage mode for read-mostly tables.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param mapped
+     *            read pages from a memory mapping of the file instead of with
+     *            read calls, see MappedPageChannel
+     */
+    public HeapFile(File f, TupleDesc td, boolean mapped) {
         this.file = f;
         this.td = td;
         this.fileId = f.getAbsoluteFile().hashCode();
+        this.channel = mapped ? new MappedPageChannel(f) : new PageChannel(f);
+        this.freeSpace = new FreeSpaceMap(this);
         Database.getCatalog().addTable(this);
 
     }
@@ -44,6 +65,13 @@ public class HeapFile implements DbFile {
         return file;
     }
 
+    /**
+     * @return true if this file is in the memory-mapped storage mode
+     */
+    public boolean isMapped() {
+        return channel instanceof MappedPageChannel;
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere ensure that each
@@ -69,12 +97,18 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         try {
-            RandomAccessFile raf = new RandomAccessFile(file, "r");
             int pno = pid.pageNumber();
-            raf.seek((long)pno * BufferPool.getPageSize());
+            if (channel instanceof MappedPageChannel) {
+                // build the page right on the mapping, it copies the bytes only
+                // when it is modified
+                ByteBuffer mapped = ((MappedPageChannel) channel).slice(
+                        (long) pno * BufferPool.getPageSize(), BufferPool.getPageSize());
+                if (mapped != null) {
+                    return new HeapPage((HeapPageId) pid, mapped);
+                }
+            }
             byte[] b = new byte[BufferPool.getPageSize()];
-            int readin = raf.read(b);
-            raf.close();
+            int readin = channel.read((long) pno * BufferPool.getPageSize(), b);
             if (readin < 0) {
                 b = HeapPage.createEmptyPageData();
             }
@@ -91,10 +125,7 @@ public class HeapFile implements DbFile {
         byte[] b = page.getPageData();
         PageId pid = page.getId();
         int pno = pid.pageNumber();
-        RandomAccessFile fout = new RandomAccessFile(file, "rw");
-        fout.seek(BufferPool.getPageSize() * pno);
-        fout.write(b, 0, BufferPool.getPageSize());
-        fout.close();
+        channel.write((long) pno * BufferPool.getPageSize(), b);
     }
 
     /**
@@ -102,78 +133,151 @@ public class HeapFile implements DbFile {
      *
      * there might be pages(unchanged) in dist, and pages(changed but not yet
      * commited) in memory.
+     * the file size is cached by the channel and grows with writePage, so this
+     * does not stat the file every time.
      */
     public int numPages() {
-        int pageSize = BufferPool.getPageSize();
-        long l = file.length();
-        int pageNum = (int)Math.floor((int) file.length()) / (pageSize);
-        return pageNum;
+        try {
+            return (int) (channel.size() / BufferPool.getPageSize());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
     }
 
-    // see DbFile.java for javadocs
+    /**
+     * see DbFile.java for javadocs
+     *
+     * the free space map points at a page with room, so only that page is read and
+     * locked; a page the map has not seen yet is looked at without a lock first. each transaction starts looking at its own page, so concurrent
+     * inserters do not all queue up for the lock on the first page with room.
+     * if no page has room an empty page is appended to the file first, and the
+     * tuple goes into it through the buffer pool like into any other page.
+     *
+     * the page is only locked in intention exclusive mode and the slot the tuple
+     * goes into is locked on its own (see BufferPool#getPageForRecordWrite), so
+     * transactions inserting and deleting different tuples of a page do not wait
+     * for each other.
+     */
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
         ArrayList<Page> insertPages = new ArrayList<>();
-        int pno = numPages();
-        boolean foundEmpty = false;
-        for (int i = 0; i < pno; i += 1) {
-            HeapPage heapPage = (HeapPage)Database.getBufferPool().getPage(
-                    tid, new HeapPageId(getId(), i), Permissions.READ_WRITE);
-            try {
-                //find a page with empty slot, insert into this empty slot and write to the file
-                heapPage.insertTuple(t);
+        int from = (int) (tid.getId() & Integer.MAX_VALUE);
+        while (true) {
+            int pno = freeSpace.pageWithRoom(from);
+            HeapPageId pid;
+            if (pno >= 0) {
+                pid = new HeapPageId(getId(), pno);
+                if (!freeSpace.isSeen(pno)) {
+                    // the first time the page is picked, look at it without a lock;
+                    // a page being modified right now is checked once it is locked
+                    HeapPage peeked = (HeapPage) bp.peekPage(pid);
+                    if (peeked != null && peeked.getNumEmptySlots() == 0) {
+                        freeSpace.setHasRoom(pno, false);
+                        continue;
+                    }
+                }
+            } else {
+                // no page with empty slots, append an empty page to the end of file.
+                // an empty page holds no uncommitted data, so writing it directly is fine
+                synchronized (this) {
+                    pid = new HeapPageId(getId(), numPages());
+                    writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+                }
+            }
+            HeapPage heapPage = (HeapPage) bp.getPageForRecordWrite(tid, pid);
+            if (insertIntoFreeSlot(tid, heapPage, t)) {
+                freeSpace.setHasRoom(pid.pageNumber(), heapPage.getNumEmptySlots() > 0);
                 insertPages.add(heapPage);
-                foundEmpty = true;
-                break;
-            } catch (DbException e) {
-                continue;
+                return insertPages;
             }
+            // the map was out of date, or the empty slots are kept by deletes of
+            // other transactions that may still be rolled back
+            freeSpace.setHasRoom(pid.pageNumber(), false);
         }
-        if (!foundEmpty) {
-            // if no page with empty slots, create a new page and append to the end of file
-            byte[] newEmptyData = HeapPage.createEmptyPageData();
-            HeapPage hp = new HeapPage(new HeapPageId(getId(), pno + 1), newEmptyData);
-            hp.insertTuple(t);
-            insertPages.add(hp);
+    }
+
+    /**
+     * put t into an empty slot of the page whose record lock tid gets without waiting.
+     * @return false if there is no such slot
+     */
+    private boolean insertIntoFreeSlot(TransactionId tid, HeapPage page, Tuple t)
+            throws DbException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        // the slot must stay empty until t is in it: latch the page for the whole
+        // search. tryLockRecord never waits, so it is fine under the latch
+        page.getLatch().writeLock().lock();
+        try {
+            for (int i = 0; i < page.getNumSlots(); i++) {
+                if (!page.isSlotUsed(i) && bp.tryLockRecord(tid, new RecordId(page.getId(), i))) {
+                    page.insertTuple(t, i);
+                    bp.recordInserted(tid, page, t);
+                    return true;
+                }
+            }
+        } finally {
+            page.getLatch().writeLock().unlock();
         }
-        /*try {
-            FileOutputStream fout = new FileOutputStream(file, true);
-            fout.write(hp.getPageData());
-            fout.close();
-            return insertPages;
-        } catch (IOException e) {
-            throw e;
-        }*/
-        return insertPages;
+        return false;
     }
 
-    // see DbFile.java for javadocs
+    /**
+     * see DbFile.java for javadocs
+     *
+     * only the tuple is locked exclusively, the page in intention exclusive mode.
+     */
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
         TransactionAbortedException, IOException {
-        PageId pid = t.getRecordId().getPageId();
+        RecordId rid = t.getRecordId();
+        if (rid == null) {
+            throw new DbException("tuple is not stored in a page");
+        }
+        PageId pid = rid.getPageId();
+        BufferPool bp = Database.getBufferPool();
         ArrayList<Page> deletedPages = new ArrayList<>();
-        HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-        page.deleteTuple(t);
-        deletedPages.add(page);
-        /*
-        byte[] b = page.getPageData();
+        bp.lockRecord(tid, rid);
+        HeapPage page = (HeapPage) bp.getPageForRecordWrite(tid, pid);
+        page.getLatch().writeLock().lock();
         try {
-            int pno = pid.pageNumber();
-            RandomAccessFile fout = new RandomAccessFile(file, "rw");
-            fout.seek(BufferPool.getPageSize() * pno);
-            fout.write(b, 0, BufferPool.getPageSize());
-            fout.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
-        }*/
+            page.deleteTuple(t);
+            bp.recordDeleted(tid, page, t);
+        } finally {
+            page.getLatch().writeLock().unlock();
+        }
+        freeSpace.setHasRoom(pid.pageNumber(), true);
+        deletedPages.add(page);
         return deletedPages;
     }
 
+    /**
+     * a slot of page pno is empty again: a transaction that inserted into it rolled
+     * back, or one that deleted from it committed
+     */
+    void slotFreed(int pno) {
+        freeSpace.setHasRoom(pno, true);
+    }
+
+    /** @return the map of the pages with room, for tests */
+    FreeSpaceMap freeSpaceMap() {
+        return freeSpace;
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         return new HPFileIter(tid, fileId);
     }
 
+    /**
+     * Returns an iterator that reads the pages which are not already cached
+     * through the given ring instead of the shared buffer pool.
+     *
+     * @param ring private ring of frames for a bulk read, or null for a normal scan
+     * @see BulkReadRing
+     */
+    public DbFileIterator iterator(TransactionId tid, BulkReadRing ring) {
+        return new HPFileIter(tid, fileId, ring);
+    }
+
 }
 
@@ -1,8 +1,9 @@
 package simpledb;
 
-import java.text.ParseException;
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -16,16 +17,29 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    private byte header[];
-    private Tuple[] tuples;
     private int numTuple;
     private boolean isDirty;
     private TransactionId dirtytid;
 
-    byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
-
-    private int realTupleNum;
+    /*
+    * the raw page: header bytes, then numTuple slots of td.getSize() bytes.
+    * nothing is decoded up front; header bits are read from here and a field is
+    * only turned into a Field when a tuple's getField asks for it.
+    * data is read-only while it is shared (with the caller, a mapped file or the
+    * before-image) and is copied into a private array on the first modification.
+    * */
+    private ByteBuffer data;
+    // the page as it was at the last setBeforeImage, never written to
+    private ByteBuffer before;
+    private final Object beforeLock = new Object();
+
+    // tuples handed out or inserted so far, by slot
+    private final Tuple[] tuples;
+    // slots whose tuple object may differ from data (inserted, or changed by setField)
+    private final BitSet dirtySlots = new BitSet();
+
+    // held while the contents are read or changed, see Page#getLatch
+    private final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -39,46 +53,32 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * The bytes are not copied, the page reads from data until it is first
+     * modified, so data must not be changed afterwards.
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage straight on a buffer, e.g. a slice of a memory-mapped
+     * file, without copying it. The buffer must hold a whole page from position 0
+     * and must not be changed afterwards; the page copies it before its own
+     * first modification.
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numTuple = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++) {
-            header[i] = dis.readByte();
+        if (data.capacity() < BufferPool.getPageSize()) {
+            throw new IOException("page data is shorter than a page");
         }
-        this.realTupleNum = numTuple - getNumEmptySlots();
-        tuples = new Tuple[numTuple];
-
-        try {
-            int numField = td.numFields();
-            // allocate and read the actual records of this page
-            for (int i = 0; i < realTupleNum; i++) {
-                Tuple t = new Tuple(td);
-                for (int j = 0; j < numField; j += 1) {
-                    if (td.getFieldType(j) == Type.INT_TYPE) {
-                        t.setField(j, Type.INT_TYPE.parse(dis));
-                    } else {
-                        t.setField(j, Type.STRING_TYPE.parse(dis));
-                    }
-                }
-                t.setRecordId(new RecordId(pid, i));
-                tuples[i] = t;
-            }
-        }
-        catch(NoSuchElementException | ParseException e){
-            e.printStackTrace();
-        }
-        dis.close();
-
-        setBeforeImage();
+        this.data = data.isReadOnly() ? data : data.asReadOnlyBuffer();
+        this.before = this.data;
+        this.tuples = new Tuple[numTuple];
     }
 
     /** Retrieve the number of tuples on this page.
@@ -97,17 +97,30 @@ public class HeapPage implements Page {
         int n1 = (int) n;
         return n1;
     }
+
+    /** @return offset of the first byte of slot i */
+    private int slotOffset(int i) {
+        return getHeaderSize() + i * td.getSize();
+    }
     
     /** Return a view of this page before it was modified
-        -- used by recovery */
+        -- used by recovery and snapshots. a before-image still on a
+        mapped file is copied, the next flush of the page changes it */
     public HeapPage getBeforeImage(){
         try {
-            byte[] oldDataRef = null;
-            synchronized(oldDataLock)
+            ByteBuffer beforeRef = null;
+            synchronized(beforeLock)
             {
-                oldDataRef = oldData;
+                beforeRef = before;
             }
-            return new HeapPage(pid,oldDataRef);
+            if (beforeRef.isDirect()) {
+                byte[] copy = new byte[BufferPool.getPageSize()];
+                ByteBuffer src = beforeRef.duplicate();
+                src.clear();
+                src.get(copy);
+                return new HeapPage(pid, copy);
+            }
+            return new HeapPage(pid, beforeRef);
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -116,10 +129,39 @@ public class HeapPage implements Page {
         return null;
     }
     
+    /**
+     * the current contents become the before-image. no bytes are copied here,
+     * data is frozen instead and copied by the next modification.
+     */
     public void setBeforeImage() {
-        synchronized(oldDataLock)
-        {
-        oldData = getPageData().clone();
+        latch.writeLock().lock();
+        try {
+            writeBackDirtySlots();
+            synchronized(beforeLock)
+            {
+                data = data.asReadOnlyBuffer();
+                before = data;
+            }
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    /**
+     * make committed the before-image instead of the current contents, when the
+     * page also holds changes of transactions that have not committed yet.
+     * committed must not be modified afterwards.
+     */
+    void setBeforeImage(HeapPage committed) {
+        latch.writeLock().lock();
+        try {
+            ByteBuffer b = ByteBuffer.wrap(committed.getPageData()).asReadOnlyBuffer();
+            synchronized(beforeLock)
+            {
+                before = b;
+            }
+        } finally {
+            latch.writeLock().unlock();
         }
     }
 
@@ -129,111 +171,176 @@ public class HeapPage implements Page {
     public HeapPageId getId() {
         return pid;
     }
+    /**
+     * @return the latch of this page, see Page#getLatch
+     */
+    public ReentrantReadWriteLock getLatch() {
+        return latch;
+    }
+
 
     /**
-     * Suck up tuples from the source file.
+     * make data a private, writable copy before it is modified; the shared buffer
+     * stays behind untouched, e.g. as the before-image.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
+    private void ensureWritable() {
+        if (data.isReadOnly()) {
+            ByteBuffer copy = ByteBuffer.allocate(BufferPool.getPageSize());
+            ByteBuffer src = data.duplicate();
+            src.clear();
+            src.limit(BufferPool.getPageSize());
+            copy.put(src);
+            copy.clear();
+            data = copy;
+        }
+    }
+
+    /**
+     * serialize the tuples in dirty slots into their place in data.
+     */
+    private void writeBackDirtySlots() {
+        if (dirtySlots.isEmpty()) {
+            return;
+        }
+        ensureWritable();
+        for (int i = dirtySlots.nextSetBit(0); i >= 0; i = dirtySlots.nextSetBit(i + 1)) {
+            if (isSlotUsed(i)) {
+                writeTuple(i, tuples[i]);
             }
-            return null;
         }
+        dirtySlots.clear();
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
+    private void writeTuple(int slot, Tuple t) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
         try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+            for (int j = 0; j < td.numFields(); j++) {
+                t.getField(j).serialize(dos);
             }
-        } catch (java.text.ParseException e) {
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
             e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
         }
-
-        return t;
+        ByteBuffer dst = data.duplicate();
+        dst.position(slotOffset(slot));
+        dst.put(baos.toByteArray(), 0, td.getSize());
     }
 
     /**
-     * Generates a byte array representing the contents of this page.
-     * Used to serialize this page to disk.
-     * <p>
-     * The invariant here is that it should be possible to pass the byte
-     * array generated by getPageData to the HeapPage constructor and
-     * have it produce an identical HeapPage object.
-     *
-     * @see #HeapPage
-     * @return A byte array correspond to the bytes of this page.
+     * decode field j of the tuple in slot i
      */
-    public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
+    private Field readField(int i, int j) {
+        int offset = slotOffset(i);
+        for (int k = 0; k < j; k++) {
+            offset += td.getFieldType(k).getLen();
+        }
+        ByteBuffer src = data;
+        if (td.getFieldType(j) == Type.INT_TYPE) {
+            return new IntField(src.getInt(offset));
         }
+        int strLen = src.getInt(offset);
+        byte bs[] = new byte[strLen];
+        ByteBuffer str = src.duplicate();
+        str.position(offset + 4);
+        str.get(bs);
+        return new StringField(new String(bs), Type.STRING_LEN);
+    }
 
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
+    /**
+     * A tuple that lives in a slot of this page. Its fields are decoded from the
+     * page bytes the first time they are asked for; setting a field marks the
+     * slot dirty so that the new value is written back into the page.
+     */
+    private class SlotTuple extends Tuple {
+        private static final long serialVersionUID = 1L;
+        private final int slot;
 
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+        SlotTuple(int slot) {
+            super(td, new RecordId(pid, slot));
+            this.slot = slot;
+        }
 
-                }
-                continue;
+        @Override
+        public Field getField(int i) {
+            Field f = super.getField(i);
+            if (f == null) {
+                f = readField(slot, i);
+                super.setField(i, f);
             }
+            return f;
+        }
 
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
+        @Override
+        public void setField(int i, Field f) {
+            super.setField(i, f);
+            if (tuples[slot] == this) {
+                dirtySlots.set(slot);
+            }
+        }
 
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+        /** decode every field, before the slot bytes are reused */
+        void materialize() {
+            for (int i = 0; i < td.numFields(); i++) {
+                getField(i);
             }
         }
+    }
 
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
+    /**
+     * @return the tuple in slot i, or null if the slot is empty
+     */
+    public Tuple getTuple(int i) {
+        latch.readLock().lock();
         try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
+            if (i < 0 || i >= numTuple || !isSlotUsed(i)) {
+                return null;
+            }
+            Tuple t;
+            // readers share the read latch, only one of them makes the tuple
+            synchronized (tuples) {
+                t = tuples[i];
+                if (t == null) {
+                    t = new SlotTuple(i);
+                    tuples[i] = t;
+                }
+            }
+            if (!(t instanceof SlotTuple)) {
+                // an inserted tuple, seen with the schema of this table
+                t.resetTupleDesc(td);
+            }
+            return t;
+        } finally {
+            latch.readLock().unlock();
         }
+    }
 
+    /**
+     * Generates a byte array representing the contents of this page.
+     * Used to serialize this page to disk.
+     * <p>
+     * The invariant here is that it should be possible to pass the byte
+     * array generated by getPageData to the HeapPage constructor and
+     * have it produce an identical HeapPage object.
+     * <p>
+     * Only the dirty slots are serialized, in place; the rest is one array copy.
+     *
+     * @see #HeapPage
+     * @return A byte array correspond to the bytes of this page.
+     */
+    public byte[] getPageData() {
+        latch.writeLock().lock();
         try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+            writeBackDirtySlots();
+            byte[] b = new byte[BufferPool.getPageSize()];
+            ByteBuffer src = data.duplicate();
+            src.clear();
+            src.get(b);
+            return b;
+        } finally {
+            latch.writeLock().unlock();
         }
-
-        return baos.toByteArray();
     }
 
     /**
@@ -258,14 +365,23 @@ public class HeapPage implements Page {
      * @param t The tuple to delete
      */
     public void deleteTuple(Tuple t) throws DbException {
-        int num_tuple = getNumTuples();
-        for (int i = 0; i < num_tuple; i += 1) {
-            if (t.equals(tuples[i]) && isSlotUsed(i)) {
-                markSlotUsed(i, false);
-                realTupleNum -= 1;
-                return;
+        latch.writeLock().lock();
+        try {
+            // find the slot by RecordId, the tuple may come from another copy of
+            // this page (e.g. one read by a scan through a BulkReadRing)
+            RecordId rid = t.getRecordId();
+            if (rid == null || !pid.equals(rid.getPageId())) {
+                throw new DbException ("tuple not found in this page");
             }
-        } throw new DbException ("tuple not found in this page");
+            int i = rid.getTupleNumber();
+            if (i < 0 || i >= numTuple || !isSlotUsed(i)) {
+                throw new DbException ("tuple not found in this page");
+            }
+            markSlotUsed(i, false);
+            dirtySlots.clear(i);
+        } finally {
+            latch.writeLock().unlock();
+        }
     }
 
     /**
@@ -276,18 +392,65 @@ public class HeapPage implements Page {
      * @param t The tuple to add.
      */
     public void insertTuple(Tuple t) throws DbException {
-        int num_slot = getNumTuples();
-        if (getNumEmptySlots() > 0) {
-            for (int i = 0; i < num_slot; i += 1) {
-                if (!(isSlotUsed(i))) {
-                    markSlotUsed(i, true);
-                    tuples[i] = t;
-                    realTupleNum += 1;
-                    t.setRecordId(new RecordId(pid, i));
-                    return;
+        latch.writeLock().lock();
+        try {
+            checkTupleDesc(t);
+            int num_slot = getNumTuples();
+            if (getNumEmptySlots() > 0) {
+                for (int i = 0; i < num_slot; i += 1) {
+                    if (!(isSlotUsed(i))) {
+                        putTuple(i, t);
+                        return;
+                    }
                 }
+            } else throw new DbException("page is full");
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds the specified tuple to the given empty slot of the page, e.g. a slot
+     * the caller holds the record lock of.
+     * @throws DbException if the slot is in use or tupledesc is mismatch.
+     */
+    public void insertTuple(Tuple t, int slot) throws DbException {
+        latch.writeLock().lock();
+        try {
+            checkTupleDesc(t);
+            if (slot < 0 || slot >= numTuple || isSlotUsed(slot)) {
+                throw new DbException("slot " + slot + " is not empty");
             }
-        } else throw new DbException("page is full");
+            putTuple(slot, t);
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    private void checkTupleDesc(Tuple t) throws DbException {
+        TupleDesc ttd = t.getTupleDesc();
+        if (ttd.numFields() != td.numFields()) {
+            throw new DbException("tupledesc is mismatch");
+        }
+        for (int j = 0; j < td.numFields(); j++) {
+            if (ttd.getFieldType(j) != td.getFieldType(j)) {
+                throw new DbException("tupledesc is mismatch");
+            }
+        }
+    }
+
+    private void putTuple(int i, Tuple t) {
+        // a tuple handed out from this slot before it was deleted
+        // keeps its values when the slot bytes are reused
+        if (tuples[i] instanceof SlotTuple) {
+            ((SlotTuple) tuples[i]).materialize();
+        }
+        markSlotUsed(i, true);
+        tuples[i] = t;
+        t.setRecordId(new RecordId(pid, i));
+        writeTuple(i, t);
+        // written now, and again by getPageData in case t changes meanwhile
+        dirtySlots.set(i);
     }
 
     /**
@@ -309,18 +472,26 @@ public class HeapPage implements Page {
         return null;      
     }
 
+    /** @return the number of tuple slots on this page, used or not */
+    public int getNumSlots() {
+        return numTuple;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
-        int counter = 0;
-        int num = getHeaderSize();
-        for (int i = 0; i < num; i += 1) {
-            for (int j = 0; j < 8; j += 1) {
-                counter += ((header[i] >>> j) & 0x1);
+        latch.readLock().lock();
+        try {
+            int counter = 0;
+            int num = getHeaderSize();
+            for (int i = 0; i < num; i += 1) {
+                counter += Integer.bitCount(data.get(i) & 0xff);
             }
+            return (numTuple - counter);
+        } finally {
+            latch.readLock().unlock();
         }
-        return (numTuple - counter);
     }
 
     /**
@@ -330,20 +501,21 @@ public class HeapPage implements Page {
         int byteIndex = i / 8;
         int offset = i % 8;
         byte b = 0x1;
-        return (((header[byteIndex] >> offset) & b) == 1);
+        return (((data.get(byteIndex) >> offset) & b) == 1);
     }
 
     /**
      * Abstraction to fill or clear a slot on this page.
      */
     private void markSlotUsed(int i, boolean value) {
+        ensureWritable();
         int byteindex = i / 8;
         int offset = i % 8;
-        byte b = header[byteindex];
+        byte b = data.get(byteindex);
         if (value) {
-            header[byteindex] = (byte) (b | (0x1 << offset));
+            data.put(byteindex, (byte) (b | (0x1 << offset)));
         } else {
-            header[byteindex] = (byte) (b & (~(0x1 << offset)));
+            data.put(byteindex, (byte) (b & (~(0x1 << offset))));
         }
     }
 
@@ -351,45 +523,39 @@ public class HeapPage implements Page {
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
-    public TIterator iterator() {
+    public Iterator<Tuple> iterator() {
         return new TIterator();
     }
 
     private class TIterator implements Iterator<Tuple> {
         int index;
-        int counter;
-        int tuplelen;
 
         public TIterator() {
             index = 0;
-            counter = 0;
-            tuplelen = tuples.length;
         }
 
         public boolean hasNext() {
-            while (index < (tuplelen - 2)) {
-                if (!(isSlotUsed(index))) {
+            latch.readLock().lock();
+            try {
+                while (index < numTuple && !isSlotUsed(index)) {
                     index ++;
-                } else {
-                    return true;
                 }
+                return index < numTuple;
+            } finally {
+                latch.readLock().unlock();
             }
-            if (index < tuplelen && isSlotUsed(index)) {
-                return true;
-            }
-            return false;
         }
 
         public Tuple next() {
-            Tuple t = tuples[index];
-            t.resetTupleDesc(td);
-            index += 1;
-            counter += 1;
-            return t;
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return getTuple(index ++);
         }
 
-        public void close() {}
-   }
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
 
 }
-
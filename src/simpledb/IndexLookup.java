@@ -0,0 +1,150 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * IndexLookup reads the tuples of a HeapFile table through a secondary index:
+ * it finds the RecordIds of the tuples whose indexed field matches a predicate
+ * in the index, and fetches those tuples from the table through the buffer
+ * pool. The tuples come in the order of the index key. Only the pages of the
+ * table that hold matching tuples are read, so a selective predicate reads
+ * much less than a SeqScan.
+ *
+ * @see SecondaryIndex
+ */
+public class IndexLookup implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TransactionId tid;
+    private final SecondaryIndex index;
+    private final IndexPredicate ipred;
+    private final String alias;
+    private final TupleDesc td;
+    private transient DbFileIterator entries;
+    private boolean isOpen = false;
+    // the page of the last tuple, consecutive tuples are often on the same one
+    private transient HeapPage page;
+    private Tuple next;
+
+    /**
+     * Creates a lookup of the tuples of a table through a secondary index.
+     *
+     * @param tid
+     *            The transaction this lookup is running as a part of.
+     * @param index
+     *            the index, see Catalog.getIndex
+     * @param tableAlias
+     *            the alias of the table; the returned tupleDesc has fields
+     *            named tableAlias.fieldName, as in SeqScan
+     * @param ipred
+     *            the predicate on the indexed field, null for all tuples in
+     *            index order
+     */
+    public IndexLookup(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+        this.tid = tid;
+        this.index = index;
+        this.ipred = ipred;
+        this.alias = tableAlias;
+        TupleDesc tableTd = Database.getCatalog().getTupleDesc(index.getTableId());
+        String[] names = new String[tableTd.numFields()];
+        Type[] types = new Type[tableTd.numFields()];
+        for (int i = 0; i < tableTd.numFields(); i++) {
+            names[i] = tableAlias + "." + tableTd.getFieldName(i);
+            types[i] = tableTd.getFieldType(i);
+        }
+        this.td = new TupleDesc(types, names);
+    }
+
+    public IndexLookup(TransactionId tid, SecondaryIndex index, IndexPredicate ipred) {
+        this(tid, index, Database.getCatalog().getTableName(index.getTableId()), ipred);
+    }
+
+    /** @return the name of the table in the catalog */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(index.getTableId());
+    }
+
+    /** @return the alias of the table */
+    public String getAlias() {
+        return alias;
+    }
+
+    /** @return the index the tuples are found with */
+    public SecondaryIndex getIndex() {
+        return index;
+    }
+
+    /** @return the predicate on the indexed field, null for all tuples */
+    public IndexPredicate getIndexPredicate() {
+        return ipred;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (isOpen)
+            throw new DbException("double open on one DbIterator.");
+        entries = index.iterator(tid, ipred);
+        entries.open();
+        page = null;
+        next = null;
+        isOpen = true;
+    }
+
+    /**
+     * Returns the TupleDesc of the table, with field names prefixed with the
+     * tableAlias string from the constructor.
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the next tuple an index entry points to, null if there are no
+     * more entries
+     */
+    private Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (entries.hasNext()) {
+            RecordId rid = index.recordId(entries.next());
+            if (page == null || !page.getId().equals(rid.getPageId())) {
+                page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+            }
+            Tuple t = page.getTuple(rid.getTupleNumber());
+            // a snapshot of the page may not hold a tuple inserted later
+            if (t != null) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        if (next == null) {
+            next = fetchNext();
+        }
+        return next != null;
+    }
+
+    public Tuple next() throws NoSuchElementException, TransactionAbortedException, DbException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Tuple t = next;
+        next = null;
+        return t;
+    }
+
+    public void close() {
+        if (entries != null) {
+            entries.close();
+        }
+        page = null;
+        next = null;
+        isOpen = false;
+    }
+
+    public void rewind() throws DbException, NoSuchElementException, TransactionAbortedException {
+        close();
+        open();
+    }
+}
@@ -0,0 +1,245 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexNestedLoopJoin is an equality join whose inner child reads a BTreeFile
+ * keyed on the join field. Instead of rescanning the inner child for every
+ * outer tuple, as Join does, it looks up the matching inner tuples of each
+ * outer tuple with BTreeFile.indexIterator.
+ * <p>
+ * The outer tuples are read in batches of BATCH_SIZE, and the batch is sorted
+ * on the join field, so the probes walk down the tree in key order: the pages
+ * of one probe are mostly those of the one before, still in the buffer pool,
+ * and every distinct key of a batch is probed only once.
+ * <p>
+ * The inner child is a BTreeScan, maybe under some Filters: see
+ * {@link #probedScan}. It is never read itself; its filters, and the index
+ * predicate of the scan, are applied to the tuples found by the probes.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** the number of outer tuples sorted and probed together */
+    public static final int BATCH_SIZE = 4096;
+
+    private JoinPredicate pred;
+    private DbIterator child1, child2;
+    private TupleDesc comboTD;
+    private transient BTreeFile inner;
+    private transient TransactionId tid;
+    // the predicates on the inner tuples, from the filters and the scan
+    private transient ArrayList<Predicate> innerPreds;
+
+    private transient ArrayList<Tuple> batch = new ArrayList<Tuple>();
+    private transient int batchPos;
+    private transient Tuple outer;
+    private transient Field probedKey;
+    private transient ArrayList<Tuple> matches = new ArrayList<Tuple>();
+    private transient int matchPos;
+
+    /**
+     * Constructor. Accepts the children to join and the predicate to join
+     * them on
+     *
+     * @param p
+     *            The equality predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation, see probedScan
+     * @throws IllegalArgumentException
+     *             if the predicate is not an equality, or child2 cannot be
+     *             probed on its join field
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("an index nested loop join needs an equality predicate");
+        this.pred = p;
+        setChildren(new DbIterator[] { child1, child2 });
+    }
+
+    /**
+     * Find the BTreeScan an inner child of an IndexNestedLoopJoin reads: the
+     * child is the scan, or Filters over it, and the scanned BTreeFile is
+     * keyed on the join field.
+     *
+     * @param child
+     *            the inner child
+     * @param field
+     *            the index of the join field in the tuples of the child
+     * @return the scan, or null if the child cannot be probed on the field
+     */
+    static BTreeScan probedScan(DbIterator child, int field) {
+        while (child instanceof Filter) {
+            child = ((Filter) child).getChildren()[0];
+        }
+        if (!(child instanceof BTreeScan))
+            return null;
+        BTreeScan scan = (BTreeScan) child;
+        BTreeFile bf = (BTreeFile) Database.getCatalog().getDbFile(
+                Database.getCatalog().getTableId(scan.getTableName()));
+        return bf.keyField() == field ? scan : null;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        clear();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        clear();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        clear();
+    }
+
+    private void clear() {
+        batch.clear();
+        batchPos = 0;
+        outer = null;
+        probedKey = null;
+        matches.clear();
+        matchPos = 0;
+    }
+
+    /**
+     * Read the next batch of outer tuples and sort it on the join field
+     *
+     * @return false if there are no more outer tuples
+     */
+    private boolean loadBatch() throws DbException, TransactionAbortedException {
+        batch.clear();
+        batchPos = 0;
+        while (batch.size() < BATCH_SIZE && child1.hasNext()) {
+            batch.add(child1.next());
+        }
+        final int field = pred.getField1();
+        Collections.sort(batch, new Comparator<Tuple>() {
+            public int compare(Tuple t1, Tuple t2) {
+                Field f1 = t1.getField(field);
+                Field f2 = t2.getField(field);
+                if (f1.compare(Predicate.Op.LESS_THAN, f2))
+                    return -1;
+                return f1.compare(Predicate.Op.GREATER_THAN, f2) ? 1 : 0;
+            }
+        });
+        return !batch.isEmpty();
+    }
+
+    /**
+     * Find the inner tuples with the given key that pass the inner predicates
+     */
+    private void probe(Field key) throws DbException, TransactionAbortedException {
+        matches.clear();
+        matchPos = 0;
+        DbFileIterator it = inner.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, key));
+        it.open();
+        try {
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                boolean passes = true;
+                for (int i = 0; passes && i < innerPreds.size(); i++) {
+                    passes = innerPreds.get(i).filter(t);
+                }
+                if (passes)
+                    matches.add(t);
+            }
+        } finally {
+            it.close();
+        }
+        probedKey = key;
+    }
+
+    private Tuple join(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+
+        // set fields in combined tuple
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the concatenation of an outer tuple and an inner tuple with
+     * the same join key. The tuples of a batch of outer tuples come out in key
+     * order.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (outer != null && matchPos < matches.size()) {
+                return join(outer, matches.get(matchPos++));
+            }
+            if (batchPos == batch.size() && !loadBatch()) {
+                return null;
+            }
+            outer = batch.get(batchPos++);
+            Field key = outer.getField(pred.getField1());
+            // outer tuples with the same key are next to each other in a batch
+            if (probedKey != null && probedKey.equals(key)) {
+                matchPos = 0;
+            } else {
+                probe(key);
+            }
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        BTreeScan scan = probedScan(children[1], pred.getField2());
+        if (scan == null)
+            throw new IllegalArgumentException("the inner child is not a scan of a B+ tree keyed on field "
+                    + pred.getField2());
+        this.child1 = children[0];
+        this.child2 = children[1];
+        this.comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+
+        this.inner = (BTreeFile) Database.getCatalog().getDbFile(
+                Database.getCatalog().getTableId(scan.getTableName()));
+        this.tid = scan.getTransactionId();
+        this.innerPreds = new ArrayList<Predicate>();
+        DbIterator child = child2;
+        while (child instanceof Filter) {
+            innerPreds.add(((Filter) child).getPredicate());
+            child = ((Filter) child).getChildren()[0];
+        }
+        IndexPredicate ipred = scan.getIndexPredicate();
+        if (ipred != null)
+            innerPreds.add(new Predicate(inner.keyField(), ipred.getOp(), ipred.getField()));
+    }
+}
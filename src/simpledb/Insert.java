@@ -20,13 +20,14 @@ public class Insert extends Operator {
      * @param t The transaction running the insert.
      * @param child The child operator from which to read tuples to be inserted.
      * @param tableid The table in which to insert tuples.
-     * @throws DbException if TupleDesc of child differs from table into which we are to insert.
+     * @throws DbException if the field types of the child differ from those of the table into which we are to insert.
      */
     public Insert(TransactionId t, DbIterator child, int tableid)
         throws DbException, TransactionAbortedException {
         TupleDesc tdchild = child.getTupleDesc();
         TupleDesc tdtableid = Database.getCatalog().getTupleDesc(tableid);
-        if (tdchild.equals(tdtableid)) {
+        // the types have to match, the child's field names carry its alias
+        if (sameTypes(tdchild, tdtableid)) {
             this.tid = t;
             this.feediter = child;
             this.tableId = tableid;
@@ -38,6 +39,16 @@ public class Insert extends Operator {
         }
     }
 
+    private static boolean sameTypes(TupleDesc td1, TupleDesc td2) {
+        if (td1.numFields() != td2.numFields())
+            return false;
+        for (int i = 0; i < td1.numFields(); i++) {
+            if (!td1.getFieldType(i).equals(td2.getFieldType(i)))
+                return false;
+        }
+        return true;
+    }
+
     public TupleDesc getTupleDesc() {
         Type[] t = new Type[] {Type.INT_TYPE};
         return new TupleDesc(t);
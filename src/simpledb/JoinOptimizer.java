@@ -72,7 +72,13 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        if (lj.p == Predicate.Op.EQUALS && !(lj instanceof LogicalSubplanJoinNode)
+                && IndexNestedLoopJoin.probedScan(plan2, t2id) != null) {
+            // look the inner tuples up in the B+ tree instead of rescanning it
+            j = new IndexNestedLoopJoin(p, plan1, plan2);
+        } else {
+            j = new Join(p,plan1,plan2);
+        }
 
         return j;
 
@@ -106,6 +112,30 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, true);
+    }
+
+    /**
+     * Estimate the cost of a join, as above. If the inner side is a table
+     * stored in a BTreeFile keyed on the join field, the join is an
+     * {@link IndexNestedLoopJoin}: each outer tuple costs a descent of the tree
+     * instead of a scan of the inner table, and as the outer tuples are
+     * probed in sorted batches, a batch reads no more than the whole tree.
+     *
+     * @param innerIsTable
+     *            whether the inner side is a table, maybe filtered, rather
+     *            than the result of other joins
+     */
+    double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean innerIsTable) {
+        int innerPages = innerIsTable ? indexJoinPages(j) : 0;
+        if (innerPages > 0) {
+            double pageCost = cost2 / innerPages;
+            double batches = Math.ceil((double) card1 / IndexNestedLoopJoin.BATCH_SIZE);
+            double pages = Math.min(card1 * (TableStats.INDEX_DESCENT_PAGES + 1.0),
+                    batches * (TableStats.INDEX_DESCENT_PAGES + innerPages));
+            return cost1 + pages * pageCost + card1;
+        }
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
@@ -364,6 +394,8 @@ public class JoinOptimizer {
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        // whether each side is a table, not a subplan of other joins
+        boolean t1IsTable = true, t2IsTable = true;
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new Vector<LogicalJoinNode>();
@@ -398,6 +430,7 @@ public class JoinOptimizer {
                                        // left
                 // subtree is
                 t1card = bestCard;
+                t1IsTable = false;
                 leftPkey = hasPkey(prevBest);
 
                 t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
@@ -414,6 +447,7 @@ public class JoinOptimizer {
                                        // left
                 // subtree is
                 t2card = bestCard;
+                t2IsTable = false;
                 rightPkey = hasPkey(prevBest);
                 t1cost = stats.get(table1Name).estimateScanCost();
                 t1card = stats.get(table1Name).estimateTableCardinality(
@@ -428,10 +462,12 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost,
+                t2IsTable);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost,
+                t1IsTable);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
@@ -453,6 +489,27 @@ public class JoinOptimizer {
         return cc;
     }
 
+    /**
+     * @return the number of pages of the inner table of j, if it is a BTreeFile
+     *         keyed on the join field that an IndexNestedLoopJoin can probe,
+     *         0 if not
+     */
+    private int indexJoinPages(LogicalJoinNode j) {
+        if (j instanceof LogicalSubplanJoinNode || j.p != Predicate.Op.EQUALS
+                || j.t2Alias == null || j.f2PureName == null)
+            return 0;
+        Integer tableId = p.getTableId(j.t2Alias);
+        if (tableId == null)
+            return 0;
+        DbFile f = Database.getCatalog().getDbFile(tableId);
+        if (!(f instanceof BTreeFile))
+            return 0;
+        BTreeFile bf = (BTreeFile) f;
+        if (!j.f2PureName.equals(bf.getTupleDesc().getFieldName(bf.keyField())))
+            return 0;
+        return Math.max(bf.numPages(), 1);
+    }
+
     /**
      * Return true if the specified table is in the list of joins, false
      * otherwise
@@ -0,0 +1,131 @@
+package simpledb;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum).
+ * For each page the times of its last K references are kept. The victim is
+ * the evictable page whose K-th most recent reference is the oldest; pages
+ * with fewer than K references count as infinitely old and go first, in LRU
+ * order of their last reference. Pages read once by a scan therefore leave
+ * before pages that are hit repeatedly.
+ * <p>
+ * The reference history of recently evicted pages is retained (up to
+ * retainedHistory pages), so a page that comes back soon after eviction is
+ * not mistaken for a scan page.
+ */
+public class LRUKPolicy implements ReplacementPolicy {
+
+    public static final int DEFAULT_K = 2;
+
+    private static class History {
+        final PageId pid;
+        // history[0] is the most recent reference, 0 means "no such reference"
+        final long[] history;
+
+        History(PageId pid, int k) {
+            this.pid = pid;
+            this.history = new long[k];
+        }
+
+        void reference(long now) {
+            System.arraycopy(history, 0, history, 1, history.length - 1);
+            history[0] = now;
+        }
+
+        long kth() {
+            return history[history.length - 1];
+        }
+
+        long last() {
+            return history[0];
+        }
+    }
+
+    private final int k;
+    private final int retainedHistory;
+    private long clock = 0;
+
+    // resident pages ordered by (K-th reference, last reference); the last
+    // reference is a unique tick, so the order is total
+    private final TreeSet<History> order = new TreeSet<>(new Comparator<History>() {
+        public int compare(History a, History b) {
+            if (a.kth() != b.kth()) {
+                return Long.compare(a.kth(), b.kth());
+            }
+            return Long.compare(a.last(), b.last());
+        }
+    });
+    private final HashMap<PageId, History> resident = new HashMap<>();
+    private final LinkedHashMap<PageId, History> evicted = new LinkedHashMap<>();
+
+    /**
+     * @param k number of references remembered per page, K = 2 is the usual choice
+     * @param retainedHistory how many evicted pages keep their history, normally the pool size
+     */
+    public LRUKPolicy(int k, int retainedHistory) {
+        if (k < 1) {
+            throw new IllegalArgumentException("K must be at least 1");
+        }
+        this.k = k;
+        this.retainedHistory = retainedHistory;
+    }
+
+    public LRUKPolicy(int retainedHistory) {
+        this(DEFAULT_K, retainedHistory);
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        History h = resident.get(pid);
+        if (h == null) {
+            h = evicted.remove(pid);
+            if (h == null) {
+                h = new History(pid, k);
+            }
+            resident.put(pid, h);
+        } else {
+            order.remove(h);
+        }
+        h.reference(++clock);
+        order.add(h);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        History h = resident.get(pid);
+        if (h == null) {
+            // a hit that raced with the eviction of the page, it is gone already
+            return;
+        }
+        order.remove(h);
+        h.reference(++clock);
+        order.add(h);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        History h = resident.remove(pid);
+        if (h == null) {
+            return;
+        }
+        order.remove(h);
+        evicted.put(pid, h);
+        if (evicted.size() > retainedHistory) {
+            Iterator<Map.Entry<PageId, History>> oldest = evicted.entrySet().iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    public synchronized PageId chooseVictim(Evictable evictable) {
+        for (History h : order) {
+            if (evictable.canEvict(h.pid)) {
+                return h.pid;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,40 @@
+package simpledb;
+
+import java.util.LinkedHashSet;
+
+/**
+ * Least recently used replacement, the BufferPool default.
+ * Every hit moves the page to the MRU end; the victim is the first evictable
+ * page from the LRU end. Not scan resistant: one long scan pushes out the
+ * whole hot set.
+ */
+public class LRUPolicy implements ReplacementPolicy {
+
+    // least recently used first, LinkedHashSet remove/add are both O(1)
+    private final LinkedHashSet<PageId> lruOrder = new LinkedHashSet<>();
+
+    public synchronized void pageAdded(PageId pid) {
+        lruOrder.remove(pid);
+        lruOrder.add(pid);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        // a hit that raced with the eviction of the page must not bring it back
+        if (lruOrder.remove(pid)) {
+            lruOrder.add(pid);
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        lruOrder.remove(pid);
+    }
+
+    public synchronized PageId chooseVictim(Evictable evictable) {
+        for (PageId pid : lruOrder) {
+            if (evictable.canEvict(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+}
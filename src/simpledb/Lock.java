@@ -10,8 +10,58 @@ public class Lock {
     private final LOCKTYPE type;
     private int lockIndex;
 
+    /**
+     * page locks are SHARE_LOCK or EXCLUSIVE_LOCK. tables are locked in all four
+     * modes: the intention modes say that the transaction locks some pages of the
+     * table in shared (INTENTION_SHARE_LOCK) or exclusive (INTENTION_EXCLUSIVE_LOCK)
+     * mode, SHARE_LOCK and EXCLUSIVE_LOCK lock the whole table.
+     */
     public enum LOCKTYPE {
-        SHARE_LOCK, EXCLUSIVE_LOCK;
+        SHARE_LOCK, EXCLUSIVE_LOCK, INTENTION_SHARE_LOCK, INTENTION_EXCLUSIVE_LOCK;
+
+        /**
+         * @return true if two transactions may hold the same page or table in
+         * this mode and other at the same time
+         */
+        public boolean compatibleWith(LOCKTYPE other) {
+            switch (this) {
+                case INTENTION_SHARE_LOCK:
+                    return other != EXCLUSIVE_LOCK;
+                case INTENTION_EXCLUSIVE_LOCK:
+                    return other == INTENTION_SHARE_LOCK || other == INTENTION_EXCLUSIVE_LOCK;
+                case SHARE_LOCK:
+                    return other == INTENTION_SHARE_LOCK || other == SHARE_LOCK;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * @return the weakest mode that allows everything this mode and other do.
+         * there is no SIX mode, shared plus intention exclusive gives EXCLUSIVE_LOCK
+         */
+        public LOCKTYPE join(LOCKTYPE other) {
+            if (this == other) {
+                return this;
+            }
+            if (this == EXCLUSIVE_LOCK || other == EXCLUSIVE_LOCK) {
+                return EXCLUSIVE_LOCK;
+            }
+            if (this == INTENTION_SHARE_LOCK) {
+                return other;
+            }
+            if (other == INTENTION_SHARE_LOCK) {
+                return this;
+            }
+            return EXCLUSIVE_LOCK;
+        }
+
+        /**
+         * @return true if holding this mode already allows everything other does
+         */
+        public boolean covers(LOCKTYPE other) {
+            return join(other) == this;
+        }
     }
 
     public Lock( TransactionId tid, PageId pageid, LOCKTYPE type) {
@@ -31,6 +81,20 @@ public class Lock {
         return board.addLock(tid, pageid, this);
     }
 
+    /**
+     * like inilize, but wait for the lock instead of failing if it is blocked.
+     * @param timeout longest time to wait in milliseconds, 0 for no limit
+     * @throw TransactionAbortedException if the lock is not granted in time, or
+     * the transaction is aborted to break a deadlock
+     * */
+    public void acquire(PageId pid, LockControlBoard board, long timeout)
+            throws TransactionAbortedException, DbException {
+        if (!(pid.equals(this.pageid))) {
+            throw new DbException("lock acquire error");
+        }
+        board.acquireLock(tid, pageid, this, timeout);
+    }
+
     public LOCKTYPE getType() {
         return type;
     }
@@ -57,8 +121,10 @@ public class Lock {
 
     /**
      * upgrade the read lock to write lock if the page is not excluded locked.
+     * the transaction's lock on the page changes mode in place, no new lock is added.
+     * @return 1 if upgraded, -1 if other transactions hold the page too
      * */
-    public int upgrate() {
-        return -1;
+    public int upgrate(LockControlBoard board) {
+        return board.upgradeLock(tid, pageid);
     }
 }
@@ -1,228 +1,862 @@
 package simpledb;
 
-import java.lang.reflect.Array;
 import java.util.*;
-import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Created by Xiao Shi on 2017/10/24.
+ *
+ * The lock table is split into NUM_STRIPES stripes by the hash of the PageId.
+ * Each stripe has its own latch and map from page to the state of its lock, so
+ * locking and unlocking pages of different stripes never wait for each other.
+ * The state of a page is compact: the mode it is locked in and the set of
+ * transactions holding it, plus the queue of waiting requests while there are
+ * any. Each transaction's locks are also indexed by page, so holdsLock and
+ * releasing all locks of a transaction do not scan anything.
+ *
+ * Requests that cannot be granted wait in a FIFO queue of their page and park on
+ * the page's condition, instead of calling addLock again and again. Releasing a
+ * lock on the page (closeLock, closeLockDG, i.e. transactionComplete and
+ * releasePage) wakes the waiters of that page only, and they are granted in the
+ * order they came: readers at the head of the queue are granted together, a
+ * writer waits until it is first and the page is free.
+ *
+ * A shared lock is upgraded to an exclusive one in place, the page just changes
+ * mode. A sole reader upgrades right away; otherwise the upgrade waits at the
+ * head of the queue, ahead of everything that came before it, until the other
+ * readers are gone. A second reader asking to upgrade the same page is aborted
+ * at once, as the two would each wait for the other's shared lock forever.
+ *
+ * Locks are hierarchical: before locking a page, a transaction locks the page's
+ * table in INTENTION_SHARE_LOCK or INTENTION_EXCLUSIVE_LOCK mode. Tables are
+ * entries of the lock table like pages, under a TableLockId, so they are queued,
+ * upgraded and searched for deadlocks the same way. A table can also be locked
+ * as a whole by locking its TableLockId in shared or exclusive mode, and page
+ * requests the table lock already covers do not lock anything. Once a
+ * transaction holds more than getEscalationThreshold() page locks of one table
+ * its lock is escalated: it tries to lock the table in shared mode, or in
+ * exclusive mode if it writes to the table, and if it gets that lock its page
+ * locks on the table are released. Escalation never waits; if other transactions
+ * lock pages of the table it is tried again with the next page. This bounds the
+ * locks a scan of a big table holds and lets it skip the page locks.
+ *
+ * Below the pages are single tuples, under a RecordLockId: the page is locked in
+ * an intention mode first, the same way as its table. Heap file inserts and
+ * deletes lock the tuples they change this way, so they only conflict with each
+ * other when they touch the same tuple.
+ *
+ * Deadlocks are found with a waits-for graph instead of a time out. A waiting
+ * transaction waits for the other transactions that hold a conflicting lock on
+ * its page or are queued ahead of it with a conflicting request. Every time a
+ * request has to wait the graph is searched for a cycle through it, and the
+ * youngest transaction of the cycle (the one with the largest id) is aborted
+ * with a TransactionAbortedException. The edges are worked out from the wait
+ * queues and the locks held when the search runs, so they are never stale.
+ * Searches only happen when a request blocks; they run one at a time under
+ * detectLatch, which is always taken before a stripe latch and never while
+ * holding one.
+ *
+ * Every request is counted in a LockStats (getStats): locks granted, conflicts,
+ * upgrades, aborted waits, and how long locks were waited for and held. The
+ * counters are atomic, a request costs a few increments and clock reads.
+ * snapshot lists the most contended pages
+ * and the transactions waiting right now, with whom they wait for.
  */
 public class LockControlBoard {
 
-    private Map<TransactionId, List<Lock>> tranLockMap;
-    private Map<PageId, List<Lock>> pageLockMap;
-    private Map<PageId, Lock> pageWriteLockMap;
+    /** Number of stripes of the lock table, a power of two. */
+    public static final int NUM_STRIPES = 64;
+
+    /** Default number of page locks of one table a transaction holds before escalation. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+    /**
+     * the lock on one page or table: the transactions holding it, each with the mode
+     * it holds it in. the modes of different holders are always compatible.
+     * the blocked requests wait in queue and park on released, both are there only
+     * while somebody waits; waiting upgrades of holders are at the head of the queue.
+     * guarded by the latch of the page's stripe.
+     */
+    private static class PageLock {
+        final Map<TransactionId, Lock.LOCKTYPE> holders = new HashMap<>(4);
+        // when each holder got the lock, for the hold times of stats
+        final Map<TransactionId, Long> since = new HashMap<>(4);
+        LinkedList<Lock> queue;
+        Condition released;
+
+        boolean isFree() {
+            return holders.isEmpty() && queue == null;
+        }
+    }
+
+    /**
+     * the locks of one transaction by page (tables included), with the mode they
+     * are held in, and how many pages of each table it has locked.
+     */
+    private static class TransLocks {
+        final Map<PageId, Lock.LOCKTYPE> locks = new ConcurrentHashMap<>();
+        private final Map<Integer, Integer> pagesPerTable = new HashMap<>();
+
+        void put(PageId pid, Lock.LOCKTYPE mode) {
+            if (locks.put(pid, mode) == null && !(pid instanceof TableLockId)) {
+                count(pid.getTableId(), 1);
+            }
+        }
+
+        void remove(PageId pid) {
+            if (locks.remove(pid) != null && !(pid instanceof TableLockId)) {
+                count(pid.getTableId(), -1);
+            }
+        }
+
+        synchronized int pagesOn(int tableId) {
+            Integer n = pagesPerTable.get(tableId);
+            return n == null ? 0 : n;
+        }
+
+        private synchronized void count(int tableId, int delta) {
+            int n = delta + (pagesPerTable.containsKey(tableId) ? pagesPerTable.get(tableId) : 0);
+            if (n == 0) {
+                pagesPerTable.remove(tableId);
+            } else {
+                pagesPerTable.put(tableId, n);
+            }
+        }
+    }
+
+    private static class Stripe {
+        final ReentrantLock latch = new ReentrantLock();
+        final Map<PageId, PageLock> pages = new HashMap<>();
+    }
+
+    private final Stripe[] stripes;
+    // the locks of each transaction by page, with the mode they are held in
+    private final ConcurrentHashMap<TransactionId, TransLocks> tranLockMap;
     /*
     * what is blocked is the handle of specific transaction to specific page
     * i.e. the specific lock
     * if the locks belongs to the same transaction, there should be no block
     * because there is no interleaving in one transaction
     * */
-    private List<Lock> blockedHandle;
-    private List<Lock> evictedLock;
+    // the request each transaction is waiting with, the nodes of the waits-for graph
+    private final ConcurrentHashMap<TransactionId, Lock> waiting;
+    // when each of them started waiting, in System.nanoTime
+    private final ConcurrentHashMap<TransactionId, Long> waitingSince;
+    // waiting transactions chosen as deadlock victims, they abort when they wake up
+    private final Set<TransactionId> victims;
+    // deadlock searches run one at a time
+    private final ReentrantLock detectLatch;
+    private final Set<PageId> evictedPages;
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+    private final LockStats stats;
 
     public LockControlBoard() {
-        tranLockMap = Collections.synchronizedMap(new HashMap<>());
-        pageLockMap = Collections.synchronizedMap(new HashMap<>());
-        pageWriteLockMap = Collections.synchronizedMap(new HashMap<>());
-        blockedHandle = Collections.synchronizedList(new ArrayList<>());
-        evictedLock = Collections.synchronizedList(new ArrayList<>());
+        stripes = new Stripe[NUM_STRIPES];
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+        tranLockMap = new ConcurrentHashMap<>();
+        waiting = new ConcurrentHashMap<>();
+        waitingSince = new ConcurrentHashMap<>();
+        victims = ConcurrentHashMap.newKeySet();
+        detectLatch = new ReentrantLock();
+        evictedPages = ConcurrentHashMap.newKeySet();
+        stats = new LockStats();
+    }
+
+    private Stripe stripeOf(PageId pid) {
+        int h = pid.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (NUM_STRIPES - 1)];
+    }
+
+    public int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    /**
+     * @param threshold the number of page locks of one table a transaction may hold
+     * before it is escalated to a lock on the table
+     */
+    public void setEscalationThreshold(int threshold) {
+        this.escalationThreshold = threshold;
     }
 
     /**
-     * add a lock given transaction id, page id, type of the lock.
+     * @return the counters of the lock requests made so far
+     */
+    public LockStats getStats() {
+        return stats;
+    }
+
+    /**
+     * @param topN the number of most contended pages, records and tables to list
+     * @return a copy of the counters, with the transactions waiting for a lock
+     * right now and the transactions each of them waits for
+     */
+    public LockStats.Snapshot snapshot(int topN) {
+        List<LockStats.Waiter> waiters = new ArrayList<>();
+        long now = System.nanoTime();
+        for (Map.Entry<TransactionId, Lock> e : waiting.entrySet()) {
+            Long since = waitingSince.get(e.getKey());
+            if (since == null) {
+                // granted meanwhile
+                continue;
+            }
+            Lock lock = e.getValue();
+            waiters.add(new LockStats.Waiter(e.getKey(), lock.getPageid(), lock.getType(),
+                    TimeUnit.NANOSECONDS.toMillis(now - since), waitsFor(e.getKey())));
+        }
+        Collections.sort(waiters, new Comparator<LockStats.Waiter>() {
+            public int compare(LockStats.Waiter a, LockStats.Waiter b) {
+                return Long.compare(b.getWaitMillis(), a.getWaitMillis());
+            }
+        });
+        return stats.snapshot(topN, waiters);
+    }
+
+    /**
+     * add a lock given transaction id, page id, type of the lock, without waiting.
+     * the page's table is locked in the matching intention mode first.
      * when to block? :
      *      when in different transaction and accessing a write-lock page, then this lock is blocked.
+     *      when other transactions already wait for the page, to keep their turn.
      *
      * @return 1 if successfully locked, add into trans-lock map, page-lock map,
-     * @return -1 if blocked, add tid into blocked transactionId list,
+     * @return -1 if blocked
      * @throw transactionAbortException
      */
-    public synchronized int addLock(TransactionId tid, PageId pageid, Lock lock)
+    public int addLock(TransactionId tid, PageId pageid, Lock lock)
             throws TransactionAbortedException, DbException {
-        if (!(tid.equals(lock.getTid())) || !(pageid.equals(lock.getPageid()))) {
-            throw new DbException("add lock error: lock doesn't correspoding to transaction or page ID");
-        }
-        // if the page has write lock
-        Lock writeLockOnPage = getPageWriteLock(pageid);
-        if (writeLockOnPage != null) {
-            // check if this writelock has same transaction Id with the lock to add,
-            // if so, just return 1
-            if (writeLockOnPage.getTid().equals(tid)) {
-                return 1;
-            }
-            // if the writelock and lock to add belongs to different transaction
-            // this lock is blocked
-            /* previously I haven't assumed that the same lock will be asked again and again
-            *  and haven't make blockedHanlde Set-Alike, cause the blockedHanlde list contains
-            *  so many same locks, this reduce a lot of performance and cause me to fail QueryTest
-            *  timeout limit, and cause the deadlock test run formever.
-            * */
-            if (!blockedHandle.contains(lock)) {
-                blockedHandle.add(blockedHandle.size(), lock);
-            }
+        checkLock(tid, pageid, lock, "add lock error");
+        if (!lockHierarchy(tid, lock, false, 0)) {
             return -1;
         }
-        // if page does not have lock or has only read lock
-        List<Lock> locksOnTrans = tranLockMap.get(tid);
-        List<Lock> locksOnPage = pageLockMap.get(pageid);
-        if (locksOnTrans == null) {
-            locksOnTrans = Collections.synchronizedList(new ArrayList<>());
-        }
-        if (locksOnPage == null) {
-            locksOnPage = Collections.synchronizedList(new ArrayList<>());
-        }
-        // if the lock is write lock, then check the page's read lock
-        // if page only have read lock generated by same transaction or
-        // no lock at all, add the lock, return 1
-        // otherwise it is blocked and return -1
-        if (lock.getType() == Lock.LOCKTYPE.EXCLUSIVE_LOCK) {
-            for (Lock l : locksOnPage) {
-                if (!(l.getTid().equals(tid))) {
-                    return -1;
+        escalateIfNeeded(tid, pageid);
+        return 1;
+    }
+
+    /**
+     * lock the page or table in the given mode if nobody is in the way, without waiting
+     * @return 1 if locked, -1 if blocked
+     */
+    private int tryLock(TransactionId tid, PageId pageid, Lock.LOCKTYPE type) {
+        Stripe stripe = stripeOf(pageid);
+        stripe.latch.lock();
+        try {
+            PageLock pl = pageLock(stripe, pageid);
+            Lock.LOCKTYPE held = pl.holders.get(tid);
+            if (held != null && !held.covers(type)) {
+                stats.upgrade(pageid);
+            }
+            boolean granted = (held != null || pl.queue == null) && grant(pl, tid, pageid, type);
+            if (!granted) {
+                stats.conflict(pageid);
+            }
+            dropIfFree(stripe, pageid, pl);
+            return granted ? 1 : -1;
+        } finally {
+            stripe.latch.unlock();
+        }
+    }
+
+    /**
+     * add a lock given transaction id, page id, type of the lock, waiting for it
+     * if it is blocked. The waiting thread is parked until a lock on the page is
+     * released, it does not use the cpu meanwhile. The page's table is locked in
+     * the matching intention mode first, unless a lock on the table already covers
+     * the page; locking a TableLockId locks the table itself, and locking a
+     * RecordLockId locks the table and the page in intention mode first.
+     *
+     * @param timeout longest time to wait in milliseconds, 0 to wait until the
+     * lock is granted or the transaction is chosen as a deadlock victim
+     * @throw TransactionAbortedException if waiting would deadlock and this is the
+     * youngest transaction of the cycle, if the lock is not granted within timeout,
+     * or the thread is interrupted while waiting
+     */
+    public void acquireLock(TransactionId tid, PageId pageid, Lock lock, long timeout)
+            throws TransactionAbortedException, DbException {
+        checkLock(tid, pageid, lock, "acquire lock error");
+        lockHierarchy(tid, lock, true, timeout);
+        escalateIfNeeded(tid, pageid);
+    }
+
+    /**
+     * lock the parents of lock's page or record in intention mode, top down, then
+     * lock it, skipping what a shared or exclusive lock on a parent already covers.
+     * @param wait true to wait for locks, false to give up on the first blocked one
+     * @return false if a lock was blocked and wait is false
+     */
+    private boolean lockHierarchy(TransactionId tid, Lock lock, boolean wait, long timeout)
+            throws TransactionAbortedException {
+        PageId pid = lock.getPageid();
+        if (coveredByParent(tid, pid, lock.getType())) {
+            return true;
+        }
+        PageId parent = parentOf(pid);
+        if (parent != null) {
+            Lock.LOCKTYPE intention = intentionOf(lock.getType());
+            Lock.LOCKTYPE held = heldMode(tid, parent);
+            if ((held == null || !held.covers(intention))
+                    && !lockHierarchy(tid, new Lock(tid, parent, intention), wait, timeout)) {
+                return false;
+            }
+            // the parent may have been upgraded to a mode that covers pid, e.g. shared
+            // and intention exclusive give exclusive
+            if (coveredByParent(tid, pid, lock.getType())) {
+                return true;
+            }
+        }
+        if (wait) {
+            acquire(tid, pid, lock, timeout);
+            return true;
+        }
+        return tryLock(tid, pid, lock.getType()) > 0;
+    }
+
+    /**
+     * @return what pid is locked under in the hierarchy: the page of a record, the
+     * table of a page, null for a table
+     */
+    private static PageId parentOf(PageId pid) {
+        if (pid instanceof TableLockId) {
+            return null;
+        }
+        if (pid instanceof RecordLockId) {
+            return ((RecordLockId) pid).getPageId();
+        }
+        return new TableLockId(pid.getTableId());
+    }
+
+    /**
+     * @return true if tid holds a parent of pid in shared or exclusive mode that
+     * allows type on pid too. intention modes never cover anything below them
+     */
+    private boolean coveredByParent(TransactionId tid, PageId pid, Lock.LOCKTYPE type) {
+        for (PageId p = parentOf(pid); p != null; p = parentOf(p)) {
+            Lock.LOCKTYPE mode = heldMode(tid, p);
+            if ((mode == Lock.LOCKTYPE.SHARE_LOCK || mode == Lock.LOCKTYPE.EXCLUSIVE_LOCK)
+                    && mode.covers(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void acquire(TransactionId tid, PageId pageid, Lock lock, long timeout)
+            throws TransactionAbortedException {
+        Stripe stripe = stripeOf(pageid);
+        stripe.latch.lock();
+        try {
+            PageLock pl = pageLock(stripe, pageid);
+            // a transaction that already holds the page does not queue behind others,
+            // they may be waiting for it
+            Lock.LOCKTYPE held = pl.holders.get(tid);
+            if (held != null && !held.covers(lock.getType())) {
+                stats.upgrade(pageid);
+            }
+            if ((held != null || pl.queue == null) && grant(pl, tid, pageid, lock.getType())) {
+                return;
+            }
+            stats.conflict(pageid);
+            if (pl.queue == null) {
+                pl.queue = new LinkedList<>();
+                pl.released = stripe.latch.newCondition();
+            }
+            if (held != null) {
+                // an upgrade waits behind the other upgrades only. if it and one of them
+                // are each blocked by the other's lock they would wait forever, so it
+                // is aborted at once
+                Lock.LOCKTYPE target = held.join(lock.getType());
+                ListIterator<Lock> it = pl.queue.listIterator();
+                while (it.hasNext()) {
+                    Lock l = it.next();
+                    Lock.LOCKTYPE other = pl.holders.get(l.getTid());
+                    if (other == null) {
+                        it.previous();
+                        break;
+                    }
+                    if (!other.compatibleWith(target) && !held.compatibleWith(other.join(l.getType()))) {
+                        stats.aborted(pageid);
+                        throw new TransactionAbortedException();
+                    }
+                }
+                it.add(lock);
+            } else {
+                pl.queue.addLast(lock);
+            }
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+            boolean search = true;
+            boolean granted = false;
+            long start = System.nanoTime();
+            waitingSince.put(tid, start);
+            waiting.put(tid, lock);
+            try {
+                while (true) {
+                    if (victims.contains(tid)) {
+                        throw new TransactionAbortedException();
+                    }
+                    if (isTurn(pl.queue, lock) && grant(pl, tid, pageid, lock.getType())) {
+                        granted = true;
+                        return;
+                    }
+                    if (search) {
+                        // the search looks at other stripes, so let go of this one meanwhile
+                        // and check again afterwards, a release may have been missed
+                        search = false;
+                        stripe.latch.unlock();
+                        try {
+                            TransactionId victim = findDeadlockVictim(tid);
+                            if (victim != null && victim.equals(tid)) {
+                                throw new TransactionAbortedException();
+                            }
+                        } finally {
+                            stripe.latch.lock();
+                        }
+                        continue;
+                    }
+                    if (timeout <= 0) {
+                        pl.released.await();
+                    } else if (nanos <= 0) {
+                        throw new TransactionAbortedException();
+                    } else {
+                        nanos = pl.released.awaitNanos(nanos);
+                    }
+                    search = true;
+                }
+            } catch (InterruptedException e) {
+                throw new TransactionAbortedException();
+            } finally {
+                waiting.remove(tid);
+                waitingSince.remove(tid);
+                victims.remove(tid);
+                stats.waited(pageid, System.nanoTime() - start);
+                if (!granted) {
+                    stats.aborted(pageid);
+                }
+                pl.queue.remove(lock);
+                if (pl.queue.isEmpty()) {
+                    pl.queue = null;
+                    pl.released = null;
+                    dropIfFree(stripe, pageid, pl);
+                } else {
+                    // the next ones may be grantable now, e.g. readers behind a reader
+                    pl.released.signalAll();
                 }
             }
-            pageWriteLockMap.put(pageid, lock);
+        } finally {
+            stripe.latch.unlock();
         }
+    }
 
-        locksOnTrans.add(lock);
-        tranLockMap.put(tid, locksOnTrans);
+    /**
+     * upgrade the shared lock tid holds on the page to an exclusive one in place,
+     * without waiting. the page's table is upgraded to INTENTION_EXCLUSIVE_LOCK first.
+     * @return 1 if tid now holds the page exclusively, -1 if it does not hold it or
+     * other transactions hold it too
+     */
+    public int upgradeLock(TransactionId tid, PageId pageid) {
+        TableLockId table = new TableLockId(pageid.getTableId());
+        Lock.LOCKTYPE tableMode = heldMode(tid, table);
+        if (tableMode == null || !holdsLock(tid, pageid)) {
+            return -1;
+        }
+        stats.upgrade(pageid);
+        if (!tableMode.covers(Lock.LOCKTYPE.INTENTION_EXCLUSIVE_LOCK) && tryLock(tid, table, Lock.LOCKTYPE.INTENTION_EXCLUSIVE_LOCK) < 0) {
+            stats.conflict(pageid);
+            return -1;
+        }
+        if (heldMode(tid, table).covers(Lock.LOCKTYPE.EXCLUSIVE_LOCK)) {
+            return 1;
+        }
+        Stripe stripe = stripeOf(pageid);
+        stripe.latch.lock();
+        try {
+            PageLock pl = stripe.pages.get(pageid);
+            if (pl == null || !pl.holders.containsKey(tid)) {
+                return -1;
+            }
+            if (!grant(pl, tid, pageid, Lock.LOCKTYPE.EXCLUSIVE_LOCK)) {
+                stats.conflict(pageid);
+                return -1;
+            }
+            return 1;
+        } finally {
+            stripe.latch.unlock();
+        }
+    }
 
-        locksOnPage.add(lock);
-        pageLockMap.put(pageid, locksOnPage);
+    /**
+     * @return the mode tid locks the table in, null if it does not lock it
+     */
+    public Lock.LOCKTYPE tableLockType(TransactionId tid, int tableId) {
+        return heldMode(tid, new TableLockId(tableId));
+    }
 
-        return 1;
+    private Lock.LOCKTYPE heldMode(TransactionId tid, PageId pid) {
+        TransLocks locksOnTrans = tranLockMap.get(tid);
+        return locksOnTrans == null ? null : locksOnTrans.locks.get(pid);
     }
 
+    private static Lock.LOCKTYPE intentionOf(Lock.LOCKTYPE type) {
+        return type == Lock.LOCKTYPE.SHARE_LOCK || type == Lock.LOCKTYPE.INTENTION_SHARE_LOCK
+                ? Lock.LOCKTYPE.INTENTION_SHARE_LOCK : Lock.LOCKTYPE.INTENTION_EXCLUSIVE_LOCK;
+    }
 
-    private Lock getPageWriteLock(PageId pid) {
-        return pageWriteLockMap.get(pid);
+    /**
+     * if tid holds more than escalationThreshold page and record locks on the table
+     * of pid, try to lock the whole table instead: shared if tid only reads it,
+     * exclusive if it writes it. does not wait; if the table lock is granted the page
+     * and record locks are released.
+     */
+    private void escalateIfNeeded(TransactionId tid, PageId pid) {
+        if (pid instanceof TableLockId) {
+            return;
+        }
+        TableLockId table = new TableLockId(pid.getTableId());
+        TransLocks locksOnTrans = tranLockMap.get(tid);
+        if (locksOnTrans == null || locksOnTrans.pagesOn(table.getTableId()) <= escalationThreshold) {
+            return;
+        }
+        Lock.LOCKTYPE held = locksOnTrans.locks.get(table);
+        if (held == null) {
+            return;
+        }
+        Lock.LOCKTYPE escalated = held.covers(Lock.LOCKTYPE.INTENTION_EXCLUSIVE_LOCK)
+                ? Lock.LOCKTYPE.EXCLUSIVE_LOCK : held.join(Lock.LOCKTYPE.SHARE_LOCK);
+        Stripe stripe = stripeOf(table);
+        stripe.latch.lock();
+        try {
+            PageLock pl = stripe.pages.get(table);
+            if (pl == null || !grant(pl, tid, table, escalated)) {
+                return;
+            }
+        } finally {
+            stripe.latch.unlock();
+        }
+        for (PageId p : new ArrayList<>(locksOnTrans.locks.keySet())) {
+            if (!(p instanceof TableLockId) && p.getTableId() == table.getTableId()) {
+                locksOnTrans.remove(p);
+                Stripe s = stripeOf(p);
+                s.latch.lock();
+                try {
+                    release(s, p, tid);
+                } finally {
+                    s.latch.unlock();
+                }
+            }
+        }
     }
 
-    public boolean isPageLocked(PageId pid){
-        return (pageLockMap.containsKey(pid)) || (pageLockMap.get(pid).size() == 0);
+    /**
+     * search the waits-for graph for a cycle through tid, and if there is one
+     * make its youngest transaction a victim. must not hold a stripe latch.
+     * tid has just started or gone on waiting; the graph had no cycle before, so
+     * a new cycle has to go through tid.
+     * @return the victim, or null if there is no cycle
+     */
+    private TransactionId findDeadlockVictim(TransactionId tid) {
+        detectLatch.lock();
+        try {
+            LinkedList<TransactionId> path = new LinkedList<>();
+            path.add(tid);
+            if (!findCycle(tid, path, new HashSet<TransactionId>())) {
+                return null;
+            }
+            TransactionId youngest = tid;
+            for (TransactionId t : path) {
+                if (t.getId() > youngest.getId()) {
+                    youngest = t;
+                }
+            }
+            if (!youngest.equals(tid)) {
+                // the victim leaves the graph now, and aborts when it wakes up
+                victims.add(youngest);
+                Lock lock = waiting.get(youngest);
+                if (lock != null) {
+                    signalWaiters(lock.getPageid());
+                }
+            }
+            return youngest;
+        } finally {
+            detectLatch.unlock();
+        }
     }
 
-    public boolean isPageWriteLocked(PageId pid) {
-        return pageLockMap.get(pid) != null;
+    /**
+     * depth first search from the last transaction of path back to start.
+     * @return true if found, path then holds the cycle
+     */
+    private boolean findCycle(TransactionId start, LinkedList<TransactionId> path, Set<TransactionId> visited) {
+        for (TransactionId next : waitsFor(path.getLast())) {
+            if (next.equals(start)) {
+                return true;
+            }
+            if (visited.add(next)) {
+                path.addLast(next);
+                if (findCycle(start, path, visited)) {
+                    return true;
+                }
+                path.removeLast();
+            }
+        }
+        return false;
     }
 
     /**
-     * remove a lock from transaction and page that it holds;
-     * then check the
-     * */
-    public synchronized void closeLock (TransactionId tid, PageId pageid, Lock lock) throws TransactionAbortedException,
-    DbException {
-        if (!(tid.equals(lock.getTid())) || !(pageid.equals(lock.getPageid()))) {
-            throw new DbException("close lock error: lock does not corresponding to transaction or page ID");
+     * the edges of tid in the waits-for graph: the transactions holding a lock that
+     * conflicts with the request tid waits with, and those queued ahead of it with a
+     * conflicting request. A victim that is about to abort waits for nobody.
+     */
+    private Set<TransactionId> waitsFor(TransactionId tid) {
+        Set<TransactionId> blockers = new HashSet<>();
+        Lock lock = waiting.get(tid);
+        if (lock == null || victims.contains(tid)) {
+            return blockers;
         }
-        if (lock.getType() == Lock.LOCKTYPE.EXCLUSIVE_LOCK) {
-            pageWriteLockMap.remove(pageid);
-            enableBlockedHandle(pageid);
+        Stripe stripe = stripeOf(lock.getPageid());
+        stripe.latch.lock();
+        try {
+            PageLock pl = stripe.pages.get(lock.getPageid());
+            // the request may have been granted since it was looked up
+            if (pl == null || waiting.get(tid) != lock) {
+                return blockers;
+            }
+            for (Map.Entry<TransactionId, Lock.LOCKTYPE> h : pl.holders.entrySet()) {
+                if (!h.getKey().equals(tid) && !h.getValue().compatibleWith(lock.getType())) {
+                    blockers.add(h.getKey());
+                }
+            }
+            if (pl.queue != null) {
+                for (Lock l : pl.queue) {
+                    if (l == lock) {
+                        break;
+                    }
+                    if (conflicts(l, lock)) {
+                        blockers.add(l.getTid());
+                    }
+                }
+            }
+        } finally {
+            stripe.latch.unlock();
         }
-        List<Lock> locksOnTrans = tranLockMap.get(tid);
-        if (locksOnTrans != null) {
-            locksOnTrans.remove(lock);
-            tranLockMap.put(tid, locksOnTrans);
+        return blockers;
+    }
+
+    private boolean conflicts(Lock a, Lock b) {
+        return !a.getTid().equals(b.getTid()) && !a.getType().compatibleWith(b.getType());
+    }
+
+    /**
+     * @return true if no lock ahead of lock in the queue conflicts with it
+     */
+    private boolean isTurn(LinkedList<Lock> queue, Lock lock) {
+        for (Lock l : queue) {
+            if (l == lock) {
+                return true;
+            }
+            if (conflicts(l, lock)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the lock of the page, a new free one if nobody holds or waits for it.
+     * must hold the stripe's latch
+     */
+    private PageLock pageLock(Stripe stripe, PageId pid) {
+        PageLock pl = stripe.pages.get(pid);
+        if (pl == null) {
+            pl = new PageLock();
+            stripe.pages.put(pid, pl);
         }
-        List<Lock> locksOnPage = pageLockMap.get(pageid);
-        if (locksOnPage != null) {
-            locksOnPage.remove(lock);
-            pageLockMap.put(pageid, locksOnPage);
+        return pl;
+    }
+
+    /**
+     * forget the lock of a page nobody holds or waits for, so the table only holds
+     * locked pages. must hold the stripe's latch
+     */
+    private void dropIfFree(Stripe stripe, PageId pid, PageLock pl) {
+        if (pl.isFree()) {
+            stripe.pages.remove(pid);
+            evictedPages.remove(pid);
         }
     }
 
-    public synchronized void closeLock (TransactionId tid) {
-        List<Lock> locksOnTrans = tranLockMap.get(tid);
+    /**
+     * grant the lock if the locks held on the page allow it, must hold the stripe's latch.
+     * a transaction that holds the page already gets the join of the two modes, which
+     * has to be compatible with the modes of the other holders (see Lock.LOCKTYPE).
+     * @return true if granted
+     */
+    private boolean grant(PageLock pl, TransactionId tid, PageId pageid, Lock.LOCKTYPE type) {
+        Lock.LOCKTYPE held = pl.holders.get(tid);
+        Lock.LOCKTYPE mode = held == null ? type : held.join(type);
+        if (mode == held) {
+            return true;
+        }
+        for (Map.Entry<TransactionId, Lock.LOCKTYPE> h : pl.holders.entrySet()) {
+            if (!h.getKey().equals(tid) && !h.getValue().compatibleWith(mode)) {
+                return false;
+            }
+        }
+        pl.holders.put(tid, mode);
+        if (held == null) {
+            pl.since.put(tid, System.nanoTime());
+        }
+        stats.acquired(pageid);
+        TransLocks locksOnTrans = tranLockMap.get(tid);
         if (locksOnTrans == null) {
+            locksOnTrans = new TransLocks();
+            TransLocks raced = tranLockMap.putIfAbsent(tid, locksOnTrans);
+            if (raced != null) {
+                locksOnTrans = raced;
+            }
+        }
+        locksOnTrans.put(pageid, mode);
+        return true;
+    }
+
+    /**
+     * take tid off the holders of the page and wake up the locks waiting for it,
+     * must hold the stripe's latch
+     */
+    private void release(Stripe stripe, PageId pageid, TransactionId tid) {
+        PageLock pl = stripe.pages.get(pageid);
+        if (pl == null || pl.holders.remove(tid) == null) {
             return;
         }
-        List<Lock> locksOnTransCopy = new LinkedList<>();
-        locksOnTransCopy.addAll(locksOnTrans);
-        if (locksOnTransCopy!= null) {
-           for (Lock l : locksOnTransCopy) {
-               try {
-                   closeLock(tid, l.getPageid(), l);
-               } catch (DbException | TransactionAbortedException e) {
-                   e.printStackTrace();
-               }
-           }
+        Long since = pl.since.remove(tid);
+        if (since != null) {
+            stats.held(pageid, System.nanoTime() - since);
         }
+        if (pl.released != null) {
+            pl.released.signalAll();
+        }
+        dropIfFree(stripe, pageid, pl);
     }
 
+    private void checkLock(TransactionId tid, PageId pageid, Lock lock, String msg) throws DbException {
+        if (!(tid.equals(lock.getTid())) || !(pageid.equals(lock.getPageid()))) {
+            throw new DbException(msg + ": lock doesn't correspoding to transaction or page ID");
+        }
+    }
 
     /**
-     * this method violate the lock rule, it is only used for testing!!
-     * */
-    public synchronized void closeLockDG(TransactionId tid, PageId pageid) {
-        List<Lock> locksOnPage = pageLockMap.get(pageid);
-        if (locksOnPage == null) {
-            return;
+     * wake up the locks waiting for the page
+     */
+    private void signalWaiters(PageId pageid) {
+        Stripe stripe = stripeOf(pageid);
+        stripe.latch.lock();
+        try {
+            PageLock pl = stripe.pages.get(pageid);
+            if (pl != null && pl.released != null) {
+                pl.released.signalAll();
+            }
+        } finally {
+            stripe.latch.unlock();
+        }
+    }
+
+    /**
+     * @return true if some transaction holds the page or table in a mode that covers type
+     */
+    private boolean isLocked(PageId pid, Lock.LOCKTYPE type) {
+        Stripe stripe = stripeOf(pid);
+        stripe.latch.lock();
+        try {
+            PageLock pl = stripe.pages.get(pid);
+            if (pl != null) {
+                for (Lock.LOCKTYPE mode : pl.holders.values()) {
+                    if (mode.covers(type)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            stripe.latch.unlock();
         }
-        List<Lock> locksOmTrans = tranLockMap.get(tid);
-        if (locksOmTrans == null) {
+    }
+
+    public boolean isPageLocked(PageId pid){
+        return isLocked(pid, Lock.LOCKTYPE.SHARE_LOCK)
+                || isLocked(new TableLockId(pid.getTableId()), Lock.LOCKTYPE.SHARE_LOCK);
+    }
+
+    public boolean isPageWriteLocked(PageId pid) {
+        return isLocked(pid, Lock.LOCKTYPE.EXCLUSIVE_LOCK)
+                || isLocked(new TableLockId(pid.getTableId()), Lock.LOCKTYPE.EXCLUSIVE_LOCK);
+    }
+
+    /**
+     * remove a lock from transaction and page that it holds;
+     * then wake up the locks waiting for the page
+     * */
+    public void closeLock (TransactionId tid, PageId pageid, Lock lock) throws TransactionAbortedException,
+    DbException {
+        checkLock(tid, pageid, lock, "close lock error");
+        closeLockDG(tid, pageid);
+    }
+
+    public void closeLock (TransactionId tid) {
+        TransLocks locksOnTrans = tranLockMap.remove(tid);
+        if (locksOnTrans == null) {
             return;
         }
-        List<Lock> locksOnPageCopy = Collections.synchronizedList(new ArrayList<>());
-        List<Lock> locksOnTransCopy = Collections.synchronizedList(new ArrayList<>());
-        for (Lock l : locksOnPage) {
-            if (!(locksOmTrans.contains(l))) {
-                locksOnPageCopy.add(l);
-                locksOnTransCopy.add(l);
+        for (PageId pid : locksOnTrans.locks.keySet()) {
+            Stripe stripe = stripeOf(pid);
+            stripe.latch.lock();
+            try {
+                release(stripe, pid, tid);
+            } finally {
+                stripe.latch.unlock();
             }
         }
-        pageLockMap.put(pageid, locksOnPageCopy);
-        tranLockMap.put(tid, locksOnTransCopy);
-        Lock writeLockOnPage = getPageWriteLock(pageid);
-        if (writeLockOnPage.getTid().equals(tid)) {
-            pageWriteLockMap.remove(pageid);
-        }
-        return;
     }
 
+
     /**
-     * when a page is released by write lock, notify this function to enable the lock that is in waiting list;
-     * blocked locks is a LIFO queue in waiting line
+     * this method violate the lock rule, it is only used for testing!!
      * */
-    public synchronized void enableBlockedHandle (PageId pageid) throws DbException,
-    TransactionAbortedException {
-        List<Lock> blockedHandleCopy = Collections.synchronizedList(new ArrayList<>());
-        blockedHandleCopy.addAll(blockedHandle);
-        for (Lock l : blockedHandleCopy) {
-            if (l.getPageid().equals(pageid)) {
-                blockedHandle.remove(l);
-                addLock(l.getTid(), pageid, l);
-            }
+    public void closeLockDG(TransactionId tid, PageId pageid) {
+        TransLocks locksOnTrans = tranLockMap.get(tid);
+        if (locksOnTrans != null) {
+            locksOnTrans.remove(pageid);
+        }
+        Stripe stripe = stripeOf(pageid);
+        stripe.latch.lock();
+        try {
+            release(stripe, pageid, tid);
+        } finally {
+            stripe.latch.unlock();
         }
     }
 
+    /**
+     * @return true if tid locks the page, or locks its table as a whole
+     */
     public boolean holdsLock (TransactionId tid, PageId pid) {
-        List<Lock> locksOnPage = pageLockMap.get(pid);
-        if (locksOnPage == null) {
-            return false;
-        }
-        List<Lock> locksOnTran = tranLockMap.get(tid);
-        if (locksOnTran == null) {
+        TransLocks locksOnTrans = tranLockMap.get(tid);
+        if (locksOnTrans == null) {
             return false;
         }
-        for (Lock l : locksOnPage) {
-            if (locksOnTran.contains(l)) {
-                return true;
-            }
-        }
-        return false;
+        return locksOnTrans.locks.containsKey(pid) || coveredByParent(tid, pid, Lock.LOCKTYPE.SHARE_LOCK);
     }
 
     /**
      * helper function for Bufferpool's evictPage function
-     * to record in control board the page that has locked by readLock and evicted from the Bufferpool
+     * to record in control board the page that has locked by readLock and evicted from the Bufferpool;
+     * it is forgotten again when the page is no longer locked
     */
-    public synchronized void recordCleanEvictPage(PageId pid) {
+    public void recordCleanEvictPage(PageId pid) {
         if (isPageLocked(pid)) {
-            List<Lock> lockOnPage = pageLockMap.get(pid);
-            for (Lock l : lockOnPage) {
-                evictedLock.add(l);
-            }
+            evictedPages.add(pid);
         }
     }
 
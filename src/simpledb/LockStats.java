@@ -0,0 +1,377 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of the LockControlBoard, to see where transactions block. Every
+ * table gets the sum of the counters of everything locked in it (the
+ * TableLockId included), and every page, record and table lock id that saw a
+ * conflict its own counters:
+ * <ul>
+ * <li>acquisitions: locks granted, or changed to a stronger mode</li>
+ * <li>conflicts: requests that could not be granted right away, whether they
+ * waited or gave up</li>
+ * <li>aborts: waits that ended in a TransactionAbortedException, from a
+ * deadlock, a time out or an interrupt</li>
+ * <li>upgrades: requests of a holder for a stronger mode, granted or not</li>
+ * <li>wait and hold times, as histograms of milliseconds</li>
+ * </ul>
+ * The counters of a lock id start with its first conflict, so they leave out
+ * what happened to it before; locks nobody ever waited for, most record locks,
+ * cost no map entry. At most MAX_IDS lock ids are counted, later ones only in
+ * their table. Counters are kept until reset. snapshot copies them for
+ * reporting; LockControlBoard.snapshot adds the transactions waiting right now.
+ */
+public class LockStats {
+
+    /**
+     * Number of buckets of the time histograms. Bucket 0 counts times below
+     * 1 ms, bucket i times in [2^(i-1), 2^i) ms, the last one everything longer.
+     */
+    public static final int BUCKETS = 16;
+
+    /** the most lock ids that get their own counters */
+    public static final int MAX_IDS = 10000;
+
+    /** the counters of one lock id or table */
+    private static class Counters {
+        final AtomicLong acquisitions = new AtomicLong();
+        final AtomicLong conflicts = new AtomicLong();
+        final AtomicLong aborts = new AtomicLong();
+        final AtomicLong upgrades = new AtomicLong();
+        final AtomicLong waitNanos = new AtomicLong();
+        final AtomicLongArray waits = new AtomicLongArray(BUCKETS);
+        final AtomicLongArray holds = new AtomicLongArray(BUCKETS);
+    }
+
+    private final ConcurrentHashMap<PageId, Counters> byId = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Counters> byTable = new ConcurrentHashMap<>();
+
+    /**
+     * @return the bucket of a time of the given nanoseconds
+     */
+    static int bucketOf(long nanos) {
+        long millis = nanos / 1000000;
+        int b = 64 - Long.numberOfLeadingZeros(millis);
+        return Math.min(b, BUCKETS - 1);
+    }
+
+    /**
+     * @return the upper end of a bucket in milliseconds, Long.MAX_VALUE for the last one
+     */
+    public static long bucketLimit(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    /**
+     * @return the counters of pid, created if it has none yet and create is set
+     * and there is room; null if it has none
+     */
+    private Counters of(PageId pid, boolean create) {
+        Counters c = byId.get(pid);
+        if (c == null && create && byId.size() < MAX_IDS) {
+            Counters raced = byId.putIfAbsent(pid, c = new Counters());
+            if (raced != null) {
+                c = raced;
+            }
+        }
+        return c;
+    }
+
+    /** @return the number of lock ids with their own counters */
+    int trackedIds() {
+        return byId.size();
+    }
+
+    private Counters ofTable(PageId pid) {
+        Integer table = pid.getTableId();
+        Counters c = byTable.get(table);
+        if (c == null) {
+            Counters raced = byTable.putIfAbsent(table, c = new Counters());
+            if (raced != null) {
+                c = raced;
+            }
+        }
+        return c;
+    }
+
+    void acquired(PageId pid) {
+        Counters c = of(pid, false);
+        if (c != null) {
+            c.acquisitions.incrementAndGet();
+        }
+        ofTable(pid).acquisitions.incrementAndGet();
+    }
+
+    void conflict(PageId pid) {
+        Counters c = of(pid, true);
+        if (c != null) {
+            c.conflicts.incrementAndGet();
+        }
+        ofTable(pid).conflicts.incrementAndGet();
+    }
+
+    void aborted(PageId pid) {
+        Counters c = of(pid, false);
+        if (c != null) {
+            c.aborts.incrementAndGet();
+        }
+        ofTable(pid).aborts.incrementAndGet();
+    }
+
+    void upgrade(PageId pid) {
+        Counters c = of(pid, false);
+        if (c != null) {
+            c.upgrades.incrementAndGet();
+        }
+        ofTable(pid).upgrades.incrementAndGet();
+    }
+
+    /** a request waited nanos for pid, whether it got the lock or not */
+    void waited(PageId pid, long nanos) {
+        int b = bucketOf(nanos);
+        for (Counters c : new Counters[] {of(pid, false), ofTable(pid)}) {
+            if (c != null) {
+                c.waitNanos.addAndGet(nanos);
+                c.waits.incrementAndGet(b);
+            }
+        }
+    }
+
+    /** a lock on pid was released after nanos */
+    void held(PageId pid, long nanos) {
+        int b = bucketOf(nanos);
+        Counters c = of(pid, false);
+        if (c != null) {
+            c.holds.incrementAndGet(b);
+        }
+        ofTable(pid).holds.incrementAndGet(b);
+    }
+
+    /** forget all counters */
+    public void reset() {
+        byId.clear();
+        byTable.clear();
+    }
+
+    /**
+     * @param topN the number of most contended lock ids to list
+     * @return a copy of the counters, without waiters
+     */
+    public Snapshot snapshot(int topN) {
+        return snapshot(topN, Collections.<Waiter>emptyList());
+    }
+
+    Snapshot snapshot(int topN, List<Waiter> waiters) {
+        List<Entry> hot = new ArrayList<>();
+        for (Map.Entry<PageId, Counters> e : byId.entrySet()) {
+            hot.add(new Entry(e.getKey(), e.getValue()));
+        }
+        Collections.sort(hot, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                if (a.conflicts != b.conflicts) {
+                    return a.conflicts > b.conflicts ? -1 : 1;
+                }
+                return Long.compare(b.waitNanos, a.waitNanos);
+            }
+        });
+        if (hot.size() > topN) {
+            hot = new ArrayList<>(hot.subList(0, topN));
+        }
+        Map<Integer, Entry> tables = new TreeMap<>();
+        for (Map.Entry<Integer, Counters> e : byTable.entrySet()) {
+            tables.put(e.getKey(), new Entry(new TableLockId(e.getKey()), e.getValue()));
+        }
+        return new Snapshot(hot, tables, waiters);
+    }
+
+    /**
+     * @return a readable name of a lock id
+     */
+    static String name(PageId pid) {
+        if (pid instanceof TableLockId || pid instanceof RecordLockId) {
+            return pid.toString();
+        }
+        return "page " + pid.getTableId() + "/" + pid.pageNumber();
+    }
+
+    /** the counters of one lock id or table at the time of the snapshot */
+    public static class Entry {
+        private final PageId id;
+        private final long acquisitions, conflicts, aborts, upgrades, waitNanos;
+        private final long[] waits = new long[BUCKETS];
+        private final long[] holds = new long[BUCKETS];
+
+        private Entry(PageId id, Counters c) {
+            this.id = id;
+            this.acquisitions = c.acquisitions.get();
+            this.conflicts = c.conflicts.get();
+            this.aborts = c.aborts.get();
+            this.upgrades = c.upgrades.get();
+            this.waitNanos = c.waitNanos.get();
+            for (int i = 0; i < BUCKETS; i++) {
+                waits[i] = c.waits.get(i);
+                holds[i] = c.holds.get(i);
+            }
+        }
+
+        /** @return the lock id, a TableLockId for the counters of a table */
+        public PageId getId() {
+            return id;
+        }
+
+        public long getAcquisitions() {
+            return acquisitions;
+        }
+
+        public long getConflicts() {
+            return conflicts;
+        }
+
+        public long getAborts() {
+            return aborts;
+        }
+
+        public long getUpgrades() {
+            return upgrades;
+        }
+
+        /** @return the number of requests that waited */
+        public long getWaits() {
+            long n = 0;
+            for (long w : waits) {
+                n += w;
+            }
+            return n;
+        }
+
+        public long getTotalWaitMillis() {
+            return waitNanos / 1000000;
+        }
+
+        /** @return the wait times by bucket, see LockStats.BUCKETS */
+        public long[] getWaitHistogram() {
+            return waits.clone();
+        }
+
+        /** @return the hold times by bucket, see LockStats.BUCKETS */
+        public long[] getHoldHistogram() {
+            return holds.clone();
+        }
+
+        public String toString() {
+            return name(id) + ": " + acquisitions + " acquired, " + conflicts + " conflicts, "
+                    + getWaits() + " waits (" + getTotalWaitMillis() + " ms), " + aborts + " aborts, "
+                    + upgrades + " upgrades, waits " + histogram(waits) + ", holds " + histogram(holds);
+        }
+
+        private static String histogram(long[] buckets) {
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < BUCKETS; i++) {
+                if (buckets[i] > 0) {
+                    if (sb.length() > 1) {
+                        sb.append(' ');
+                    }
+                    sb.append(i == BUCKETS - 1 ? ">=" + (1L << (i - 1)) : "<" + bucketLimit(i));
+                    sb.append("ms:").append(buckets[i]);
+                }
+            }
+            return sb.append(']').toString();
+        }
+    }
+
+    /** a transaction waiting for a lock at the time of the snapshot */
+    public static class Waiter {
+        private final TransactionId tid;
+        private final PageId id;
+        private final Lock.LOCKTYPE mode;
+        private final long waitMillis;
+        private final Set<TransactionId> blockers;
+
+        Waiter(TransactionId tid, PageId id, Lock.LOCKTYPE mode, long waitMillis, Set<TransactionId> blockers) {
+            this.tid = tid;
+            this.id = id;
+            this.mode = mode;
+            this.waitMillis = waitMillis;
+            this.blockers = blockers;
+        }
+
+        public TransactionId getTransactionId() {
+            return tid;
+        }
+
+        public PageId getId() {
+            return id;
+        }
+
+        public Lock.LOCKTYPE getMode() {
+            return mode;
+        }
+
+        /** @return how long it has waited so far */
+        public long getWaitMillis() {
+            return waitMillis;
+        }
+
+        /** @return the transactions it waits for, its edges in the waits-for graph */
+        public Set<TransactionId> getBlockers() {
+            return blockers;
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (TransactionId b : blockers) {
+                sb.append(sb.length() == 0 ? "" : ", ").append(b.getId());
+            }
+            return "transaction " + tid.getId() + " waits " + waitMillis + " ms for " + mode + " on "
+                    + name(id) + ", blocked by " + sb;
+        }
+    }
+
+    /** what snapshot returns */
+    public static class Snapshot {
+        private final List<Entry> hot;
+        private final Map<Integer, Entry> tables;
+        private final List<Waiter> waiters;
+
+        private Snapshot(List<Entry> hot, Map<Integer, Entry> tables, List<Waiter> waiters) {
+            this.hot = Collections.unmodifiableList(hot);
+            this.tables = Collections.unmodifiableMap(tables);
+            this.waiters = Collections.unmodifiableList(waiters);
+        }
+
+        /** @return the lock ids with the most conflicts, most first */
+        public List<Entry> getHotLocks() {
+            return hot;
+        }
+
+        /** @return the counters of every table by table id */
+        public Map<Integer, Entry> getTables() {
+            return tables;
+        }
+
+        /** @return the transactions waiting for a lock, longest wait first */
+        public List<Waiter> getWaiters() {
+            return waiters;
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder("tables:\n");
+            for (Entry e : tables.values()) {
+                sb.append("  ").append(e).append('\n');
+            }
+            sb.append("most contended:\n");
+            for (Entry e : hot) {
+                sb.append("  ").append(e).append('\n');
+            }
+            sb.append("waiting:\n");
+            for (Waiter w : waiters) {
+                sb.append("  ").append(w).append('\n');
+            }
+            return sb.toString();
+        }
+    }
+}
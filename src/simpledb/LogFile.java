@@ -265,7 +265,8 @@ public class LogFile {
             }
             pid = (PageId)idConsts[0].newInstance(idArgs);
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
+            // the constructor taking the bytes read from disk, a page class may have others
+            Constructor<?> pageConst = pageClass.getDeclaredConstructor(idClass, byte[].class);
             int pageSize = raf.readInt();
 
             byte[] pageData = new byte[pageSize];
@@ -275,7 +276,7 @@ public class LogFile {
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            newPage = (Page)pageConst.newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException e){
@@ -290,6 +291,9 @@ public class LogFile {
         } catch (InvocationTargetException e) {
             e.printStackTrace();
             throw new IOException();
+        } catch (NoSuchMethodException e) {
+            e.printStackTrace();
+            throw new IOException();
         }
         return newPage;
 
@@ -271,6 +271,58 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** Choose how to read the tuples of a table that match its filters: a scan
+     *  of the whole table with a Filter for each of them, or an index scan
+     *  for one filter on an indexed field with Filters for the others. A
+     *  filter on the key field of a BTreeFile becomes a BTreeScan with an
+     *  IndexPredicate, a filter on a field with a {@link SecondaryIndex} an
+     *  {@link IndexLookup}. The cheapest by {@link TableStats} wins.
+     *  @param scan the scan of the whole table
+     *  @param preds the filters on the table, in the order of the query
+     *  @param sels the selectivity of each filter
+     *  @return the access path, with its residual filters on top
+     */
+    private DbIterator accessPath(TransactionId t, String alias, DbIterator scan,
+                                  Vector<Predicate> preds, Vector<Double> sels,
+                                  TableStats s, boolean explain) {
+        int tableId = this.getTableId(alias);
+        DbFile file = Database.getCatalog().getDbFile(tableId);
+        double bestCost = s == null ? 0 : s.estimateScanCost();
+        int best = -1;
+        for (int i = 0; i < preds.size(); i++) {
+            Predicate p = preds.get(i);
+            if (s == null || p.getOp() == Predicate.Op.LIKE || p.getOp() == Predicate.Op.NOT_EQUALS)
+                continue;
+            boolean clustered = file instanceof BTreeFile && ((BTreeFile) file).keyField() == p.getField();
+            if (!clustered && Database.getCatalog().getIndex(tableId, p.getField()) == null)
+                continue;
+            double cost = s.estimateIndexScanCost(sels.get(i), clustered);
+            if (cost < bestCost) {
+                bestCost = cost;
+                best = i;
+            }
+        }
+
+        DbIterator plan = scan;
+        if (best != -1) {
+            Predicate p = preds.get(best);
+            IndexPredicate ipred = new IndexPredicate(p.getOp(), p.getOperand());
+            if (file instanceof BTreeFile && ((BTreeFile) file).keyField() == p.getField())
+                plan = new BTreeScan(t, tableId, alias, ipred);
+            else
+                plan = new IndexLookup(t, Database.getCatalog().getIndex(tableId, p.getField()), alias, ipred);
+            if (explain)
+                System.out.println("Index scan of " + alias + " on "
+                        + scan.getTupleDesc().getFieldName(p.getField()) + " " + p.getOp() + " "
+                        + p.getOperand() + ", cost " + bestCost + " instead of " + s.estimateScanCost());
+        }
+        for (int i = 0; i < preds.size(); i++) {
+            if (i != best)
+                plan = new Filter(preds.get(i), plan);
+        }
+        return plan;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link DbIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned DbIterator will run as a part of
@@ -289,12 +341,19 @@ public class LogicalPlan {
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        // the filters of each table, applied once its access path is chosen
+        HashMap<String,Vector<Predicate>> filterPredicates = new HashMap<String,Vector<Predicate>>();
+        HashMap<String,Vector<Double>> predicateSelectivities = new HashMap<String,Vector<Double>>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
+            DbIterator ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDbFile(table.t).getId(), table.alias);
+                 DbFile file = Database.getCatalog().getDbFile(table.t);
+                 if (file instanceof BTreeFile)
+                     ss = new BTreeScan(t, file.getId(), table.alias, null);
+                 else
+                     ss = new SeqScan(t, file.getId(), table.alias);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
@@ -303,6 +362,8 @@ public class LogicalPlan {
             String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
             filterSelectivities.put(table.alias, 1.0);
+            filterPredicates.put(table.alias, new Vector<Predicate>());
+            predicateSelectivities.put(table.alias, new Vector<Double>());
 
         }
 
@@ -334,15 +395,23 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            filterPredicates.get(lf.tableAlias).add(p);
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
             double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
+            predicateSelectivities.get(lf.tableAlias).add(sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
+
+        for (Map.Entry<String,Vector<Predicate>> e : filterPredicates.entrySet()) {
+            String alias = e.getKey();
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(alias)));
+            subplanMap.put(alias, accessPath(t, alias, subplanMap.get(alias), e.getValue(),
+                    predicateSelectivities.get(alias), s, explain));
+        }
         
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
@@ -0,0 +1,97 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * MappedPageChannel is the memory-mapped storage mode of a DbFile, meant for
+ * read-mostly tables. Reads are served from a read-only mapping of the whole
+ * file with FileChannel.map, so reading a page is a memory copy and no system
+ * call. Writes still go through the channel with positional writes; the
+ * mapping is shared with the OS page cache, so it sees them.
+ * <p>
+ * The mapping covers the file as it was when it was made. When a write has
+ * grown the file (e.g. insertTuple appended a page) the next read past the
+ * end of the mapping maps the file again at its new size. Files bigger than
+ * a single mapping can hold (2GB) are read through the channel instead.
+ *
+ * @see Catalog#loadSchema(String)
+ */
+public class MappedPageChannel extends PageChannel {
+
+    private volatile MappedByteBuffer map;
+
+    public MappedPageChannel(File file) {
+        super(file);
+    }
+
+    @Override
+    public int read(long position, byte[] b) throws IOException {
+        ByteBuffer m = mapping(position + b.length);
+        if (m == null) {
+            return super.read(position, b);
+        }
+        if (position >= m.capacity()) {
+            return b.length > 0 ? -1 : 0;
+        }
+        int n = (int) Math.min(b.length, m.capacity() - position);
+        // a duplicate has its own position, the mapping itself is shared by all readers
+        ByteBuffer view = m.duplicate();
+        view.position((int) position);
+        view.get(b, 0, n);
+        return n;
+    }
+
+    /**
+     * A read-only view of length bytes of the mapping at position, without
+     * copying them. Only valid while nobody writes that part of the file.
+     *
+     * @return the view, or null if that part of the file is not mapped
+     */
+    public ByteBuffer slice(long position, int length) throws IOException {
+        ByteBuffer m = mapping(position + length);
+        if (m == null || position + length > m.capacity()) {
+            return null;
+        }
+        ByteBuffer view = m.duplicate();
+        view.position((int) position);
+        view.limit((int) position + length);
+        return view.slice();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            map = null;
+        }
+        super.close();
+    }
+
+    /**
+     * @return a mapping that covers end if the file is that long, otherwise
+     * the whole file; null if the file is empty or too big to map
+     */
+    private ByteBuffer mapping(long end) throws IOException {
+        MappedByteBuffer m = map;
+        if (m != null && m.capacity() >= end) {
+            return m;
+        }
+        synchronized (this) {
+            m = map;
+            long size = size();
+            if (m != null && m.capacity() >= Math.min(end, size)) {
+                return m;
+            }
+            if (size == 0 || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            // the old mapping is released when the garbage collector finds it
+            m = channel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            map = m;
+            return m;
+        }
+    }
+}
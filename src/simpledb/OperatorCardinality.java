@@ -25,7 +25,15 @@ public class OperatorCardinality {
             return updateFilterCardinality((Filter) o, tableAliasToId,
                     tableStats);
         } else if (o instanceof Join) {
-            return updateJoinCardinality((Join) o, tableAliasToId, tableStats);
+            Join j = (Join) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
+                    tableAliasToId, tableStats);
+        } else if (o instanceof IndexNestedLoopJoin) {
+            IndexNestedLoopJoin j = (IndexNestedLoopJoin) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
+                    tableAliasToId, tableStats);
         } else if (o instanceof HashEquiJoin) {
             return updateHashEquiJoinCardinality((HashEquiJoin) o,
                     tableAliasToId, tableStats);
@@ -41,10 +49,8 @@ public class OperatorCardinality {
                     hasJoinPK = updateOperatorCardinality(
                             (Operator) children[0], tableAliasToId, tableStats);
                     childC = ((Operator) children[0]).getEstimatedCardinality();
-                } else if (children[0] instanceof SeqScan) {
-                    childC = tableStats.get(
-                            ((SeqScan) children[0]).getTableName())
-                            .estimateTableCardinality(1.0);
+                } else if (isScan(children[0])) {
+                    childC = scanCardinality(children[0], tableStats);
                 }
             }
             o.setEstimatedCardinality(childC);
@@ -52,6 +58,40 @@ public class OperatorCardinality {
         }
     }
 
+    private static boolean isScan(DbIterator child) {
+        return child instanceof SeqScan || child instanceof BTreeScan
+                || child instanceof IndexLookup;
+    }
+
+    /**
+     * The cardinality of a scan of a table; an index scan returns only the
+     * tuples matching its index predicate.
+     */
+    private static int scanCardinality(DbIterator scan,
+            Map<String, TableStats> tableStats) {
+        String tableName;
+        IndexPredicate ipred = null;
+        int field = -1;
+        if (scan instanceof BTreeScan) {
+            BTreeScan s = (BTreeScan) scan;
+            tableName = s.getTableName();
+            ipred = s.getIndexPredicate();
+            field = ((BTreeFile) Database.getCatalog().getDbFile(
+                    Database.getCatalog().getTableId(tableName))).keyField();
+        } else if (scan instanceof IndexLookup) {
+            IndexLookup s = (IndexLookup) scan;
+            tableName = s.getTableName();
+            ipred = s.getIndexPredicate();
+            field = s.getIndex().getField();
+        } else {
+            tableName = ((SeqScan) scan).getTableName();
+        }
+        TableStats stats = tableStats.get(tableName);
+        double selectivity = ipred == null ? 1.0 : stats.estimateSelectivity(
+                field, ipred.getOp(), ipred.getField());
+        return stats.estimateTableCardinality(selectivity);
+    }
+
     private static boolean updateFilterCardinality(Filter f,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
@@ -77,10 +117,9 @@ public class OperatorCardinality {
                 f.setEstimatedCardinality((int) (oChild
                         .getEstimatedCardinality() * selectivity) + 1);
                 return hasJoinPK;
-            } else if (child instanceof SeqScan) {
-                f.setEstimatedCardinality((int) (tableStats.get(
-                        ((SeqScan) child).getTableName())
-                        .estimateTableCardinality(1.0) * selectivity) + 1);
+            } else if (isScan(child)) {
+                f.setEstimatedCardinality((int) (scanCardinality(child,
+                        tableStats) * selectivity) + 1);
                 return false;
             }
         }
@@ -88,7 +127,8 @@ public class OperatorCardinality {
         return false;
     }
 
-    private static boolean updateJoinCardinality(Join j,
+    private static boolean updateJoinCardinality(Operator j,
+            JoinPredicate jp, String joinField1Name, String joinField2Name,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
 
@@ -98,11 +138,11 @@ public class OperatorCardinality {
         int child1Card = 1;
         int child2Card = 1;
 
-        String[] tmp1 = j.getJoinField1Name().split("[.]");
+        String[] tmp1 = joinField1Name.split("[.]");
         String tableAlias1 = tmp1[0];
         String pureFieldName1 = tmp1[1];
 
-        String[] tmp2 = j.getJoinField2Name().split("[.]");
+        String[] tmp2 = joinField2Name.split("[.]");
         String tableAlias2 = tmp2[0];
         String pureFieldName2 = tmp2[1];
 
@@ -120,9 +160,8 @@ public class OperatorCardinality {
             child1HasJoinPK = pk || child1HasJoinPK;
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
-        } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (isScan(child1)) {
+            child1Card = scanCardinality(child1, tableStats);
         }
 
         if (child2 instanceof Operator) {
@@ -132,13 +171,12 @@ public class OperatorCardinality {
             child2HasJoinPK = pk || child2HasJoinPK;
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
-        } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (isScan(child2)) {
+            child2Card = scanCardinality(child2, tableStats);
         }
 
-        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
-                .getJoinPredicate().getOperator(), tableAlias1, tableAlias2,
+        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(jp
+                .getOperator(), tableAlias1, tableAlias2,
                 pureFieldName1, pureFieldName2, child1Card, child2Card,
                 child1HasJoinPK, child2HasJoinPK, tableStats, tableAliasToId));
         return child1HasJoinPK || child2HasJoinPK;
@@ -177,9 +215,8 @@ public class OperatorCardinality {
             child1HasJoinPK = pk || child1HasJoinPK;
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
-        } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (isScan(child1)) {
+            child1Card = scanCardinality(child1, tableStats);
         }
 
         if (child2 instanceof Operator) {
@@ -189,9 +226,8 @@ public class OperatorCardinality {
             child2HasJoinPK = pk || child2HasJoinPK;
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
-        } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (isScan(child2)) {
+            child2Card = scanCardinality(child2, tableStats);
         }
 
         j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
@@ -219,9 +255,8 @@ public class OperatorCardinality {
             return hasJoinPK;
         }
 
-        if (child instanceof SeqScan) {
-            childCard = (int) (tableStats.get(((SeqScan) child).getTableName())
-                    .estimateTableCardinality(1.0));
+        if (isScan(child)) {
+            childCard = scanCardinality(child, tableStats);
         }
 
         String[] tmp = a.groupFieldName().split("[.]");
@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 /**
  * Page is the interface used to represent pages that are resident in the
  * BufferPool.  Typically, DbFiles will read and write pages from disk.
@@ -56,4 +58,19 @@ public interface Page {
      * copy current content to the before image.
      */
     public void setBeforeImage();
+
+    /**
+     * The latch of this page, a short read/write latch that protects its contents
+     * while they are read or changed. It is separate from the transactional locks
+     * of the LockControlBoard: those say which transactions may use the page until
+     * they commit, the latch only makes each single access safe, so it is held for
+     * the duration of one access and readers of the same page do not serialize.
+     * <p>
+     * The page methods that read or change the contents take the latch themselves.
+     * A caller that needs several of them to happen at once (find an empty slot and
+     * fill it) holds the write latch around them; it is reentrant. Never wait for a
+     * lock while holding a latch, and never ask for the write latch while holding
+     * the read latch.
+     */
+    public ReentrantReadWriteLock getLatch();
 }
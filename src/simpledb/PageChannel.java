@@ -0,0 +1,178 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * PageChannel does the disk I/O of one DbFile through a long-lived FileChannel
+ * with positional reads and writes, instead of opening a RandomAccessFile or a
+ * stream for every page. Positional I/O does not move a shared file pointer,
+ * so concurrent reads and writes of different pages need no locking.
+ * <p>
+ * The size of the file is cached and kept up to date by the writes that go
+ * through this object, so numPages() costs no system call. The file must not
+ * be changed behind its back while the channel is open.
+ * <p>
+ * The channels of all files form a pool of at most MAX_OPEN_CHANNELS open file
+ * descriptors; the least recently used one is closed when the pool is full and
+ * reopened on its next use.
+ */
+public class PageChannel {
+
+    /** Maximum number of channels kept open at the same time. */
+    public static final int MAX_OPEN_CHANNELS = 128;
+
+    // open channels in LRU order, guarded by the class
+    private static final LinkedHashSet<PageChannel> open = new LinkedHashSet<>();
+
+    private final File file;
+    private volatile FileChannel channel;
+    // guards opening and closing channel only, never held while taking another lock
+    private final Object openLock = new Object();
+    // size of the file in bytes, -1 until the file has been looked at
+    private long size = -1;
+
+    public PageChannel(File file) {
+        this.file = file;
+    }
+
+    /** @return the file this channel reads and writes */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return size of the file in bytes, from the cache once it has been looked at
+     */
+    public synchronized long size() throws IOException {
+        if (size < 0) {
+            if (channel == null && !file.exists()) {
+                return 0;
+            }
+            size = channel().size();
+        }
+        return size;
+    }
+
+    /**
+     * Read up to b.length bytes starting at position into b, with as few reads
+     * as the OS allows (one for a whole page).
+     *
+     * @return the number of bytes read, -1 if position is at or past the end of the file
+     */
+    public int read(long position, byte[] b) throws IOException {
+        while (true) {
+            FileChannel ch = channel();
+            try {
+                ByteBuffer buf = ByteBuffer.wrap(b);
+                while (buf.hasRemaining()) {
+                    int n = ch.read(buf, position + buf.position());
+                    if (n < 0) {
+                        break;
+                    }
+                }
+                return buf.position() == 0 && b.length > 0 ? -1 : buf.position();
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // closed by the pool while in use, open it again and retry
+            }
+        }
+    }
+
+    /**
+     * Write all of b at position, growing the file if needed.
+     */
+    public void write(long position, byte[] b) throws IOException {
+        while (true) {
+            FileChannel ch = channel();
+            try {
+                ByteBuffer buf = ByteBuffer.wrap(b);
+                while (buf.hasRemaining()) {
+                    ch.write(buf, position + buf.position());
+                }
+                break;
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // closed by the pool while in use, open it again and retry
+            }
+        }
+        synchronized (this) {
+            if (size >= 0) {
+                size = Math.max(size, position + b.length);
+            }
+        }
+    }
+
+    /**
+     * close the channel and forget the cached size, the next use opens it again.
+     */
+    public void close() {
+        synchronized (PageChannel.class) {
+            open.remove(this);
+        }
+        synchronized (openLock) {
+            closeChannel();
+        }
+        synchronized (this) {
+            size = -1;
+        }
+    }
+
+    /**
+     * @return the open channel, opening it (and closing the least recently
+     * used one if the pool is full) if needed
+     */
+    protected FileChannel channel() throws IOException {
+        PageChannel victim = null;
+        FileChannel ch;
+        synchronized (PageChannel.class) {
+            open.remove(this);
+            open.add(this);
+            if (open.size() > MAX_OPEN_CHANNELS) {
+                Iterator<PageChannel> oldest = open.iterator();
+                victim = oldest.next();
+                oldest.remove();
+            }
+        }
+        if (victim != null) {
+            synchronized (victim.openLock) {
+                victim.closeChannel();
+            }
+        }
+        synchronized (openLock) {
+            ch = channel;
+            if (ch == null || !ch.isOpen()) {
+                try {
+                    ch = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                            StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                } catch (IOException e) {
+                    // e.g. a read-only file
+                    ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                }
+                channel = ch;
+            }
+        }
+        return ch;
+    }
+
+    private void closeChannel() {
+        FileChannel ch = channel;
+        channel = null;
+        if (ch != null) {
+            try {
+                ch.close();
+            } catch (IOException e) {
+                // nothing to lose, the channel only had positional I/O
+            }
+        }
+    }
+}
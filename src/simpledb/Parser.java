@@ -453,7 +453,8 @@ public class Parser {
             if (curtrans != null)
                 throw new simpledb.ParsingException(
                         "Can't start new transactions until current transaction has been committed or rolledback.");
-            curtrans = new Transaction();
+            // SET TRANSACTION READ ONLY reads a snapshot, like a query on its own
+            curtrans = new Transaction(s.isReadOnly());
             curtrans.start();
             inUserTrans = true;
             System.out.println("Started a new transaction tid = "
@@ -511,7 +512,9 @@ public class Parser {
                 handleTransactStatement((ZTransactStmt) s);
             else {
                 if (!this.inUserTrans) {
-                    curtrans = new Transaction();
+                    // a query on its own only reads, it reads a snapshot instead of
+                    // locking and neither waits for writers nor holds them up
+                    curtrans = new Transaction(s instanceof ZQuery);
                     curtrans.start();
                     System.out.println("Started a new transaction tid = "
                             + curtrans.getId().getId());
@@ -9,10 +9,12 @@ public class QueryPlanVisualizer {
 
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
+    static final String INDEX_JOIN = "⨝(index)";
     static final String SELECT = "σ";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
+    static final String INDEX_SCAN = "index scan";
     static final String ORDERBY = "o";
     static final String GROUPBY = "g";
     static final String SPACE = "  ";
@@ -26,7 +28,8 @@ public class QueryPlanVisualizer {
         Operator o = (Operator) root;
         DbIterator[] children = o.getChildren();
 
-        if (o instanceof Join || o instanceof HashEquiJoin) {
+        if (o instanceof Join || o instanceof HashEquiJoin
+                || o instanceof IndexNestedLoopJoin) {
             int d1 = this.calculateQueryPlanTreeDepth(children[0]);
             int d2 = this.calculateQueryPlanTreeDepth(children[1]);
             return Math.max(d1, d2) + 3;
@@ -65,24 +68,54 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null, null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
+        if (!(queryPlan instanceof Operator)) {
+            String tableName;
+            String alias;
+            String scan = SCAN;
+            String index = null;
+            if (queryPlan instanceof BTreeScan) {
+                BTreeScan s = (BTreeScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                IndexPredicate ipred = s.getIndexPredicate();
+                if (ipred != null) {
+                    scan = INDEX_SCAN;
+                    int keyField = ((BTreeFile) Database.getCatalog().getDbFile(
+                            Database.getCatalog().getTableId(tableName))).keyField();
+                    index = s.getTupleDesc().getFieldName(keyField) + ipred.getOp() + ipred.getField();
+                }
+            } else if (queryPlan instanceof IndexLookup) {
+                IndexLookup s = (IndexLookup) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                scan = INDEX_SCAN;
+                IndexPredicate ipred = s.getIndexPredicate();
+                index = s.getTupleDesc().getFieldName(s.getIndex().getField());
+                if (ipred != null)
+                    index += ipred.getOp().toString() + ipred.getField();
+            } else {
+                SeqScan s = (SeqScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+            }
 //            TupleDesc td = s.getTupleDesc();
             if (!tableName.equals(alias))
                 alias = " " + alias;
             else
                 alias = "";
-            thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
-            if (SCAN.length() / 2 < parentUpperBarStartShift) {
+            if (index == null)
+                thisNode.text = String
+                        .format("%1$s(%2$s)", scan, tableName + alias);
+            else
+                thisNode.text = String.format("%1$s(%2$s),%3$s", scan,
+                        tableName + alias, index);
+            if (scan.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - SCAN.length() / 2;
+                        - scan.length() / 2;
             } else {
-                thisNode.upBarPosition = currentStartPosition + SCAN.length()
+                thisNode.upBarPosition = currentStartPosition + scan.length()
                         / 2;
                 thisNode.textStartPosition = currentStartPosition;
             }
@@ -136,18 +169,26 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = left;
                 thisNode.rightChild = right;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof HashEquiJoin) {
-                HashEquiJoin j = (HashEquiJoin) plan;
-                JoinPredicate jp = j.getJoinPredicate();
-                TupleDesc td = j.getTupleDesc();
+            } else if (plan instanceof HashEquiJoin
+                    || plan instanceof IndexNestedLoopJoin) {
+                String join;
+                JoinPredicate jp;
+                if (plan instanceof HashEquiJoin) {
+                    join = HASH_JOIN;
+                    jp = ((HashEquiJoin) plan).getJoinPredicate();
+                } else {
+                    join = INDEX_JOIN;
+                    jp = ((IndexNestedLoopJoin) plan).getJoinPredicate();
+                }
+                TupleDesc td = plan.getTupleDesc();
                 String field1 = td.getFieldName(jp.getField1());
                 String field2 = td.getFieldName(jp.getField2()
                         + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", HASH_JOIN, field1
-                        + jp.getOperator() + field2,j.getEstimatedCardinality());
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", join, field1
+                        + jp.getOperator() + field2,plan.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
-                if (HASH_JOIN.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = HASH_JOIN.length() / 2;
+                if (join.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = join.length() / 2;
                 SubTreeDescriptor left = this.buildTree(queryPlanDepth,
                         currentDepth + 3 + adjustDepth, children[0],
                         currentStartPosition, upBarShift);
@@ -156,7 +197,7 @@ public class QueryPlanVisualizer {
                         currentStartPosition + left.width + SPACE.length(), 0);
                 thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - HASH_JOIN.length() / 2;
+                        - join.length() / 2;
                 thisNode.width = Math.max(
                         left.width + right.width + SPACE.length(),
                         thisNode.textStartPosition + thisNode.text.length()
@@ -0,0 +1,55 @@
+package simpledb;
+
+/**
+ * Identifies one tuple slot in the LockControlBoard, for record-level locks.
+ * Like a TableLockId it is not the id of a page: its page number is -1, as
+ * HeapPageId.equals would otherwise take it for its page, and it is only equal
+ * to other RecordLockIds. It sits below its page in the lock hierarchy.
+ */
+public class RecordLockId implements PageId {
+    private final PageId pid;
+    private final int tupleno;
+
+    public RecordLockId(RecordId rid) {
+        this.pid = rid.getPageId();
+        this.tupleno = rid.getTupleNumber();
+    }
+
+    /** @return the page the record is on */
+    public PageId getPageId() {
+        return pid;
+    }
+
+    public int getTupleNumber() {
+        return tupleno;
+    }
+
+    public int getTableId() {
+        return pid.getTableId();
+    }
+
+    /** @return -1, use getPageId for the page the record is on */
+    public int pageNumber() {
+        return -1;
+    }
+
+    public int hashCode() {
+        return pid.hashCode() * 31 + tupleno;
+    }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof RecordLockId)) {
+            return false;
+        }
+        RecordLockId r = (RecordLockId) o;
+        return r.tupleno == tupleno && r.pid.equals(pid);
+    }
+
+    public int[] serialize() {
+        return new int[] {pid.getTableId(), pid.pageNumber(), tupleno};
+    }
+
+    public String toString() {
+        return "record " + pid.getTableId() + "/" + pid.pageNumber() + "/" + tupleno;
+    }
+}
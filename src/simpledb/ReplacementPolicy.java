@@ -0,0 +1,50 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which cached page the BufferPool gives up when it
+ * is full and a new page has to be read in. The BufferPool tells the policy
+ * about every page that enters, is hit again, or leaves the pool, and asks it
+ * for a victim on eviction.
+ * <p>
+ * Implementations are called concurrently by the BufferPool and must be
+ * thread safe.
+ *
+ * @see BufferPool#BufferPool(int, ReplacementPolicy)
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Tells the policy whether a cached page may be evicted right now
+     * (e.g. dirty pages must stay under NO STEAL).
+     */
+    public interface Evictable {
+        boolean canEvict(PageId pid);
+    }
+
+    /**
+     * a page has just been read into the buffer pool.
+     */
+    public void pageAdded(PageId pid);
+
+    /**
+     * a page that is already in the buffer pool has been requested again.
+     * BufferPool calls this outside its monitor, so it may come after the
+     * pageRemoved of a concurrent eviction; a page the policy does not know
+     * (any more) must be ignored, not added.
+     */
+    public void pageAccessed(PageId pid);
+
+    /**
+     * a page has left the buffer pool: evicted, discarded, or rolled back.
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Choose the page to evict. Only pages for which evictable returns true may
+     * be chosen. The policy should not forget the victim here; the BufferPool
+     * calls {@link #pageRemoved} once the page is actually gone.
+     *
+     * @return the page to evict, or null if no cached page can be evicted
+     */
+    public PageId chooseVictim(Evictable evictable);
+}
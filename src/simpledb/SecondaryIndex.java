@@ -0,0 +1,156 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A secondary index on one field of a HeapFile. It is a BTreeFile of
+ * (key, page number, slot) tuples keyed on the key, one for every tuple of
+ * the table, so the RecordIds of the tuples with a given key, or in a range of
+ * keys, are found without a scan of the table. The BTreeFile is a table of
+ * its own in the catalog, so its pages are cached, locked, logged and rolled
+ * back like those of any other table.
+ * <p>
+ * Indexes are created with Catalog.addIndex. BufferPool.insertTuple and
+ * deleteTuple keep them up to date; tuples that are changed in place are not.
+ * IndexLookup reads the tuples of a table through an index.
+ */
+public class SecondaryIndex {
+
+    private final int tableid;
+    private final int field;
+    private final BTreeFile file;
+
+    SecondaryIndex(int tableid, int field, BTreeFile file) {
+        this.tableid = tableid;
+        this.field = field;
+        this.file = file;
+    }
+
+    /**
+     * @return the schema of the tuples of an index on a field of the given type
+     */
+    public static TupleDesc getTupleDesc(Type keyType) {
+        return new TupleDesc(new Type[] { keyType, Type.INT_TYPE, Type.INT_TYPE },
+                new String[] { "key", "page", "slot" });
+    }
+
+    /**
+     * Create the BTreeFile of an index on a field of a HeapFile. If the file is
+     * empty, the index is built from the tuples in the table with a
+     * BTreeBulkLoader; if not, it is taken to be an index built before.
+     *
+     * @param table the table, in the catalog
+     * @param field the index of the field to index
+     * @param f the file of the index
+     * @param name the name of the index in the catalog
+     */
+    static SecondaryIndex create(HeapFile table, int field, File f, String name)
+            throws IOException, DbException {
+        TupleDesc td = getTupleDesc(table.getTupleDesc().getFieldType(field));
+        BTreeFile bf = new BTreeFile(f, 0, td);
+        Database.getCatalog().addTable(bf, name);
+        SecondaryIndex index = new SecondaryIndex(table.getId(), field, bf);
+        if (f.length() == 0) {
+            BTreeBulkLoader loader = new BTreeBulkLoader(bf);
+            TransactionId tid = new TransactionId();
+            try {
+                DbFileIterator it = table.iterator(tid);
+                it.open();
+                while (it.hasNext()) {
+                    loader.add(index.entry(it.next()));
+                }
+                it.close();
+            } catch (TransactionAbortedException e) {
+                throw new DbException("could not read " + Database.getCatalog().getTableName(table.getId())
+                        + " to build the index: " + e);
+            } finally {
+                Database.getBufferPool().transactionComplete(tid);
+            }
+            loader.finish();
+        }
+        return index;
+    }
+
+    /** @return the id of the table this index is on */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /** @return the index of the field this index is on */
+    public int getField() {
+        return field;
+    }
+
+    /** @return the BTreeFile of this index */
+    public BTreeFile getFile() {
+        return file;
+    }
+
+    /**
+     * @return the index tuple of a tuple of the table
+     */
+    Tuple entry(Tuple t) {
+        return entry(t.getField(field), t.getRecordId());
+    }
+
+    private Tuple entry(Field key, RecordId rid) {
+        Tuple e = new Tuple(file.getTupleDesc());
+        e.setField(0, key);
+        e.setField(1, new IntField(rid.getPageId().pageNumber()));
+        e.setField(2, new IntField(rid.getTupleNumber()));
+        return e;
+    }
+
+    /**
+     * @return the RecordId of the table tuple an index tuple points to
+     */
+    RecordId recordId(Tuple entry) {
+        return new RecordId(new HeapPageId(tableid, ((IntField) entry.getField(1)).getValue()),
+                ((IntField) entry.getField(2)).getValue());
+    }
+
+    /**
+     * Add the entry of a tuple just inserted into the table
+     */
+    void insert(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        Database.getBufferPool().insertTuple(tid, file.getId(), entry(t));
+    }
+
+    /**
+     * Remove the entry of a tuple deleted from the table
+     *
+     * @param key the value of the indexed field of the tuple
+     * @param rid where the tuple was
+     */
+    void delete(TransactionId tid, Field key, RecordId rid)
+            throws DbException, IOException, TransactionAbortedException {
+        DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, key));
+        Tuple found = null;
+        it.open();
+        try {
+            while (found == null && it.hasNext()) {
+                Tuple e = it.next();
+                if (recordId(e).equals(rid)) {
+                    found = e;
+                }
+            }
+        } finally {
+            it.close();
+        }
+        if (found == null) {
+            throw new DbException("no entry for " + rid + " in the index on field " + field + " of table "
+                    + tableid);
+        }
+        Database.getBufferPool().deleteTuple(tid, found);
+    }
+
+    /**
+     * @return the index tuples whose keys match ipred, in key order, all of
+     * them if ipred is null
+     */
+    public DbFileIterator iterator(TransactionId tid, IndexPredicate ipred) {
+        return ipred == null ? file.iterator(tid) : file.indexIterator(tid, ipred);
+    }
+}
@@ -15,6 +15,7 @@ public class SeqScan implements DbIterator {
     private int tableId;
     private String alias;
     private HeapFile f;
+    private TupleDesc td;
     private DbFileIterator iter;
     private boolean isOpened;
 
@@ -36,9 +37,7 @@ public class SeqScan implements DbIterator {
      */
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
         this.tid = tid;
-        this.tableId = tableid;
-        this.alias = tableAlias;
-        f = (HeapFile) Database.getCatalog().getDbFile(tableId);
+        reset(tableid, tableAlias);
     }
 
     /**
@@ -72,15 +71,33 @@ public class SeqScan implements DbIterator {
     public void reset(int tableid, String tableAlias) {
         this.tableId = tableid;
         this.alias = tableAlias;
+        f = (HeapFile) Database.getCatalog().getDbFile(tableId);
+        TupleDesc fileTd = f.getTupleDesc();
+        String[] names = new String[fileTd.numFields()];
+        Type[] types = new Type[fileTd.numFields()];
+        for (int i = 0; i < fileTd.numFields(); i++) {
+            names[i] = tableAlias + "." + fileTd.getFieldName(i);
+            types[i] = fileTd.getFieldType(i);
+        }
+        td = new TupleDesc(types, names);
     }
 
     public SeqScan(TransactionId tid, int tableid) {
         this(tid, tableid, Database.getCatalog().getTableName(tableid));
     }
 
+    /**
+     * a scan over a table that is large compared with the buffer pool is
+     * done as a bulk read through a small private ring of frames.
+     * @see BufferPool#isBulkRead(int)
+     */
     public void open() throws DbException, TransactionAbortedException {
         try {
-            iter = (DbFileIterator)f.iterator(tid);
+            if (Database.getBufferPool().isBulkRead(f.numPages())) {
+                iter = f.iterator(tid, new BulkReadRing());
+            } else {
+                iter = f.iterator(tid);
+            }
             iter.open();
         } catch (DbException | TransactionAbortedException e) {
             e.printStackTrace();
@@ -97,7 +114,7 @@ public class SeqScan implements DbIterator {
      *         prefixed with the tableAlias string from the constructor.
      */
     public TupleDesc getTupleDesc() {
-        return f.getTupleDesc();
+        return td;
     }
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
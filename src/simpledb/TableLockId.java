@@ -0,0 +1,40 @@
+package simpledb;
+
+/**
+ * Identifies a whole table in the LockControlBoard. Table locks live in the
+ * lock table next to the page locks, so waiting for them and deadlock detection
+ * work the same way. It is never the id of a real page: its page number is -1
+ * and it is only equal to other TableLockIds.
+ */
+public class TableLockId implements PageId {
+    private final int tableid;
+
+    public TableLockId(int tableId) {
+        this.tableid = tableId;
+    }
+
+    public int getTableId() {
+        return tableid;
+    }
+
+    /** @return -1, no page has this number */
+    public int pageNumber() {
+        return -1;
+    }
+
+    public int hashCode() {
+        return tableid * 37 - 1;
+    }
+
+    public boolean equals(Object o) {
+        return o instanceof TableLockId && ((TableLockId) o).tableid == tableid;
+    }
+
+    public int[] serialize() {
+        return new int[] {tableid};
+    }
+
+    public String toString() {
+        return "table " + tableid;
+    }
+}
@@ -100,7 +100,8 @@ public class TableStats {
             minValPerColume[i] = Integer.MAX_VALUE;
             maxValPerColume[i] = Integer.MIN_VALUE;
         }
-        SeqScan scanTable = new SeqScan(new TransactionId(), tableid);
+        // any DbFile, the BTreeFiles of secondary indexes are tables too
+        DbFileIterator scanTable = table.iterator(new TransactionId());
         try {
             scanTable.open();
             while (scanTable.hasNext()) {
@@ -136,8 +137,38 @@ public class TableStats {
      */
     public double estimateScanCost() {
         // some code goes here
-        int numPage = ((HeapFile) table).numPages();
-        return numPage * ioCostPerPage;
+        return numPages() * ioCostPerPage;
+    }
+
+    /**
+     * The pages read to get from the root of a B+ tree down to a leaf, the
+     * trees here are a few levels deep and their upper pages are usually cached
+     */
+    static final int INDEX_DESCENT_PAGES = 2;
+
+    /**
+     * Estimates the cost of reading the tuples of the table that match a
+     * predicate on an indexed field, through the index. A clustered index (the
+     * key field of a BTreeFile) reads the leaves holding the matching tuples
+     * one after the other. An unclustered one (a SecondaryIndex) reads a page
+     * of the table for every matching tuple, in the worst case.
+     *
+     * @param selectivity
+     *            the selectivity of the predicate on the indexed field
+     * @param clustered
+     *            whether the tuples are stored in the order of the index
+     * @return The estimated cost of the index scan, comparable with
+     *         estimateScanCost.
+     */
+    public double estimateIndexScanCost(double selectivity, boolean clustered) {
+        double pages = clustered ? Math.ceil(selectivity * numPages()) : selectivity * numTuples;
+        return (INDEX_DESCENT_PAGES + pages) * ioCostPerPage;
+    }
+
+    private int numPages() {
+        if (table instanceof BTreeFile)
+            return ((BTreeFile) table).numPages();
+        return ((HeapFile) table).numPages();
     }
 
     /**
@@ -202,7 +233,7 @@ public class TableStats {
         Type t = table.getTupleDesc().getFieldType(field);
         if (t.equals(Type.INT_TYPE)) {
             IntHistogram ihg = new IntHistogram(NUM_HIST_BINS, minValPerColume[field], maxValPerColume[field]);
-            SeqScan scanTable = new SeqScan(new TransactionId(), table.getId());
+            DbFileIterator scanTable = table.iterator(new TransactionId());
             try {
                 scanTable.open();
                 while (scanTable.hasNext()) {
@@ -214,7 +245,7 @@ public class TableStats {
             return ihg.estimateSelectivity(op, ((IntField)constant).getValue());
         } else {
             StringHistogram shg = new StringHistogram(NUM_HIST_BINS);
-            SeqScan scanTable = new SeqScan(new TransactionId(), table.getId());
+            DbFileIterator scanTable = table.iterator(new TransactionId());
             try {
                 scanTable.open();
                 while (scanTable.hasNext()) {
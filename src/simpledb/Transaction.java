@@ -9,15 +9,28 @@ import java.io.*;
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean readOnly;
     volatile boolean started = false;
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * @param readOnly if true the transaction only reads, from a snapshot taken
+     * when it starts, without locking (see BufferPool#beginSnapshot)
+     */
+    public Transaction(boolean readOnly) {
         tid = new TransactionId();
+        this.readOnly = readOnly;
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (readOnly) {
+            Database.getBufferPool().beginSnapshot(tid);
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -29,6 +42,10 @@ public class Transaction {
         return tid;
     }
 
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
     /** Finish the transaction */
     public void commit() throws IOException {
         transactionComplete(false);
@@ -39,6 +39,17 @@ public class Tuple implements Serializable {
         this.fields = fds.toArray(new Field[1]);
     }
 
+    /**
+     * Create a new tuple whose fields are not set yet, for subclasses that
+     * fill them in on first access (see HeapPage).
+     */
+    Tuple(TupleDesc td, RecordId rid) {
+        tdec = td;
+        this.num = td.numFields();
+        this.fields = new Field[num];
+        this.rid = rid;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -106,10 +117,10 @@ public class Tuple implements Serializable {
     public String toString() {
         String s = "";
         for (int i = 0; i < num - 1; i += 1) {
-            s += fields[i].toString();
+            s += getField(i).toString();
             s += "\t";
         }
-        s += fields[num-1].toString();
+        s += getField(num-1).toString();
         s += "\n";
         return s;
     }
@@ -137,7 +148,7 @@ public class Tuple implements Serializable {
 
         @Override
         public Field next() {
-            return (Field)fields[index ++];
+            return (Field)getField(index ++);
         }
     }
     
@@ -0,0 +1,92 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * 2Q replacement (Johnson and Shasha), full version.
+ * A page read for the first time goes to A1in, a FIFO of about a quarter of
+ * the pool. When it falls out of A1in only its id is remembered in the ghost
+ * queue A1out. A page that is requested again while in A1out is hot and goes
+ * to Am, which is managed as LRU. Pages read once by a scan pass through A1in
+ * and never reach Am, so they cannot push out the hot set.
+ */
+public class TwoQPolicy implements ReplacementPolicy {
+
+    private final int kin;
+    private final int kout;
+
+    private final LinkedHashSet<PageId> a1in = new LinkedHashSet<>();
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<>();
+    private final LinkedHashSet<PageId> am = new LinkedHashSet<>();
+
+    /**
+     * @param numPages size of the buffer pool; A1in gets 25% and A1out
+     *                 remembers 50% of that many pages, as in the paper
+     */
+    public TwoQPolicy(int numPages) {
+        this.kin = Math.max(1, numPages / 4);
+        this.kout = Math.max(1, numPages / 2);
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        if (am.contains(pid) || a1in.contains(pid)) {
+            pageAccessed(pid);
+        } else if (a1out.remove(pid)) {
+            am.add(pid);
+        } else {
+            a1in.add(pid);
+        }
+    }
+
+    /**
+     * a hit in Am refreshes its LRU position, a hit in A1in is treated as
+     * correlated with the first reference and changes nothing.
+     */
+    public synchronized void pageAccessed(PageId pid) {
+        if (am.remove(pid)) {
+            am.add(pid);
+        }
+    }
+
+    /**
+     * pages leaving A1in are remembered in A1out, pages leaving Am are forgotten.
+     */
+    public synchronized void pageRemoved(PageId pid) {
+        if (a1in.remove(pid)) {
+            a1out.add(pid);
+            if (a1out.size() > kout) {
+                Iterator<PageId> oldest = a1out.iterator();
+                oldest.next();
+                oldest.remove();
+            }
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Evictable evictable) {
+        PageId victim = null;
+        if (a1in.size() > kin || am.isEmpty()) {
+            victim = firstEvictable(a1in, evictable);
+            if (victim == null) {
+                victim = firstEvictable(am, evictable);
+            }
+        } else {
+            victim = firstEvictable(am, evictable);
+            if (victim == null) {
+                victim = firstEvictable(a1in, evictable);
+            }
+        }
+        return victim;
+    }
+
+    private static PageId firstEvictable(LinkedHashSet<PageId> queue, Evictable evictable) {
+        for (PageId pid : queue) {
+            if (evictable.canEvict(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,142 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Old committed versions of pages, for the read-only transactions that read a
+ * snapshot instead of locking (see {@link BufferPool#beginSnapshot}).
+ * <p>
+ * Commits are numbered. A snapshot is the number of the last commit that had
+ * finished when it began, and it sees each page as it was after that commit.
+ * A commit records the before-images of the pages it writes (their last
+ * committed contents), each tagged with the number of the commit that replaces
+ * it, before any of the pages is changed on disk or in the pool; the commit
+ * only becomes the last commit once it is done. So a snapshot older than a
+ * commit always finds the version that commit replaced here, and otherwise the
+ * committed contents of the page are the ones it should see.
+ * <p>
+ * A version is dropped as soon as no running snapshot can ask for it, so
+ * versions are only kept while snapshots run alongside writers.
+ */
+public class VersionStore {
+
+    private static class Version {
+        final long replacedBy;
+        final Page image;
+
+        Version(long replacedBy, Page image) {
+            this.replacedBy = replacedBy;
+            this.image = image;
+        }
+    }
+
+    // number of the last commit that has finished
+    private long lastCommit;
+    // number of commits that have started, a commit in flight is counted
+    private long startedCommits;
+    // running snapshots -> how many transactions read each
+    private final TreeMap<Long, Integer> snapshots = new TreeMap<>();
+    // versions of each page replaced by commits, oldest first
+    private final Map<PageId, LinkedList<Version>> versions = new HashMap<>();
+
+    /**
+     * start a snapshot
+     * @return the snapshot, to pass to lookup and end
+     */
+    public synchronized long begin() {
+        Integer n = snapshots.get(lastCommit);
+        snapshots.put(lastCommit, n == null ? 1 : n + 1);
+        return lastCommit;
+    }
+
+    /** a transaction reading the snapshot is done */
+    public synchronized void end(long snapshot) {
+        Integer n = snapshots.get(snapshot);
+        if (n == null) {
+            return;
+        }
+        if (n == 1) {
+            snapshots.remove(snapshot);
+        } else {
+            snapshots.put(snapshot, n - 1);
+        }
+        prune();
+    }
+
+    /**
+     * start a commit, before any page it writes is changed.
+     * @param beforeImages the last committed contents of the pages it writes
+     * @return the number of the commit, to pass to endCommit
+     */
+    public synchronized long beginCommit(Collection<Page> beforeImages) {
+        long commit = lastCommit + 1;
+        startedCommits++;
+        for (Page p : beforeImages) {
+            LinkedList<Version> chain = versions.get(p.getId());
+            if (chain == null) {
+                chain = new LinkedList<>();
+                versions.put(p.getId(), chain);
+            }
+            chain.addLast(new Version(commit, p));
+        }
+        return commit;
+    }
+
+    /** the commit is done, new snapshots see it */
+    public synchronized void endCommit(long commit) {
+        lastCommit = commit;
+        prune();
+    }
+
+    /**
+     * @return how many commits have started so far. a reader that finds no version
+     * of a page and reads its current contents instead has to check that no commit
+     * started meanwhile, or it may have read what that commit wrote.
+     */
+    public synchronized long startedCommits() {
+        return startedCommits;
+    }
+
+    /**
+     * @return the version of the page the snapshot sees, or null if it sees the
+     * committed contents of the page
+     */
+    public synchronized Page lookup(PageId pid, long snapshot) {
+        LinkedList<Version> chain = versions.get(pid);
+        if (chain != null) {
+            for (Version v : chain) {
+                if (v.replacedBy > snapshot) {
+                    return v.image;
+                }
+            }
+        }
+        return null;
+    }
+
+    /** @return number of page versions kept */
+    public synchronized int size() {
+        int n = 0;
+        for (LinkedList<Version> chain : versions.values()) {
+            n += chain.size();
+        }
+        return n;
+    }
+
+    /**
+     * drop the versions replaced by a commit no running snapshot is older than.
+     * versions of a commit in flight are kept, a snapshot may still begin before it.
+     */
+    private void prune() {
+        long oldest = snapshots.isEmpty() ? lastCommit : Math.min(lastCommit, snapshots.firstKey());
+        Iterator<LinkedList<Version>> it = versions.values().iterator();
+        while (it.hasNext()) {
+            LinkedList<Version> chain = it.next();
+            while (!chain.isEmpty() && chain.getFirst().replacedBy <= oldest) {
+                chain.removeFirst();
+            }
+            if (chain.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+public class BTreeBulkLoaderTest extends SimpleDbTestBase {
+
+	@After
+	public void tearDown() throws Exception {
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private static BTreeFile emptyFile() throws Exception {
+		File f = File.createTempFile("bulk", ".dat");
+		f.deleteOnExit();
+		f.delete();
+		return BTreeUtility.openBTreeFile(2, f, 0);
+	}
+
+	/** random tuples, with some duplicate keys */
+	private static ArrayList<Integer> load(BTreeBulkLoader loader, int n) throws Exception {
+		Random r = new Random(n);
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		for(int i = 0; i < n; i++) {
+			int key = r.nextInt(n / 2 + 1);
+			keys.add(key);
+			loader.add(BTreeUtility.getBTreeTuple(new int[]{key, i}));
+		}
+		Collections.sort(keys);
+		return keys;
+	}
+
+	/**
+	 * Walk the tree from the root pointer, check that keys are in order, that
+	 * the parent and sibling pointers match, and how full the pages are.
+	 *
+	 * @return the keys of the leaves from left to right
+	 */
+	private static ArrayList<Integer> check(BTreeFile bf, double fillFactor) throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()));
+		assertNull(rootPtr.getHeaderId());
+		ArrayList<BTreeLeafPage> leaves = new ArrayList<BTreeLeafPage>();
+		collect(bf, rootPtr.getRootId(), rootPtr.getId(), true, fillFactor, leaves);
+
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		for(int i = 0; i < leaves.size(); i++) {
+			BTreeLeafPage leaf = leaves.get(i);
+			assertEquals(i == 0 ? null : leaves.get(i - 1).getId(), leaf.getLeftSiblingId());
+			assertEquals(i == leaves.size() - 1 ? null : leaves.get(i + 1).getId(), leaf.getRightSiblingId());
+			Iterator<Tuple> it = leaf.iterator();
+			while(it.hasNext()) {
+				keys.add(((IntField) it.next().getField(0)).getValue());
+			}
+		}
+		for(int i = 1; i < keys.size(); i++) {
+			assertTrue(keys.get(i - 1) <= keys.get(i));
+		}
+		return keys;
+	}
+
+	private static void collect(BTreeFile bf, BTreePageId pid, BTreePageId parent, boolean root,
+			double fillFactor, ArrayList<BTreeLeafPage> leaves) throws Exception {
+		BTreePage page = (BTreePage) bf.readPage(pid);
+		assertEquals(parent, page.getParentId());
+		if(pid.pgcateg() == BTreePageId.LEAF) {
+			BTreeLeafPage leaf = (BTreeLeafPage) page;
+			int used = leaf.getMaxTuples() - leaf.getNumEmptySlots();
+			assertTrue(used <= Math.max(leaf.getMaxTuples() * fillFactor, leaf.getMaxTuples() / 2));
+			assertTrue(root || used >= leaf.getMaxTuples() / 2);
+			leaves.add(leaf);
+			return;
+		}
+		BTreeInternalPage internal = (BTreeInternalPage) page;
+		int used = internal.getMaxEntries() - internal.getNumEmptySlots();
+		assertTrue(used >= 1);
+		assertTrue(root || used + 1 >= (internal.getMaxEntries() + 1) / 2);
+		Iterator<BTreeEntry> it = internal.iterator();
+		BTreeEntry e = null;
+		while(it.hasNext()) {
+			e = it.next();
+			collect(bf, e.getLeftChild(), pid, false, fillFactor, leaves);
+		}
+		collect(bf, e.getRightChild(), pid, false, fillFactor, leaves);
+	}
+
+	/**
+	 * A load that spills runs and merges them in several passes, into a tree with
+	 * a few levels; the tree works with inserts, deletes and searches afterwards.
+	 */
+	@Test
+	public void externalSort() throws Exception {
+		BufferPool.setPageSize(256);
+		BTreeFile bf = emptyFile();
+		BTreeBulkLoader loader = new BTreeBulkLoader(bf).setRunSize(40);
+		int n = 40 * (BTreeBulkLoader.MERGE_FAN_IN + 5);
+		ArrayList<Integer> keys = load(loader, n);
+		assertEquals(n, loader.finish());
+
+		assertEquals(keys, check(bf, 1.0));
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()));
+		assertEquals(bf.numPages(), rootPtr.getRootId().pageNumber());
+		BTreePage root = (BTreePage) bf.readPage(rootPtr.getRootId());
+		assertTrue(((BTreeInternalPage) root).iterator().next().getLeftChild().pgcateg() == BTreePageId.INTERNAL);
+
+		TransactionId tid = new TransactionId();
+		int key = keys.get(keys.size() / 2);
+		int expected = Collections.frequency(keys, key);
+		IndexPredicate ipred = new IndexPredicate(Predicate.Op.EQUALS, new IntField(key));
+		DbFileIterator it = bf.indexIterator(tid, ipred);
+		it.open();
+		int found = 0;
+		while(it.hasNext()) {
+			assertEquals(new IntField(key), it.next().getField(0));
+			found++;
+		}
+		it.close();
+		assertEquals(expected, found);
+
+		Tuple t = BTreeUtility.getBTreeTuple(new int[]{key, -1});
+		Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+		Database.getBufferPool().deleteTuple(tid, t);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Pages are filled up to the fill factor, with room for inserts
+	 */
+	@Test
+	public void fillFactor() throws Exception {
+		BTreeFile bf = emptyFile();
+		BTreeBulkLoader loader = new BTreeBulkLoader(bf).setFillFactor(0.7);
+		ArrayList<Integer> keys = load(loader, 5000);
+		loader.finish();
+		assertEquals(keys, check(bf, 0.7));
+
+		TransactionId tid = new TransactionId();
+		BTreeLeafPage leaf = bf.findLeafPage(tid, Permissions.READ_ONLY, new IntField(0));
+		assertTrue(leaf.getNumEmptySlots() > 0);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Nothing to load gives a tree with one empty leaf, a small load a single leaf
+	 */
+	@Test
+	public void smallLoads() throws Exception {
+		BTreeFile bf = emptyFile();
+		assertEquals(0, new BTreeBulkLoader(bf).finish());
+		assertEquals(1, bf.numPages());
+		assertTrue(check(bf, 1.0).isEmpty());
+
+		BTreeFile bf2 = emptyFile();
+		BTreeBulkLoader loader = new BTreeBulkLoader(bf2);
+		ArrayList<Integer> keys = load(loader, 10);
+		loader.finish();
+		assertEquals(1, bf2.numPages());
+		assertEquals(keys, check(bf2, 1.0));
+	}
+
+	@Test(expected = DbException.class)
+	public void notEmpty() throws Exception {
+		BTreeFile bf = emptyFile();
+		TransactionId tid = new TransactionId();
+		Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[]{1, 1}));
+		Database.getBufferPool().transactionComplete(tid);
+		new BTreeBulkLoader(bf).finish();
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoaderTest.class);
+	}
+}
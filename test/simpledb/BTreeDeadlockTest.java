@@ -10,6 +10,8 @@ import simpledb.systemtest.SimpleDbTestBase;
 import java.util.ArrayList;
 import java.util.Random;
 
+import static org.junit.Assert.*;
+
 public class BTreeDeadlockTest extends SimpleDbTestBase {
 	private Random rand;
 
@@ -137,6 +139,75 @@ public class BTreeDeadlockTest extends SimpleDbTestBase {
 		System.out.println("testReadWriteDeadlock resolved deadlock");
 	}
 
+	/**
+	 * @return the number of tuples in the tree, read by a new transaction
+	 */
+	private int countTuples() throws Exception {
+		TransactionId tid = new TransactionId();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int n = 0;
+		while(it.hasNext()) {
+			it.next();
+			n++;
+		}
+		it.close();
+		bp.transactionComplete(tid);
+		return n;
+	}
+
+	/**
+	 * @return true if tid waits for a lock on pid
+	 */
+	private boolean waitsFor(TransactionId tid, PageId pid) {
+		for(LockStats.Waiter w : bp.getLockStats(0).getWaiters()) {
+			if(w.getTransactionId().equals(tid) && w.getId().equals(pid)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * A transaction chosen as the deadlock victim in the middle of a leaf split,
+	 * while it waits for the parent, has moved half of the leaf to a new page
+	 * already. The abort must throw those changes away, and leave every tuple
+	 * of the tree reachable.
+	 */
+	@Test
+	public void testAbortDuringSplit() throws Exception {
+		// fill the leaf of item1 up, so that the next insert splits it
+		TransactionId tid = new TransactionId();
+		BTreeLeafPage leaf = bf.findLeafPage(tid, Permissions.READ_ONLY, new IntField(item1));
+		while(leaf.getNumEmptySlots() > 0) {
+			bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(item1, 2));
+			leaf = bf.findLeafPage(tid, Permissions.READ_ONLY, new IntField(item1));
+		}
+		BTreePageId leafId = leaf.getId();
+		BTreePageId parentId = leaf.getParentId();
+		bp.transactionComplete(tid);
+		int tuples = countTuples();
+
+		// the older transaction reads the parent, so the split waits for it
+		TransactionId older = new TransactionId();
+		TransactionId younger = new TransactionId();
+		bp.getPage(older, parentId, Permissions.READ_ONLY);
+		BTreeWriter writer = startWriter(younger, item1, 1);
+		for(int i = 0; !waitsFor(younger, parentId); i++) {
+			assertTrue("the split never waited for the parent", i < 100);
+			Thread.sleep(POLL_INTERVAL);
+		}
+
+		// the older transaction now waits for the leaf: a cycle, the younger one aborts
+		bp.getPage(older, leafId, Permissions.READ_ONLY);
+		writer.join();
+		assertFalse(writer.succeeded());
+		assertTrue(writer.getError() instanceof TransactionAbortedException);
+		bp.transactionComplete(older);
+
+		assertEquals(tuples, countTuples());
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -147,6 +147,31 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.findChildId(), against a scan of the entries
+	 */
+	@Test
+    public void findChildId() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		int[] keys = new int[] { 0, 1468, 1469, 22189, 42850, 62778, 62779 };
+		for (int k : keys) {
+			IntField key = new IntField(k);
+			Iterator<BTreeEntry> it = page.iterator();
+			BTreeEntry e = it.next();
+			BTreePageId expected = e.getLeftChild();
+			while (e.getKey().compare(Predicate.Op.LESS_THAN, key)) {
+				expected = e.getRightChild();
+				if (!it.hasNext())
+					break;
+				e = it.next();
+				expected = e.getLeftChild();
+			}
+			assertEquals("key " + k, expected, page.findChildId(key));
+		}
+		// no key, the left-most child
+		assertEquals(page.iterator().next().getLeftChild(), page.findChildId(null));
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.reverseIterator()
 	 */
@@ -195,6 +195,26 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.iterator(Field), which starts at the first key
+	 * greater than or equal to the given one
+	 */
+	@Test
+    public void testIteratorFrom() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		Iterator<Tuple> it = page.iterator(new IntField(22064));
+		assertEquals(new IntField(22064), it.next().getField(0));
+		assertEquals(new IntField(22189), it.next().getField(0));
+
+		it = page.iterator(new IntField(22065));
+		assertEquals(new IntField(22189), it.next().getField(0));
+
+		it = page.iterator(new IntField(0));
+		assertEquals(new IntField(1468), it.next().getField(0));
+
+		assertFalse(page.iterator(new IntField(62779)).hasNext());
+	}
+
 	/**
 	 * Unit test for BTreeLeafPage.getNumEmptySlots()
 	 */
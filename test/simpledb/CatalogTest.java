@@ -1,6 +1,12 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.file.Files;
 
 import java.util.NoSuchElementException;
 import java.util.Random;
@@ -93,6 +99,31 @@ public class CatalogTest extends SimpleDbTestBase {
     	assertEquals(f, Database.getCatalog().getDbFile(id2));
     }
 
+    /**
+     * Check that loadSchema puts a table marked mmap in the memory-mapped storage mode
+     */
+    @Test public void loadSchemaStorageMode() throws Exception {
+        File dir = Files.createTempDirectory("catalog").toFile();
+        dir.deleteOnExit();
+        File schema = new File(dir, "schema.txt");
+        schema.deleteOnExit();
+        String plain = SystemTestUtil.getUUID();
+        String mapped = SystemTestUtil.getUUID();
+        PrintWriter w = new PrintWriter(schema);
+        w.println(plain + " (a int, b int pk)");
+        w.println(mapped + " (a int, b string) mmap");
+        w.close();
+
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+        HeapFile plainFile = (HeapFile) Database.getCatalog().getDbFile(
+                Database.getCatalog().getTableId(plain));
+        HeapFile mappedFile = (HeapFile) Database.getCatalog().getDbFile(
+                Database.getCatalog().getTableId(mapped));
+        assertFalse(plainFile.isMapped());
+        assertTrue(mappedFile.isMapped());
+        assertEquals(0, mappedFile.numPages());
+    }
+
     /**
      * JUnit suite target
      */
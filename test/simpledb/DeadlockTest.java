@@ -7,6 +7,9 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
 public class DeadlockTest extends TestUtil.CreateHeapFile {
@@ -211,6 +214,36 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * t1 acquires p0.write; t2 acquires p1.write; t1 attempts p1.write; t2
+   * attempts p0.write. The waits-for graph finds the cycle as soon as t2
+   * waits, aborts t2 (the younger one) right away instead of after a time
+   * out, and t1 gets its lock.
+   */
+  @Test public void testYoungestAbortedWithoutTimeout() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.getPage(tid2, p1, Permissions.READ_WRITE);
+
+    LockGrabber lg1Write1 = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    // let t1 start waiting
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(lg1Write1.acquired());
+
+    long begin = System.currentTimeMillis();
+    LockGrabber lg2Write0 = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    while (!lg1Write1.acquired() && System.currentTimeMillis() - begin < BufferPool.DEAD_LOCK_TIME_OUT) {
+      Thread.sleep(1);
+    }
+    long elapsed = System.currentTimeMillis() - begin;
+    System.out.println("testYoungestAbortedWithoutTimeout resolved deadlock in " + elapsed + " ms");
+
+    assertTrue(lg1Write1.acquired());
+    assertNull(lg1Write1.getError());
+    assertFalse(lg2Write0.acquired());
+    assertNotNull(lg2Write0.getError());
+    assertTrue(elapsed < POLL_INTERVAL * 5);
+  }
+
   /**
    * JUnit suite target
    */
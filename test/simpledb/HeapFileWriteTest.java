@@ -4,6 +4,8 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import simpledb.systemtest.SystemTestUtil;
+
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
 
@@ -43,6 +45,61 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Inserting into a file whose pages are full should not lock any of them
+     */
+    @Test public void insertSkipsFullPages() throws Exception {
+        HeapFile full = SystemTestUtil.createRandomHeapFile(2, 504 * 10, null, null);
+        assertEquals(10, full.numPages());
+
+        full.insertTuple(tid, Utility.getHeapTuple(1, 2));
+        assertEquals(11, full.numPages());
+        for (int i = 0; i < 10; i++) {
+            assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(full.getId(), i)));
+        }
+        assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(full.getId(), 10)));
+    }
+
+    /**
+     * The free space map reads no page to start with; it takes every page for
+     * one with room until an insert has looked at it
+     */
+    @Test public void freeSpaceMapStartsUnseen() throws Exception {
+        HeapFile full = SystemTestUtil.createRandomHeapFile(2, 504 * 10, null, null);
+        FreeSpaceMap map = new FreeSpaceMap(full);
+        assertEquals(3, map.pageWithRoom(3));
+        assertEquals(3, map.pageWithRoom(13));
+        assertFalse(map.isSeen(3));
+
+        map.setHasRoom(3, false);
+        assertTrue(map.isSeen(3));
+        assertEquals(4, map.pageWithRoom(3));
+        for (int i = 0; i < 10; i++) {
+            map.setHasRoom(i, false);
+        }
+        assertEquals(-1, map.pageWithRoom(3));
+    }
+
+    /**
+     * A slot freed by a delete is used by the next insert instead of a new page
+     */
+    @Test public void insertReusesDeletedSlot() throws Exception {
+        HeapFile full = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        DbFileIterator it = full.iterator(tid);
+        it.open();
+        Tuple victim = null;
+        for (int i = 0; i < 504 + 7; i++) {
+            victim = it.next();
+        }
+        it.close();
+
+        full.deleteTuple(tid, victim);
+        Tuple t = Utility.getHeapTuple(1, 2);
+        full.insertTuple(tid, t);
+        assertEquals(3, full.numPages());
+        assertEquals(victim.getRecordId().getPageId(), t.getRecordId().getPageId());
+    }
+
     /**
      * JUnit suite target
      */
@@ -126,6 +126,83 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.getPageData() and HeapPage.getBeforeImage() after
+     * modifications: the bytes round trip, the before-image does not change
+     */
+    @Test public void pageDataAndBeforeImage() throws Exception {
+        byte[] original = HeapPageReadTest.EXAMPLE_DATA.clone();
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Tuple first = page.iterator().next();
+        int firstValue = ((IntField) first.getField(0)).getValue();
+
+        page.deleteTuple(first);
+        Tuple addition = Utility.getHeapTuple(new int[]{12345, 678});
+        page.insertTuple(addition);
+        // the slot was reused, the tuple handed out before keeps its value
+        assertEquals(first.getRecordId(), addition.getRecordId());
+        assertEquals(firstValue, ((IntField) first.getField(0)).getValue());
+
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        assertEquals(page.getNumEmptySlots(), copy.getNumEmptySlots());
+        Tuple reread = copy.getTuple(addition.getRecordId().getTupleNumber());
+        assertTrue(TestUtil.compareTuples(addition, reread));
+
+        // neither the caller's bytes nor the before-image saw the modification
+        assertTrue(java.util.Arrays.equals(original, HeapPageReadTest.EXAMPLE_DATA));
+        assertTrue(java.util.Arrays.equals(original, page.getBeforeImage().getPageData()));
+        page.setBeforeImage();
+        assertTrue(java.util.Arrays.equals(page.getPageData(), page.getBeforeImage().getPageData()));
+    }
+
+    /**
+     * Changing a field of a tuple on the page is written back into the page
+     */
+    @Test public void setFieldWritesBack() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Tuple t = page.iterator().next();
+        t.setField(1, new IntField(-42));
+
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        Tuple reread = copy.getTuple(t.getRecordId().getTupleNumber());
+        assertEquals(new IntField(-42), reread.getField(1));
+        assertEquals(t.getField(0), reread.getField(0));
+    }
+
+    /**
+     * Readers share the latch of a page, a change waits until they are done.
+     */
+    @Test public void latch() throws Exception {
+        final HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        final int free = page.getNumEmptySlots();
+
+        // a reader latched by another thread does not keep us from reading
+        Thread reader = new Thread() {
+            public void run() {
+                page.getLatch().readLock().lock();
+            }
+        };
+        reader.start();
+        reader.join();
+        assertTrue(page.iterator().hasNext());
+        assertEquals(free, page.getNumEmptySlots());
+
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    page.insertTuple(Utility.getHeapTuple(1, 2));
+                } catch (DbException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+        writer.join(100);
+        assertTrue(writer.isAlive());
+        assertTrue(page.getLatch().hasQueuedThread(writer));
+    }
+
     /**
      * JUnit suite target
      */
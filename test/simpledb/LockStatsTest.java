@@ -0,0 +1,142 @@
+package simpledb;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Unit tests for the counters of the LockControlBoard (LockStats).
+ */
+public class LockStatsTest {
+  private static final int TABLE = 1;
+  private static final int TIMEOUT = 5000;
+
+  private LockControlBoard board;
+  private PageId p0, p1;
+  private TransactionId tid1, tid2;
+
+  @Before public void setUp() {
+    board = new LockControlBoard();
+    p0 = new HeapPageId(TABLE, 0);
+    p1 = new HeapPageId(TABLE, 1);
+    tid1 = new TransactionId();
+    tid2 = new TransactionId();
+  }
+
+  private int tryLock(TransactionId tid, PageId pid, Lock.LOCKTYPE type) throws Exception {
+    return new Lock(tid, pid, type).inilize(pid, board);
+  }
+
+  private static long sum(long[] buckets) {
+    long n = 0;
+    for (long b : buckets) {
+      n += b;
+    }
+    return n;
+  }
+
+  /**
+   * A refused request is a conflict, a reader asking for the write lock an upgrade.
+   * A lock id is only counted from its first conflict on, its table all along.
+   */
+  @Test public void conflictsAndUpgrades() throws Exception {
+    assertEquals(1, tryLock(tid1, p0, Lock.LOCKTYPE.SHARE_LOCK));
+    assertEquals(1, tryLock(tid1, p1, Lock.LOCKTYPE.SHARE_LOCK));
+    assertEquals(-1, tryLock(tid2, p0, Lock.LOCKTYPE.EXCLUSIVE_LOCK));
+    assertEquals(1, tryLock(tid1, p0, Lock.LOCKTYPE.EXCLUSIVE_LOCK));
+
+    LockStats.Snapshot s = board.snapshot(1);
+    assertEquals(1, s.getHotLocks().size());
+    LockStats.Entry e = s.getHotLocks().get(0);
+    assertEquals(p0, e.getId());
+    assertEquals(1, e.getAcquisitions());
+    assertEquals(1, e.getConflicts());
+    assertEquals(1, e.getUpgrades());
+    assertEquals(0, e.getWaits());
+
+    LockStats.Entry table = s.getTables().get(TABLE);
+    assertEquals(1, table.getConflicts());
+    assertTrue(table.getAcquisitions() >= 3);
+    assertEquals(1, board.getStats().trackedIds());
+
+    board.getStats().reset();
+    assertTrue(board.snapshot(1).getTables().isEmpty());
+  }
+
+  /**
+   * A waiting transaction is listed with the one it waits for; once it gets the
+   * lock its wait, and the hold time of the lock it waited for, are counted.
+   */
+  @Test public void waiters() throws Exception {
+    assertEquals(1, tryLock(tid1, p0, Lock.LOCKTYPE.EXCLUSIVE_LOCK));
+    Thread t = new Thread() {
+      public void run() {
+        try {
+          new Lock(tid2, p0, Lock.LOCKTYPE.EXCLUSIVE_LOCK).acquire(p0, board, TIMEOUT);
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    t.setDaemon(true);
+    t.start();
+    LockStats.Snapshot s = board.snapshot(10);
+    for (int i = 0; i < 100 && s.getWaiters().isEmpty(); i++) {
+      Thread.sleep(10);
+      s = board.snapshot(10);
+    }
+    assertEquals(1, s.getWaiters().size());
+    LockStats.Waiter w = s.getWaiters().get(0);
+    assertEquals(tid2, w.getTransactionId());
+    assertEquals(p0, w.getId());
+    assertEquals(Lock.LOCKTYPE.EXCLUSIVE_LOCK, w.getMode());
+    assertEquals(Arrays.asList(tid1), Arrays.asList(w.getBlockers().toArray()));
+
+    board.closeLock(tid1);
+    t.join(TIMEOUT);
+    s = board.snapshot(10);
+    assertTrue(s.getWaiters().isEmpty());
+    LockStats.Entry e = s.getHotLocks().get(0);
+    assertEquals(p0, e.getId());
+    assertEquals(1, e.getWaits());
+    assertEquals(1, sum(e.getWaitHistogram()));
+    assertEquals(1, sum(e.getHoldHistogram()));
+    assertEquals(0, e.getAborts());
+  }
+
+  /**
+   * A wait that times out is counted as an abort.
+   */
+  @Test public void aborts() throws Exception {
+    assertEquals(1, tryLock(tid1, p0, Lock.LOCKTYPE.SHARE_LOCK));
+    try {
+      new Lock(tid2, p0, Lock.LOCKTYPE.EXCLUSIVE_LOCK).acquire(p0, board, 10);
+      throw new Exception("expected TransactionAbortedException");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    LockStats.Entry e = board.snapshot(10).getHotLocks().get(0);
+    assertEquals(1, e.getConflicts());
+    assertEquals(1, e.getAborts());
+    assertEquals(1, e.getWaits());
+  }
+
+  @Test public void buckets() {
+    assertEquals(0, LockStats.bucketOf(999999));
+    assertEquals(1, LockStats.bucketOf(1000000));
+    assertEquals(2, LockStats.bucketOf(3000000));
+    assertEquals(LockStats.BUCKETS - 1, LockStats.bucketOf(Long.MAX_VALUE));
+    assertEquals(4, LockStats.bucketLimit(2));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LockStatsTest.class);
+  }
+}
@@ -3,7 +3,10 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
 public class LockingTest extends TestUtil.CreateHeapFile {
@@ -189,6 +192,134 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * A sole reader upgrades its lock in place, right away.
+   */
+  @Test public void soleReaderUpgradesInPlace() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    assertFalse(bp.controlBoard.isPageWriteLocked(p0));
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    assertTrue(bp.controlBoard.isPageWriteLocked(p0));
+    assertTrue(bp.holdsLock(tid1, p0));
+    grabLock(tid2, p0, Permissions.READ_ONLY, false);
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * Two readers of the same page both try to upgrade. The second one is
+   * aborted at once instead of after a time out, and the first one gets its
+   * write lock when the second one's read lock is released.
+   */
+  @Test public void competingUpgradeAborted() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid2, p0, Permissions.READ_ONLY);
+
+    TestUtil.LockGrabber upgrade1 = new TestUtil.LockGrabber(tid1, p0, Permissions.READ_WRITE);
+    upgrade1.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(upgrade1.acquired());
+
+    TestUtil.LockGrabber upgrade2 = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+    upgrade2.start();
+    Thread.sleep(TIMEOUT);
+    assertNotNull(upgrade2.getError());
+    assertFalse(upgrade2.acquired());
+    assertTrue(upgrade1.acquired());
+    assertNull(upgrade1.getError());
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * An upgrade goes ahead of a writer that was queued for the page before it.
+   */
+  @Test public void upgradeGoesFirst() throws Exception {
+    TransactionId tid3 = new TransactionId();
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid2, p0, Permissions.READ_ONLY);
+
+    TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid3, p0, Permissions.READ_WRITE);
+    writer.start();
+    Thread.sleep(TIMEOUT);
+    TestUtil.LockGrabber upgrade = new TestUtil.LockGrabber(tid1, p0, Permissions.READ_WRITE);
+    upgrade.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(writer.acquired());
+    assertFalse(upgrade.acquired());
+
+    bp.releasePage(tid2, p0);
+    Thread.sleep(TIMEOUT);
+    assertTrue(upgrade.acquired());
+    assertFalse(writer.acquired());
+    assertNull(writer.getError());
+
+    writer.stop();
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * Locking a page locks its table in the matching intention mode.
+   */
+  @Test public void intentionLocksOnTable() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    assertEquals(Lock.LOCKTYPE.INTENTION_SHARE_LOCK, bp.controlBoard.tableLockType(tid1, empty.getId()));
+    bp.getPage(tid1, p1, Permissions.READ_WRITE);
+    assertEquals(Lock.LOCKTYPE.INTENTION_EXCLUSIVE_LOCK, bp.controlBoard.tableLockType(tid1, empty.getId()));
+    assertNull(bp.controlBoard.tableLockType(tid2, empty.getId()));
+    grabLock(tid2, p0, Permissions.READ_ONLY, true);
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * A reader of more pages than the escalation threshold gets a shared lock
+   * on the table instead; other readers go on, writers wait.
+   */
+  @Test public void readerEscalatesToSharedTableLock() throws Exception {
+    bp.controlBoard.setEscalationThreshold(2);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    assertEquals(Lock.LOCKTYPE.INTENTION_SHARE_LOCK, bp.controlBoard.tableLockType(tid1, empty.getId()));
+    bp.getPage(tid1, p2, Permissions.READ_ONLY);
+    assertEquals(Lock.LOCKTYPE.SHARE_LOCK, bp.controlBoard.tableLockType(tid1, empty.getId()));
+    assertTrue(bp.holdsLock(tid1, p0));
+    assertTrue(bp.holdsLock(tid1, p2));
+    assertTrue(bp.controlBoard.isPageLocked(p1));
+    grabLock(tid2, p1, Permissions.READ_ONLY, true);
+    grabLock(tid2, p1, Permissions.READ_WRITE, false);
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * A writer of more pages than the escalation threshold gets an exclusive
+   * lock on the table.
+   */
+  @Test public void writerEscalatesToExclusiveTableLock() throws Exception {
+    bp.controlBoard.setEscalationThreshold(2);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_WRITE);
+    bp.getPage(tid1, p2, Permissions.READ_ONLY);
+    assertEquals(Lock.LOCKTYPE.EXCLUSIVE_LOCK, bp.controlBoard.tableLockType(tid1, empty.getId()));
+    assertTrue(bp.controlBoard.isPageWriteLocked(p0));
+    grabLock(tid2, p0, Permissions.READ_ONLY, false);
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * Escalation does not wait for the pages others lock; it happens on a later
+   * request once they are gone.
+   */
+  @Test public void escalationRetriedWhenTableFree() throws Exception {
+    bp.controlBoard.setEscalationThreshold(1);
+    bp.getPage(tid2, p2, Permissions.READ_WRITE);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    assertEquals(Lock.LOCKTYPE.INTENTION_SHARE_LOCK, bp.controlBoard.tableLockType(tid1, empty.getId()));
+
+    bp.transactionComplete(tid2);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    assertEquals(Lock.LOCKTYPE.SHARE_LOCK, bp.controlBoard.tableLockType(tid1, empty.getId()));
+  }
+
   /**
    * JUnit suite target
    */
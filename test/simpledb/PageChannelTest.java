@@ -0,0 +1,110 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class PageChannelTest extends SimpleDbTestBase {
+    private File file;
+    private PageChannel channel;
+
+    private static byte[] filled(int length, int value) {
+        byte[] b = new byte[length];
+        Arrays.fill(b, (byte) value);
+        return b;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("channel", ".dat");
+        file.deleteOnExit();
+        channel = new PageChannel(file);
+    }
+
+    /**
+     * Unit test for PageChannel.read() and PageChannel.write() at arbitrary positions
+     */
+    @Test
+    public void positionalReadWrite() throws Exception {
+        channel.write(4096, filled(4096, 2));
+        channel.write(0, filled(4096, 1));
+
+        byte[] b = new byte[4096];
+        assertEquals(4096, channel.read(4096, b));
+        assertArrayEquals(filled(4096, 2), b);
+        assertEquals(4096, channel.read(0, b));
+        assertArrayEquals(filled(4096, 1), b);
+        assertEquals(-1, channel.read(8192, b));
+    }
+
+    /**
+     * Unit test for PageChannel.size(): cached and grown by writes past the end
+     */
+    @Test
+    public void sizeFollowsWrites() throws Exception {
+        assertEquals(0, channel.size());
+        channel.write(0, filled(100, 1));
+        assertEquals(100, channel.size());
+        channel.write(1000, filled(24, 1));
+        assertEquals(1024, channel.size());
+        channel.write(0, filled(10, 3));
+        assertEquals(1024, channel.size());
+        assertEquals(1024, file.length());
+    }
+
+    /**
+     * A channel closed because the pool was full opens again on its next use
+     */
+    @Test
+    public void reopenAfterPoolEviction() throws Exception {
+        channel.write(0, filled(64, 7));
+        ArrayList<PageChannel> others = new ArrayList<PageChannel>();
+        for (int i = 0; i < PageChannel.MAX_OPEN_CHANNELS + 1; i++) {
+            File f = File.createTempFile("channel", ".dat");
+            f.deleteOnExit();
+            PageChannel other = new PageChannel(f);
+            other.write(0, filled(1, i));
+            others.add(other);
+        }
+        byte[] b = new byte[64];
+        assertEquals(64, channel.read(0, b));
+        assertArrayEquals(filled(64, 7), b);
+        for (PageChannel other : others) {
+            other.close();
+        }
+    }
+
+    /**
+     * A MappedPageChannel maps the file again when a read goes past a write that grew it
+     */
+    @Test
+    public void mappedReadSeesGrowth() throws Exception {
+        channel.write(0, filled(4096, 1));
+        MappedPageChannel mapped = new MappedPageChannel(file);
+        byte[] b = new byte[4096];
+        assertEquals(4096, mapped.read(0, b));
+        assertArrayEquals(filled(4096, 1), b);
+        assertEquals(-1, mapped.read(4096, b));
+
+        mapped.write(4096, filled(4096, 2));
+        assertEquals(8192, mapped.size());
+        assertEquals(4096, mapped.read(4096, b));
+        assertArrayEquals(filled(4096, 2), b);
+        assertEquals(2, mapped.slice(4096, 4096).get(100));
+        mapped.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageChannelTest.class);
+    }
+}
@@ -0,0 +1,179 @@
+package simpledb;
+
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Unit tests for the record-level locks HeapFile takes to insert and delete
+ * tuples (BufferPool.getPageForRecordWrite).
+ */
+public class RecordLockingTest extends TestUtil.CreateHeapFile {
+  private PageId p0;
+  private Tuple committed;
+  private TransactionId tid1, tid2;
+
+  /** Time to wait before checking the state of lock contention, in ms */
+  private static final int TIMEOUT = 100;
+
+  // just so we have a pointer shorter than Database.getBufferPool()
+  private BufferPool bp;
+
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    // one committed tuple on page 0
+    TransactionId tid = new TransactionId();
+    empty.insertTuple(tid, Utility.getHeapTuple(1, 2));
+    this.p0 = new HeapPageId(empty.getId(), 0);
+    bp.getPage(tid, p0, Permissions.READ_WRITE).markDirty(true, tid);
+    bp.flushAllPages();
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    this.committed = ((HeapPage) empty.readPage(p0)).iterator().next();
+    this.tid1 = new TransactionId();
+    this.tid2 = new TransactionId();
+  }
+
+  private static int countTuples(Page p) {
+    int n = 0;
+    Iterator<Tuple> it = ((HeapPage) p).iterator();
+    while (it.hasNext()) {
+      it.next();
+      n++;
+    }
+    return n;
+  }
+
+  /** deletes a tuple in the background, it may have to wait for the record lock */
+  private class Deleter extends Thread {
+    private final TransactionId tid;
+    private final Tuple t;
+    private volatile boolean done;
+
+    Deleter(TransactionId tid, Tuple t) {
+      this.tid = tid;
+      this.t = t;
+      setDaemon(true);
+    }
+
+    public void run() {
+      try {
+        empty.deleteTuple(tid, t);
+        done = true;
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Two transactions insert into the same page without waiting for each other,
+   * each into a slot of its own.
+   */
+  @Test public void insertsDoNotWait() throws Exception {
+    Page p = empty.insertTuple(tid1, Utility.getHeapTuple(2, 2)).get(0);
+    assertEquals(p0, p.getId());
+    assertTrue(bp.holdsLock(tid1, p0));
+
+    Tuple t = Utility.getHeapTuple(3, 2);
+    assertEquals(p0, empty.insertTuple(tid2, t).get(0).getId());
+    assertEquals(3, countTuples(p));
+    assertTrue(bp.holdsLock(tid2, new RecordLockId(t.getRecordId())));
+    assertFalse(bp.holdsLock(tid1, new RecordLockId(t.getRecordId())));
+  }
+
+  /**
+   * Deleting a tuple another transaction deleted waits for it.
+   */
+  @Test public void deleteSameTupleWaits() throws Exception {
+    empty.deleteTuple(tid1, committed);
+
+    Deleter d = new Deleter(tid2, committed);
+    d.start();
+    d.join(TIMEOUT);
+    assertFalse(d.done);
+
+    // once tid1 rolls back, the tuple is there again for tid2 to delete
+    bp.transactionComplete(tid1, false);
+    d.join(TIMEOUT * 10);
+    assertTrue(d.done);
+    bp.transactionComplete(tid2, true);
+    assertEquals(0, countTuples(empty.readPage(p0)));
+  }
+
+  /**
+   * An abort takes back only the changes of its transaction.
+   */
+  @Test public void abortKeepsOthersChanges() throws Exception {
+    Page p = empty.insertTuple(tid1, Utility.getHeapTuple(2, 2)).get(0);
+    empty.insertTuple(tid2, Utility.getHeapTuple(3, 2));
+    empty.deleteTuple(tid1, committed);
+    assertEquals(2, countTuples(p));
+
+    bp.transactionComplete(tid1, false);
+    assertEquals(2, countTuples(p));
+    assertEquals(tid2, p.isDirty());
+
+    bp.transactionComplete(tid2, true);
+    assertEquals(2, countTuples(empty.readPage(p0)));
+    assertNull(p.isDirty());
+  }
+
+  /**
+   * A commit writes the page without the changes of transactions still running.
+   */
+  @Test public void commitWritesOnlyOwnChanges() throws Exception {
+    Page p = empty.insertTuple(tid1, Utility.getHeapTuple(2, 2)).get(0);
+    empty.insertTuple(tid2, Utility.getHeapTuple(3, 2));
+    empty.deleteTuple(tid2, committed);
+
+    bp.transactionComplete(tid1, true);
+    // on disk: the committed tuple and tid1's
+    assertEquals(2, countTuples(empty.readPage(p0)));
+    assertEquals(2, countTuples(p.getBeforeImage()));
+    assertEquals(2, countTuples(p));
+    assertEquals(tid2, p.isDirty());
+
+    bp.transactionComplete(tid2, false);
+    assertEquals(2, countTuples(p));
+    assertNull(p.isDirty());
+  }
+
+  /**
+   * An insert passes over a slot whose delete has not committed yet and marks the
+   * page full; the commit of the delete marks it as having room again.
+   */
+  @Test public void committedDeleteFreesSlot() throws Exception {
+    TransactionId tid = new TransactionId();
+    HeapPage p = (HeapPage) empty.insertTuple(tid, Utility.getHeapTuple(2, 2)).get(0);
+    while (p.getNumEmptySlots() > 0) {
+      empty.insertTuple(tid, Utility.getHeapTuple(2, 2));
+    }
+    bp.transactionComplete(tid, true);
+
+    empty.deleteTuple(tid1, committed);
+    Tuple t = Utility.getHeapTuple(3, 2);
+    empty.insertTuple(tid2, t);
+    assertEquals(1, t.getRecordId().getPageId().pageNumber());
+    assertEquals(1, empty.freeSpaceMap().pageWithRoom(0));
+
+    bp.transactionComplete(tid1, true);
+    assertEquals(0, empty.freeSpaceMap().pageWithRoom(0));
+    bp.transactionComplete(tid2, true);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(RecordLockingTest.class);
+  }
+}
@@ -0,0 +1,161 @@
+package simpledb;
+
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Unit tests for snapshot reads of read-only transactions
+ * (BufferPool.beginSnapshot).
+ */
+public class SnapshotTest extends TestUtil.CreateHeapFile {
+  private PageId p0;
+  private TransactionId writer, reader;
+
+  /** Time to wait before checking the state of lock contention, in ms */
+  private static final int TIMEOUT = 100;
+
+  // just so we have a pointer shorter than Database.getBufferPool()
+  private BufferPool bp;
+
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    // one committed tuple on page 0
+    TransactionId tid = new TransactionId();
+    empty.insertTuple(tid, Utility.getHeapTuple(1, 2));
+    this.p0 = new HeapPageId(empty.getId(), 0);
+    bp.getPage(tid, p0, Permissions.READ_WRITE).markDirty(true, tid);
+    bp.flushAllPages();
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    this.writer = new TransactionId();
+    this.reader = new TransactionId();
+  }
+
+  private static int countTuples(Page p) {
+    int n = 0;
+    Iterator<Tuple> it = ((HeapPage) p).iterator();
+    while (it.hasNext()) {
+      it.next();
+      n++;
+    }
+    return n;
+  }
+
+  /** writer adds a tuple to page 0, without committing */
+  private void insertUncommitted() throws Exception {
+    HeapPage p = (HeapPage) bp.getPage(writer, p0, Permissions.READ_WRITE);
+    p.insertTuple(Utility.getHeapTuple(2, 2));
+    p.markDirty(true, writer);
+  }
+
+  /**
+   * A snapshot reader does not wait for the write lock of a writer, and does
+   * not see its uncommitted change.
+   */
+  @Test public void readsPastWriter() throws Exception {
+    insertUncommitted();
+    bp.beginSnapshot(reader);
+
+    TestUtil.LockGrabber t = new TestUtil.LockGrabber(reader, p0, Permissions.READ_ONLY);
+    t.start();
+    Thread.sleep(TIMEOUT);
+    assertTrue(t.acquired());
+    assertNull(t.getError());
+
+    assertEquals(1, countTuples(bp.getPage(reader, p0, Permissions.READ_ONLY)));
+    assertEquals(2, countTuples(bp.getPage(writer, p0, Permissions.READ_ONLY)));
+    assertFalse(bp.holdsLock(reader, p0));
+  }
+
+  /**
+   * A writer does not wait for a snapshot reader.
+   */
+  @Test public void writerDoesNotWait() throws Exception {
+    bp.beginSnapshot(reader);
+    bp.getPage(reader, p0, Permissions.READ_ONLY);
+
+    TestUtil.LockGrabber t = new TestUtil.LockGrabber(writer, p0, Permissions.READ_WRITE);
+    t.start();
+    Thread.sleep(TIMEOUT);
+    assertTrue(t.acquired());
+    assertNull(t.getError());
+  }
+
+  /**
+   * A commit after the snapshot began is not seen by it, the snapshots that
+   * begin after the commit see it.
+   */
+  @Test public void commitAfterSnapshotNotSeen() throws Exception {
+    bp.beginSnapshot(reader);
+    insertUncommitted();
+    bp.transactionComplete(writer, true);
+
+    assertEquals(1, countTuples(bp.getPage(reader, p0, Permissions.READ_ONLY)));
+    assertEquals(1, bp.getVersionCount());
+
+    TransactionId later = new TransactionId();
+    bp.beginSnapshot(later);
+    assertEquals(2, countTuples(bp.getPage(later, p0, Permissions.READ_ONLY)));
+
+    // the old version goes once its last reader is done
+    bp.transactionComplete(reader, true);
+    assertEquals(0, bp.getVersionCount());
+    bp.transactionComplete(later, true);
+  }
+
+  /**
+   * On a memory-mapped table the page starts out on the mapping, and the
+   * commit's flush writes the file under it; the snapshot still sees the
+   * version from before the commit.
+   */
+  @Test public void mappedCommitAfterSnapshotNotSeen() throws Exception {
+    HeapFile mapped = new HeapFile(empty.getFile(), empty.getTupleDesc(), true);
+    Database.getCatalog().addTable(mapped, "mapped");
+    assertTrue(mapped.isMapped());
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    bp.beginSnapshot(reader);
+    Page before = bp.getPage(reader, p0, Permissions.READ_ONLY);
+    assertEquals(1, countTuples(before));
+    insertUncommitted();
+    bp.transactionComplete(writer, true);
+
+    // the page read before the commit, and the version kept by it
+    assertEquals(1, countTuples(before));
+    assertEquals(1, countTuples(bp.getPage(reader, p0, Permissions.READ_ONLY)));
+    bp.transactionComplete(reader, true);
+  }
+
+  /**
+   * Without snapshots running, commits keep no versions.
+   */
+  @Test public void noVersionsWithoutSnapshots() throws Exception {
+    insertUncommitted();
+    bp.transactionComplete(writer, true);
+    assertEquals(0, bp.getVersionCount());
+  }
+
+  /**
+   * A snapshot transaction can not write.
+   */
+  @Test(expected=DbException.class) public void snapshotCannotWrite() throws Exception {
+    bp.beginSnapshot(reader);
+    bp.getPage(reader, p0, Permissions.READ_WRITE);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SnapshotTest.class);
+  }
+}
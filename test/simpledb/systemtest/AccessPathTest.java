@@ -0,0 +1,134 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+public class AccessPathTest extends SimpleDbTestBase {
+    private static final int ROWS = 10000;
+    private static final int MAX_VALUE = 5000;
+    private static final int IO_COST = 1000;
+
+    private ArrayList<ArrayList<Integer>> btreeTuples;
+    private ArrayList<ArrayList<Integer>> heapTuples;
+    private HashMap<String, TableStats> stats;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // a BTreeFile keyed on c0
+        btreeTuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, ROWS, MAX_VALUE, null, btreeTuples, 0);
+        BTreeFile bt = new BTreeFile(bf.getFile(), 0, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(bt, "bt");
+
+        // a HeapFile with an index on c1
+        heapTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile ht = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, heapTuples, "c");
+        Database.getCatalog().addTable(ht, "ht");
+        File f = File.createTempFile("index", ".idx");
+        f.deleteOnExit();
+        f.delete();
+        Database.getCatalog().addIndex(ht.getId(), 1, f);
+
+        stats = new HashMap<String, TableStats>();
+        stats.put("bt", new TableStats(bt.getId(), IO_COST));
+        stats.put("ht", new TableStats(ht.getId(), IO_COST));
+    }
+
+    private static ArrayList<ArrayList<Integer>> matching(ArrayList<ArrayList<Integer>> tuples, int field,
+            Predicate.Op op, int value) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (new IntField(t.get(field)).compare(op, new IntField(value))) {
+                result.add(t);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Plans the query, checks that it returns the expected tuples, and returns
+     * the leaf of the plan, under the filters left on top of it.
+     */
+    private DbIterator plan(String query, int filters, ArrayList<ArrayList<Integer>> expected)
+            throws Exception {
+        TransactionId tid = new TransactionId();
+        DbIterator plan = new Parser().generateLogicalPlan(tid, query).physicalPlan(tid, stats, false);
+        SystemTestUtil.matchTuples(plan, expected);
+        Database.getBufferPool().transactionComplete(tid);
+
+        DbIterator leaf = ((Operator) plan).getChildren()[0];
+        for (int i = 0; i < filters; i++) {
+            assertTrue(leaf instanceof Filter);
+            leaf = ((Filter) leaf).getChildren()[0];
+        }
+        assertFalse(leaf instanceof Operator);
+        return leaf;
+    }
+
+    /**
+     * A selective filter on the key field of a BTreeFile is a BTreeScan with an
+     * IndexPredicate, an unselective one a scan of the whole tree.
+     */
+    @Test public void clustered() throws Exception {
+        int value = btreeTuples.get(ROWS / 2).get(0);
+        DbIterator leaf = plan("SELECT * FROM bt WHERE bt.c0 = " + value + ";", 0,
+                matching(btreeTuples, 0, Predicate.Op.EQUALS, value));
+        assertTrue(new IndexPredicate(Predicate.Op.EQUALS, new IntField(value))
+                .equals(((BTreeScan) leaf).getIndexPredicate()));
+
+        leaf = plan("SELECT * FROM bt WHERE bt.c0 < 50;", 0,
+                matching(btreeTuples, 0, Predicate.Op.LESS_THAN, 50));
+        assertEquals(Predicate.Op.LESS_THAN, ((BTreeScan) leaf).getIndexPredicate().getOp());
+
+        leaf = plan("SELECT * FROM bt WHERE bt.c0 > 10;", 1,
+                matching(btreeTuples, 0, Predicate.Op.GREATER_THAN, 10));
+        assertNull(((BTreeScan) leaf).getIndexPredicate());
+    }
+
+    /**
+     * The other filters on a table are residual filters over the index scan
+     */
+    @Test public void residualFilters() throws Exception {
+        ArrayList<ArrayList<Integer>> expected = matching(btreeTuples, 0, Predicate.Op.LESS_THAN_OR_EQ, 100);
+        expected = matching(expected, 1, Predicate.Op.GREATER_THAN, MAX_VALUE / 2);
+        expected = matching(expected, 0, Predicate.Op.NOT_EQUALS, 50);
+        DbIterator leaf = plan("SELECT * FROM bt WHERE bt.c1 > " + MAX_VALUE / 2
+                + " AND bt.c0 <= 100 AND bt.c0 <> 50;", 2, expected);
+        assertTrue(new IndexPredicate(Predicate.Op.LESS_THAN_OR_EQ, new IntField(100))
+                .equals(((BTreeScan) leaf).getIndexPredicate()));
+    }
+
+    /**
+     * An index on a HeapFile is used for lookups of a few tuples, not for
+     * ranges that would read every page of the table one tuple at a time.
+     */
+    @Test public void unclustered() throws Exception {
+        int value = heapTuples.get(ROWS / 2).get(1);
+        DbIterator leaf = plan("SELECT * FROM ht WHERE ht.c1 = " + value + ";", 0,
+                matching(heapTuples, 1, Predicate.Op.EQUALS, value));
+        assertEquals(Predicate.Op.EQUALS, ((IndexLookup) leaf).getIndexPredicate().getOp());
+
+        leaf = plan("SELECT * FROM ht WHERE ht.c1 < " + MAX_VALUE / 10 + ";", 1,
+                matching(heapTuples, 1, Predicate.Op.LESS_THAN, MAX_VALUE / 10));
+        assertTrue(leaf instanceof SeqScan);
+
+        leaf = plan("SELECT * FROM ht WHERE ht.c0 = " + value + ";", 1,
+                matching(heapTuples, 0, Predicate.Op.EQUALS, value));
+        assertTrue(leaf instanceof SeqScan);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(AccessPathTest.class);
+    }
+}
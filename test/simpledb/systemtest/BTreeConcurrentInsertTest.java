@@ -0,0 +1,177 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.BTreeUtility.BTreeInserter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Benchmark for concurrent B+ tree inserts. Several threads insert keys into
+ * disjoint ranges of one tree, each insert in a transaction of its own, through
+ * BTreeUtility.BTreeInserter. findLeafPage only keeps the locks of the pages it
+ * passes through until it has the next one, so the inserters meet at the root
+ * only on the way down, and wait for each other when their leaves split into
+ * the same parent. On a machine with several cores the throughput should grow
+ * with the threads; with one it must at least not collapse.
+ */
+public class BTreeConcurrentInsertTest extends SimpleDbTestBase {
+	private static final int THREADS = 4;
+	private static final int INSERTS = 500;
+	private static final int ROWS = 10000;
+
+	@After
+	public void tearDown() throws Exception {
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private BTreeFile createTree() throws Exception {
+		// small pages so that the tree has a few levels of internal pages
+		BufferPool.setPageSize(1024);
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, ROWS, null, null, 0);
+		Database.resetBufferPool(500);
+		return bf;
+	}
+
+	/** inserts keys first, first + 1, ... one transaction each, again if aborted */
+	private static class Worker extends Thread {
+		private final BTreeFile bf;
+		private final int first;
+		private final int count;
+		private final BlockingQueue<ArrayList<Integer>> inserted;
+		private final AtomicInteger aborts;
+
+		Worker(BTreeFile bf, int first, int count, BlockingQueue<ArrayList<Integer>> inserted,
+				AtomicInteger aborts) {
+			this.bf = bf;
+			this.first = first;
+			this.count = count;
+			this.inserted = inserted;
+			this.aborts = aborts;
+		}
+
+		public void run() {
+			BTreeInserter bi = null;
+			for(int i = 0; i < count; i++) {
+				int[] tupdata = new int[]{first + i, i};
+				if(bi == null) {
+					bi = new BTreeInserter(bf, tupdata, inserted);
+					bi.run();
+				}
+				else {
+					bi.rerun(bf, tupdata, inserted);
+				}
+				while(!bi.succeeded()) {
+					aborts.incrementAndGet();
+					bi.rerun(bf, tupdata, inserted);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return inserts per second
+	 */
+	private static double run(BTreeFile bf, int threads, int first, BlockingQueue<ArrayList<Integer>> inserted,
+			AtomicInteger aborts) throws Exception {
+		// every thread gets a range of keys of its own, spread over the existing keys
+		int range = BTreeUtility.MAX_RAND_VALUE / threads;
+		Worker[] workers = new Worker[threads];
+		for(int i = 0; i < threads; i++) {
+			workers[i] = new Worker(bf, first + i * range, INSERTS / threads, inserted, aborts);
+		}
+		long start = System.nanoTime();
+		for(Worker w : workers) {
+			w.start();
+		}
+		for(Worker w : workers) {
+			w.join();
+		}
+		return (INSERTS / threads) * threads * 1e9 / (System.nanoTime() - start);
+	}
+
+	private static int countTuples(BTreeFile bf) throws Exception {
+		TransactionId tid = new TransactionId();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int n = 0;
+		while(it.hasNext()) {
+			it.next();
+			n++;
+		}
+		it.close();
+		Database.getBufferPool().transactionComplete(tid);
+		return n;
+	}
+
+	/**
+	 * An insert keeps its leaf locked, but not the root pointer and the internal
+	 * pages it went through.
+	 */
+	@Test public void pathNotLocked() throws Exception {
+		BTreeFile bf = createTree();
+		BufferPool bp = Database.getBufferPool();
+		// the leaves of a new tree are full, the first insert splits one and locks its parent
+		int key = BTreeUtility.MAX_RAND_VALUE / 2;
+		TransactionId splitter = new TransactionId();
+		bp.insertTuple(splitter, bf.getId(), BTreeUtility.getBTreeTuple(new int[]{key, 0}));
+		bp.transactionComplete(splitter);
+
+		TransactionId tid = new TransactionId();
+		Tuple t = BTreeUtility.getBTreeTuple(new int[]{key, 1});
+		bp.insertTuple(tid, bf.getId(), t);
+
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(bf.getId());
+		TransactionId reader = new TransactionId();
+		BTreePageId rootId = ((BTreeRootPtrPage) bp.getPage(reader, rootPtrId, Permissions.READ_ONLY)).getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		assertFalse(bp.holdsLock(tid, rootPtrId));
+		assertFalse(bp.holdsLock(tid, rootId));
+		assertTrue(bp.holdsLock(tid, t.getRecordId().getPageId()));
+
+		// another transaction can find its way to a different leaf
+		TransactionId other = new TransactionId();
+		bp.insertTuple(other, bf.getId(), BTreeUtility.getBTreeTuple(new int[]{0, 0}));
+		bp.transactionComplete(other);
+		bp.transactionComplete(reader);
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * Inserts into disjoint key ranges, first in one thread, then in several.
+	 * All inserts are in the tree in the end.
+	 */
+	@Test public void disjointRanges() throws Exception {
+		BTreeFile bf = createTree();
+		ArrayBlockingQueue<ArrayList<Integer>> inserted = new ArrayBlockingQueue<ArrayList<Integer>>(2 * INSERTS);
+		AtomicInteger aborts = new AtomicInteger();
+
+		// warm up the buffer pool, and the inserts of the single thread go into the first range
+		double single = run(bf, 1, 1, inserted, aborts);
+		double multi = run(bf, THREADS, 1 + INSERTS, inserted, aborts);
+		System.out.printf("B+ tree inserts/s: 1 thread %.0f, %d threads %.0f, aborts %d%n",
+				single, THREADS, multi, aborts.get());
+
+		assertEquals(2 * INSERTS, inserted.size());
+		assertEquals(ROWS + 2 * INSERTS, countTuples(bf));
+		assertTrue("throughput collapsed with " + THREADS + " threads", multi > single / 4);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new junit.framework.JUnit4TestAdapter(BTreeConcurrentInsertTest.class);
+	}
+}
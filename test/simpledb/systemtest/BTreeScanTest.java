@@ -62,8 +62,9 @@ public class BTreeScanTest extends SimpleDbTestBase {
             super(f, keyField, td);
         }
 
+        // synchronized: read-ahead calls readPage from background threads
         @Override
-        public Page readPage(PageId pid) throws NoSuchElementException {
+        public synchronized Page readPage(PageId pid) throws NoSuchElementException {
             readCount += 1;
             return super.readPage(pid);
         }
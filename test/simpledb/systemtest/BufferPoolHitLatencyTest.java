@@ -0,0 +1,106 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import junit.framework.Assert;
+import simpledb.*;
+
+/**
+ * Checks BufferPool hits. Fills buffer pools of growing size with the pages of
+ * an empty heap file, then makes random getPage() calls that all hit the pool.
+ * With a hashed page table a hit compares the requested page id with a few
+ * others whatever the pool size; a linear scan of the pool compares it with
+ * every cached page. The page ids count the calls made on them, so the test
+ * does not depend on timing; the average hit latency is only printed.
+ */
+public class BufferPoolHitLatencyTest extends SimpleDbTestBase {
+    private static final int[] POOL_SIZES = {256, 1024, 4096};
+    private static final int LOOKUPS = 200000;
+    private static final double MAX_GROWTH = 2.0;
+
+    /** a page id that counts the calls made on it */
+    private static class CountingPageId extends HeapPageId {
+        static long calls = 0;
+
+        CountingPageId(int tableId, int pgNo) {
+            super(tableId, pgNo);
+        }
+
+        public int getTableId() {
+            calls++;
+            return super.getTableId();
+        }
+
+        public int pageNumber() {
+            calls++;
+            return super.pageNumber();
+        }
+
+        public int hashCode() {
+            calls++;
+            return super.hashCode();
+        }
+
+        public boolean equals(Object o) {
+            calls++;
+            return super.equals(o);
+        }
+    }
+
+    /**
+     * @return the average number of calls on the page id of a hit
+     */
+    private static double callsPerHit(HeapFile f, int numPages)
+            throws DbException, TransactionAbortedException {
+        BufferPool bp = Database.resetBufferPool(numPages);
+        TransactionId tid = new TransactionId();
+        HeapPageId[] pids = new HeapPageId[numPages];
+        for (int i = 0; i < numPages; i++) {
+            // pages past the end of the file are read back as empty pages
+            bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_WRITE);
+            pids[i] = new CountingPageId(f.getId(), i);
+        }
+        Random r = new Random(numPages);
+        long hits = bp.getHitCount();
+        long misses = bp.getMissCount();
+        CountingPageId.calls = 0;
+        long begin = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            bp.getPage(tid, pids[r.nextInt(numPages)], Permissions.READ_WRITE);
+        }
+        long elapsed = System.nanoTime() - begin;
+        Assert.assertEquals(LOOKUPS, bp.getHitCount() - hits);
+        Assert.assertEquals(misses, bp.getMissCount());
+        double calls = CountingPageId.calls / (double) LOOKUPS;
+        System.out.println("BufferPoolHitLatencyTest numPages=" + numPages + " avg hit "
+                + String.format("%.1f", elapsed / (double) LOOKUPS) + " ns, "
+                + String.format("%.1f", calls) + " page id calls");
+        return calls;
+    }
+
+    @Test public void testHitCostIsFlat() throws IOException, DbException, TransactionAbortedException {
+        File empty = File.createTempFile("hitlatency", ".dat");
+        empty.deleteOnExit();
+        HeapFile f = Utility.createEmptyHeapFile(empty.getAbsolutePath(), 2);
+
+        double[] calls = new double[POOL_SIZES.length];
+        for (int i = 0; i < POOL_SIZES.length; i++) {
+            calls[i] = callsPerHit(f, POOL_SIZES[i]);
+        }
+        double smallest = calls[0];
+        double largest = calls[POOL_SIZES.length - 1];
+        if (largest > smallest * MAX_GROWTH) {
+            Assert.fail("a hit made " + largest + " calls on its page id instead of " + smallest
+                    + " when the pool grew " + (POOL_SIZES[POOL_SIZES.length - 1] / POOL_SIZES[0]) + "x");
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BufferPoolHitLatencyTest.class);
+    }
+}
@@ -0,0 +1,117 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Scans a table that is larger than the buffer pool and checks that the
+ * pages loaded before the scan are still cached afterwards, i.e. the scan
+ * went through a bulk read ring and not through the shared pool.
+ */
+public class BulkReadTest extends SimpleDbTestBase {
+    private static final int BUFFER_PAGES = 50;
+    private static final int HOT_PAGES = 20;
+    private static final int ROWS = 504 * 120;
+
+    private HeapFile hot;
+
+    private void createHotTable() throws IOException {
+        File hotFile = File.createTempFile("hot", ".dat");
+        hotFile.deleteOnExit();
+        // pages past the end of the file read back as empty pages
+        hot = Utility.createEmptyHeapFile(hotFile.getAbsolutePath(), 2);
+    }
+
+    private void loadHotSet(BufferPool bp, TransactionId tid)
+            throws DbException, TransactionAbortedException {
+        for (int i = 0; i < HOT_PAGES; i++) {
+            bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+        }
+    }
+
+    private void assertHotSetCached(BufferPool bp, TransactionId tid)
+            throws DbException, TransactionAbortedException {
+        long hitsBefore = bp.getHitCount();
+        loadHotSet(bp, tid);
+        assertEquals("the scan pushed the hot set out of the pool",
+                HOT_PAGES, bp.getHitCount() - hitsBefore);
+    }
+
+    private int drain(DbIterator it) throws DbException, TransactionAbortedException {
+        int count = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    @Test public void testSeqScanKeepsHotSet() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        createHotTable();
+        BufferPool bp = Database.resetBufferPool(BUFFER_PAGES, new LRUPolicy());
+        assertTrue(bp.isBulkRead(table.numPages()));
+
+        Transaction t = new Transaction();
+        t.start();
+        loadHotSet(bp, t.getId());
+        assertEquals(ROWS, drain(new SeqScan(t.getId(), table.getId(), "")));
+        assertHotSetCached(bp, t.getId());
+        t.commit();
+    }
+
+    @Test public void testBTreeScanKeepsHotSet() throws Exception {
+        BTreeFile table = BTreeUtility.createRandomBTreeFile(2, ROWS, null,
+                new ArrayList<ArrayList<Integer>>(), 0);
+        createHotTable();
+        BufferPool bp = Database.resetBufferPool(BUFFER_PAGES, new LRUPolicy());
+        assertTrue(bp.isBulkRead(table.numPages()));
+
+        Transaction t = new Transaction();
+        t.start();
+        loadHotSet(bp, t.getId());
+        assertEquals(ROWS, drain(new BTreeScan(t.getId(), table.getId(), "", null)));
+        assertHotSetCached(bp, t.getId());
+        t.commit();
+    }
+
+    @Test public void testRewindRereadsThroughRing() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        createHotTable();
+        BufferPool bp = Database.resetBufferPool(BUFFER_PAGES, new LRUPolicy());
+
+        Transaction t = new Transaction();
+        t.start();
+        loadHotSet(bp, t.getId());
+        SeqScan scan = new SeqScan(t.getId(), table.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.rewind();
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        assertEquals(2 * ROWS, count);
+        assertHotSetCached(bp, t.getId());
+        t.commit();
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BulkReadTest.class);
+    }
+}
@@ -0,0 +1,146 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Vector;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+    private static final int OUTER_ROWS = IndexNestedLoopJoin.BATCH_SIZE * 2 + 100;
+    private static final int INNER_ROWS = 10000;
+    private static final int MAX_VALUE = 2000;
+
+    private ArrayList<ArrayList<Integer>> outerTuples;
+    private ArrayList<ArrayList<Integer>> innerTuples;
+    private HeapFile outer;
+    private BTreeFile inner;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        outerTuples = new ArrayList<ArrayList<Integer>>();
+        outer = SystemTestUtil.createRandomHeapFile(COLUMNS, OUTER_ROWS, MAX_VALUE, null, outerTuples, "c");
+        Database.getCatalog().addTable(outer, "ht");
+
+        // keyed on c0, with duplicate keys
+        innerTuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(COLUMNS, INNER_ROWS, MAX_VALUE, null, innerTuples, 0);
+        inner = new BTreeFile(bf.getFile(), 0, Utility.getTupleDesc(COLUMNS, "c"));
+        Database.getCatalog().addTable(inner, "bt");
+    }
+
+    /** the outer tuples joined with the inner tuples whose c0 equals their c1 and that pass innerPred */
+    private ArrayList<ArrayList<Integer>> expected(Predicate innerPred) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t1 : outerTuples) {
+            for (ArrayList<Integer> t2 : innerTuples) {
+                if (t1.get(1).equals(t2.get(0)) && (innerPred == null
+                        || new IntField(t2.get(innerPred.getField())).compare(innerPred.getOp(),
+                                innerPred.getOperand()))) {
+                    ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                    out.addAll(t2);
+                    result.add(out);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Several batches of outer tuples, with repeated keys, give the same tuples
+     * as a nested loop join; and again after a rewind.
+     */
+    @Test public void join() throws Exception {
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(1, Predicate.Op.EQUALS, 0);
+        IndexNestedLoopJoin join = new IndexNestedLoopJoin(p, new SeqScan(tid, outer.getId(), "ht"),
+                new BTreeScan(tid, inner.getId(), "bt", null));
+        ArrayList<ArrayList<Integer>> expected = expected(null);
+        SystemTestUtil.matchTuples(join, expected);
+
+        join.open();
+        int n = 0;
+        while (join.hasNext()) {
+            join.next();
+            n++;
+        }
+        join.rewind();
+        while (join.hasNext()) {
+            join.next();
+            n++;
+        }
+        join.close();
+        assertEquals(2 * expected.size(), n);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * The filters over the inner scan, and its index predicate, apply to the
+     * tuples found by the probes
+     */
+    @Test public void innerFilters() throws Exception {
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(1, Predicate.Op.EQUALS, 0);
+        Predicate filter = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(MAX_VALUE / 2));
+        DbIterator scan = new Filter(filter, new BTreeScan(tid, inner.getId(), "bt", null));
+        SystemTestUtil.matchTuples(new IndexNestedLoopJoin(p, new SeqScan(tid, outer.getId(), "ht"), scan),
+                expected(filter));
+
+        Predicate range = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(MAX_VALUE / 4));
+        scan = new BTreeScan(tid, inner.getId(), "bt",
+                new IndexPredicate(range.getOp(), range.getOperand()));
+        SystemTestUtil.matchTuples(new IndexNestedLoopJoin(p, new SeqScan(tid, outer.getId(), "ht"), scan),
+                expected(range));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void notOnTheKey() throws Exception {
+        TransactionId tid = new TransactionId();
+        new IndexNestedLoopJoin(new JoinPredicate(1, Predicate.Op.EQUALS, 1),
+                new SeqScan(tid, outer.getId(), "ht"), new BTreeScan(tid, inner.getId(), "bt", null));
+    }
+
+    /**
+     * A selective join probes the indexed table instead of scanning it for
+     * every outer tuple
+     */
+    @Test public void planned() throws Exception {
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("ht", new TableStats(outer.getId(), 1000));
+        stats.put("bt", new TableStats(inner.getId(), 1000));
+
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM ht, bt WHERE ht.c1 = bt.c0 AND ht.c0 < 20;");
+        LogicalJoinNode j = new LogicalJoinNode("ht", "bt", "c1", "c0", Predicate.Op.EQUALS);
+        JoinOptimizer jo = new JoinOptimizer(lp, new Vector<LogicalJoinNode>());
+        int card = stats.get("ht").estimateTableCardinality(0.01);
+        double indexCost = jo.estimateJoinCost(j, card, INNER_ROWS, 100000, 50000);
+        double loopCost = jo.estimateJoinCost(j.swapInnerOuter(), INNER_ROWS, card, 50000, 100000);
+        assertTrue(indexCost < loopCost);
+
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof IndexNestedLoopJoin);
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : expected(null)) {
+            if (t.get(0) < 20)
+                expected.add(t);
+        }
+        SystemTestUtil.matchTuples(plan, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+    }
+}
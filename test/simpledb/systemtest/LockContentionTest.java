@@ -0,0 +1,201 @@
+package simpledb.systemtest;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import junit.framework.Assert;
+import simpledb.*;
+
+/**
+ * Benchmark for lock contention. Several threads take exclusive locks on a
+ * couple of pages, hold each for a moment and release it, once through the
+ * wait queues of the LockControlBoard and once by calling addLock in a loop
+ * like BufferPool.lockPage used to. The spinning waiters burn cpu the whole
+ * time while the queued ones are parked; with fewer cores than threads the
+ * spinners also keep the holders from running, so throughput drops too.
+ * <p>
+ * The second benchmark has every thread lock pages of its own, which land in
+ * different stripes of the lock table; on a machine with several cores the
+ * total throughput should grow with the threads.
+ * <p>
+ * Timings depend on the machine, so they are only printed. The tests check
+ * the LockStats of the board instead: a queued request conflicts once and then
+ * waits until it is granted, where a spinning one conflicts on every retry,
+ * and threads on disjoint pages never conflict at all.
+ */
+public class LockContentionTest extends SimpleDbTestBase {
+    private static final int THREADS = 8;
+    private static final int PAGES = 2;
+    private static final int ROUNDS = 25;
+    private static final long HOLD_MILLIS = 1;
+    private static final int DISJOINT_PAGES = 4;
+    private static final int DISJOINT_OPS = 100000;
+
+    private interface Locker {
+        void lock(Lock lock, PageId pid, LockControlBoard board) throws Exception;
+    }
+
+    private static final Locker QUEUE = new Locker() {
+        public void lock(Lock lock, PageId pid, LockControlBoard board) throws Exception {
+            lock.acquire(pid, board, BufferPool.DEAD_LOCK_TIME_OUT);
+        }
+    };
+
+    private static final Locker SPIN = new Locker() {
+        public void lock(Lock lock, PageId pid, LockControlBoard board) throws Exception {
+            long timeOutLimit = System.currentTimeMillis() + BufferPool.DEAD_LOCK_TIME_OUT;
+            while (lock.inilize(pid, board) < 0) {
+                if (System.currentTimeMillis() > timeOutLimit) {
+                    throw new TransactionAbortedException();
+                }
+            }
+        }
+    };
+
+    /**
+     * @return {lock operations per second, cpu milliseconds of all threads}
+     */
+    private static double[] run(final Locker locker) throws Exception {
+        return run(locker, new LockControlBoard());
+    }
+
+    private static double[] run(final Locker locker, final LockControlBoard board) throws Exception {
+        final ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        final AtomicLong cpuNanos = new AtomicLong();
+        final Exception[] error = new Exception[1];
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final int seed = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    Random r = new Random(seed);
+                    try {
+                        for (int j = 0; j < ROUNDS; j++) {
+                            TransactionId tid = new TransactionId();
+                            PageId pid = new HeapPageId(0, r.nextInt(PAGES));
+                            locker.lock(new Lock(tid, pid, Lock.LOCKTYPE.EXCLUSIVE_LOCK), pid, board);
+                            Thread.sleep(HOLD_MILLIS);
+                            board.closeLock(tid);
+                        }
+                    } catch (Exception e) {
+                        synchronized (error) {
+                            error[0] = e;
+                        }
+                    }
+                    cpuNanos.addAndGet(mx.getCurrentThreadCpuTime());
+                }
+            };
+        }
+        long begin = System.nanoTime();
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        if (error[0] != null) {
+            throw error[0];
+        }
+        double opsPerSecond = THREADS * ROUNDS / (elapsed / 1e9);
+        return new double[] {opsPerSecond, cpuNanos.get() / 1e6};
+    }
+
+    @Test public void testWaitQueueVersusSpin() throws Exception {
+        // warm up
+        run(QUEUE);
+        run(SPIN);
+
+        LockControlBoard board = new LockControlBoard();
+        double[] queue = run(QUEUE, board);
+        double[] spin = run(SPIN);
+        System.out.println("LockContentionTest wait queue: "
+                + String.format("%.0f", queue[0]) + " locks/s, cpu " + String.format("%.1f", queue[1]) + " ms");
+        System.out.println("LockContentionTest spin:       "
+                + String.format("%.0f", spin[0]) + " locks/s, cpu " + String.format("%.1f", spin[1]) + " ms");
+
+        // every conflict parked its request once, nobody asked again
+        LockStats.Entry table = board.snapshot(0).getTables().get(0);
+        Assert.assertTrue(table.getConflicts() <= THREADS * ROUNDS);
+        Assert.assertEquals(table.getConflicts(), table.getWaits());
+        Assert.assertEquals(0, table.getAborts());
+    }
+
+    /**
+     * @return lock and release operations per second of threads threads that each
+     * lock pages no other thread locks
+     */
+    private static double runDisjoint(int threads, final int opsPerThread) throws Exception {
+        return runDisjoint(threads, opsPerThread, new LockControlBoard());
+    }
+
+    private static double runDisjoint(int threads, final int opsPerThread, final LockControlBoard board)
+            throws Exception {
+        final Exception[] error = new Exception[1];
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int table = i;
+            workers[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < opsPerThread; j++) {
+                            TransactionId tid = new TransactionId();
+                            for (int k = 0; k < DISJOINT_PAGES; k++) {
+                                PageId pid = new HeapPageId(table, (j + k) % 1024);
+                                new Lock(tid, pid, Lock.LOCKTYPE.EXCLUSIVE_LOCK).acquire(pid, board, 0);
+                            }
+                            board.closeLock(tid);
+                        }
+                    } catch (Exception e) {
+                        synchronized (error) {
+                            error[0] = e;
+                        }
+                    }
+                }
+            };
+        }
+        long begin = System.nanoTime();
+        for (Thread t : workers) {
+            t.start();
+        }
+        for (Thread t : workers) {
+            t.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return (double) threads * opsPerThread * DISJOINT_PAGES / (elapsed / 1e9);
+    }
+
+    @Test public void testDisjointPagesScale() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int threads = Math.max(4, cores);
+        // warm up
+        runDisjoint(1, DISJOINT_OPS);
+        runDisjoint(threads, DISJOINT_OPS / threads);
+
+        LockControlBoard board = new LockControlBoard();
+        double one = runDisjoint(1, DISJOINT_OPS);
+        double many = runDisjoint(threads, DISJOINT_OPS / threads, board);
+        System.out.println("LockContentionTest disjoint pages, " + cores + " cores: 1 thread "
+                + String.format("%.0f", one) + " locks/s, " + threads + " threads "
+                + String.format("%.0f", many) + " locks/s");
+
+        LockStats.Snapshot stats = board.snapshot(0);
+        Assert.assertEquals(threads, stats.getTables().size());
+        for (LockStats.Entry table : stats.getTables().values()) {
+            Assert.assertEquals(0, table.getConflicts());
+            Assert.assertTrue(table.getAcquisitions() >= (long) DISJOINT_OPS / threads * DISJOINT_PAGES);
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(LockContentionTest.class);
+    }
+}
@@ -0,0 +1,84 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Reads and writes tables in the memory-mapped storage mode and checks that
+ * they see the same data as the channel mode, also after the file grew.
+ */
+public class MappedStorageTest extends SimpleDbTestBase {
+
+    @Test public void testMappedHeapFileScan() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 5000, 1000, null, tuples);
+        HeapFile table = new HeapFile(f, Utility.getTupleDesc(2), true);
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        assertTrue(table.isMapped());
+
+        SystemTestUtil.matchTuples(table, tuples);
+    }
+
+    @Test public void testMappingGrowsWithFile() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504, 1000, null, tuples);
+        HeapFile table = new HeapFile(f, Utility.getTupleDesc(2), true);
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        SystemTestUtil.matchTuples(table, tuples);
+        assertEquals(1, table.numPages());
+
+        // append a page behind the mapping, as a flush of a new page would
+        HeapPage page = new HeapPage(new HeapPageId(table.getId(), 1), HeapPage.createEmptyPageData());
+        for (int i = 0; i < 10; i++) {
+            page.insertTuple(Utility.getHeapTuple(new int[]{i, -i}));
+            tuples.add(new ArrayList<Integer>(Arrays.asList(i, -i)));
+        }
+        table.writePage(page);
+        assertEquals(2, table.numPages());
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(table, tuples);
+    }
+
+    @Test public void testMappedBTreeFileInsert() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile created = BTreeUtility.createBTreeFile(2, 2000, null, tuples, 0);
+        BTreeFile table = new BTreeFile(created.getFile(), 0, Utility.getTupleDesc(2), true);
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        assertTrue(table.isMapped());
+        int pagesBefore = table.numPages();
+
+        // enough inserts to split leaves, so new pages are appended behind the mapping
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 2000; i++) {
+            Database.getBufferPool().insertTuple(tid, table.getId(), BTreeUtility.getBTreeTuple(i, 2));
+            tuples.add(new ArrayList<Integer>(Arrays.asList(i, i)));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(table.numPages() > pagesBefore);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Collections.sort(tuples, new Comparator<ArrayList<Integer>>() {
+            public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+                return a.get(0).compareTo(b.get(0));
+            }
+        });
+        tid = new TransactionId();
+        SystemTestUtil.matchTuples(new BTreeScan(tid, table.getId(), "", null), tuples);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(MappedStorageTest.class);
+    }
+}
@@ -0,0 +1,155 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+/**
+ * Checks that a sequential scan over a HeapFile and a range scan over a
+ * BTreeFile read the pages ahead of them in the background, and that the scan
+ * still sees every tuple exactly once.
+ */
+public class ReadAheadTest extends SimpleDbTestBase {
+    private static final int PAGES = 40;
+
+    /** Counts the readPage calls, and how many of them the scanning thread made itself. */
+    static class InstrumentedHeapFile extends HeapFile {
+        final Thread scanner = Thread.currentThread();
+        int readCount = 0;
+        int foregroundReads = 0;
+
+        public InstrumentedHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public synchronized Page readPage(PageId pid) throws NoSuchElementException {
+            readCount += 1;
+            if (Thread.currentThread() == scanner) {
+                foregroundReads += 1;
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    /** Counts the readPage calls of leaf pages, and how many of them the scanning thread made itself. */
+    static class InstrumentedBTreeFile extends BTreeFile {
+        final Thread scanner = Thread.currentThread();
+        int leafReads = 0;
+        int foregroundLeafReads = 0;
+
+        public InstrumentedBTreeFile(File f, int keyField, TupleDesc td) {
+            super(f, keyField, td);
+        }
+
+        @Override
+        public synchronized Page readPage(PageId pid) throws NoSuchElementException {
+            if (((BTreePageId) pid).pgcateg() == BTreePageId.LEAF) {
+                leafReads += 1;
+                if (Thread.currentThread() == scanner) {
+                    foregroundLeafReads += 1;
+                }
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    private InstrumentedHeapFile createTable(ArrayList<ArrayList<Integer>> tuples) throws IOException {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(1, 992 * PAGES, 1000, null, tuples);
+        InstrumentedHeapFile table = new InstrumentedHeapFile(f, Utility.getTupleDesc(1));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        return table;
+    }
+
+    @Test public void testScanReadsAhead() throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES).setReadAheadWindow(8);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        InstrumentedHeapFile table = createTable(tuples);
+
+        SystemTestUtil.matchTuples(table, tuples);
+        assertEquals("every page should be read once", PAGES, table.readCount);
+        assertTrue("no page was read ahead", table.foregroundReads < PAGES);
+    }
+
+    @Test public void testReadAheadOff() throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES).setReadAheadWindow(0);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        InstrumentedHeapFile table = createTable(tuples);
+
+        SystemTestUtil.matchTuples(table, tuples);
+        assertEquals(PAGES, table.readCount);
+        assertEquals(PAGES, table.foregroundReads);
+    }
+
+    @Test public void testReadAheadWithBulkRead() throws Exception {
+        // the table does not fit, so the scan goes through a ring and the staged
+        // pages must not be lost on the way
+        Database.resetBufferPool(PAGES / 4).setReadAheadWindow(8);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        InstrumentedHeapFile table = createTable(tuples);
+
+        SystemTestUtil.matchTuples(table, tuples);
+        assertEquals(PAGES, table.readCount);
+        assertTrue(table.foregroundReads < PAGES);
+    }
+
+    private InstrumentedBTreeFile createBTree(ArrayList<ArrayList<Integer>> tuples) throws Exception {
+        BTreeFile f = BTreeUtility.createBTreeFile(2, PAGES * 502, null, tuples, 0);
+        Collections.sort(tuples, new Comparator<ArrayList<Integer>>() {
+            public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+                return a.get(0).compareTo(b.get(0));
+            }
+        });
+        InstrumentedBTreeFile table = new InstrumentedBTreeFile(f.getFile(), 0, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        return table;
+    }
+
+    @Test public void testBTreeScanReadsAhead() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        InstrumentedBTreeFile table = createBTree(tuples);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES).setReadAheadWindow(8);
+
+        TransactionId tid = new TransactionId();
+        SystemTestUtil.matchTuples(new BTreeScan(tid, table.getId(), "", null), tuples);
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals("every leaf should be read once", PAGES, table.leafReads);
+        assertTrue("no leaf was read ahead", table.foregroundLeafReads < PAGES);
+    }
+
+    @Test public void testBTreeRangeScanStopsReadAhead() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        InstrumentedBTreeFile table = createBTree(tuples);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES).setReadAheadWindow(PAGES);
+
+        // the range ends a quarter of the way into the tree
+        int bound = tuples.get(tuples.size() / 4).get(0);
+        ArrayList<ArrayList<Integer>> inRange = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) < bound) {
+                inRange.add(t);
+            }
+        }
+        TransactionId tid = new TransactionId();
+        IndexPredicate ipred = new IndexPredicate(Op.LESS_THAN, new IntField(bound));
+        SystemTestUtil.matchTuples(new BTreeScan(tid, table.getId(), "", ipred), inRange);
+        Database.getBufferPool().transactionComplete(tid);
+        // the leaves holding the range, plus the one the scan stops in
+        assertTrue(table.leafReads <= inRange.size() / 502 + 2);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
@@ -0,0 +1,113 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Runs full sequential scans of a large table and, while the scans are going,
+ * point lookups on a small hot set of pages, then reports the hit ratio of the
+ * point lookups for each replacement policy. The scan is bigger than the
+ * buffer pool, so under plain LRU it keeps pushing the hot set out; the scan
+ * resistant policies should keep more of it.
+ */
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+    private static final int BUFFER_PAGES = 50;
+    private static final int HOT_PAGES = 20;
+    private static final int SCAN_ROWS = 504 * 120;
+    private static final int ROUNDS = 6;
+    // one point lookup every two pages of the scan
+    private static final int LOOKUP_EVERY = 504 * 2;
+
+    private HeapFile scanned;
+    private HeapFile hot;
+
+    private void createTables() throws IOException, DbException, TransactionAbortedException {
+        scanned = SystemTestUtil.createRandomHeapFile(2, SCAN_ROWS, null, null);
+        File hotFile = File.createTempFile("hot", ".dat");
+        hotFile.deleteOnExit();
+        // pages past the end of the file read back as empty pages
+        hot = Utility.createEmptyHeapFile(hotFile.getAbsolutePath(), 2);
+    }
+
+    /**
+     * @return hit ratio of the point lookups
+     */
+    private double runMixedWorkload(String name, ReplacementPolicy policy)
+            throws DbException, TransactionAbortedException, IOException {
+        BufferPool bp = Database.resetBufferPool(BUFFER_PAGES, policy);
+        Random r = new Random(42);
+        long lookupHits = 0;
+        long lookups = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            Transaction t = new Transaction();
+            t.start();
+            // a plain file iterator, SeqScan would read this table through a bulk read ring
+            DbFileIterator scan = scanned.iterator(t.getId());
+            scan.open();
+            int count = 0;
+            while (scan.hasNext()) {
+                if (count % LOOKUP_EVERY == 0) {
+                    long hitsBefore = bp.getHitCount();
+                    bp.getPage(t.getId(), new HeapPageId(hot.getId(), r.nextInt(HOT_PAGES)), Permissions.READ_ONLY);
+                    lookupHits += bp.getHitCount() - hitsBefore;
+                    lookups++;
+                }
+                scan.next();
+                count++;
+            }
+            scan.close();
+            assertEquals(SCAN_ROWS, count);
+            t.commit();
+        }
+        double ratio = lookupHits / (double) lookups;
+        System.out.println("ReplacementPolicyTest " + name + ": point lookup hit ratio "
+                + String.format("%.3f", ratio) + ", overall " + bp.getHitCount() + " hits / "
+                + bp.getMissCount() + " misses");
+        return ratio;
+    }
+
+    @Test public void testHitRatioUnderScans() throws Exception {
+        createTables();
+        double lru = runMixedWorkload("LRU", new LRUPolicy());
+        double clock = runMixedWorkload("CLOCK", new ClockPolicy());
+        double lruk = runMixedWorkload("LRU-2", new LRUKPolicy(2, BUFFER_PAGES));
+        double twoq = runMixedWorkload("2Q", new TwoQPolicy(BUFFER_PAGES));
+
+        assertTrue(clock >= lru);
+        assertTrue("LRU-2 should keep the hot set across scans", lruk > lru);
+        assertTrue("2Q should keep the hot set across scans", twoq > lru);
+    }
+
+    /**
+     * A hit can reach the policy after a concurrent eviction already removed
+     * the page; the policy must not take the page back, or it would offer a
+     * page that is not in the pool as a victim forever.
+     */
+    @Test public void testAccessAfterRemoval() {
+        ReplacementPolicy[] policies = { new LRUPolicy(), new LRUKPolicy(BUFFER_PAGES),
+                new ClockPolicy(), new TwoQPolicy(BUFFER_PAGES) };
+        PageId pid = new HeapPageId(1, 0);
+        for (ReplacementPolicy policy : policies) {
+            policy.pageAdded(pid);
+            policy.pageRemoved(pid);
+            policy.pageAccessed(pid);
+            assertNull(policy.getClass().getSimpleName(), policy.chooseVictim(new ReplacementPolicy.Evictable() {
+                public boolean canEvict(PageId p) {
+                    return true;
+                }
+            }));
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
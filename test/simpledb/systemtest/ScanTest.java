@@ -77,8 +77,9 @@ public class ScanTest extends SimpleDbTestBase {
                 super(f, td);
             }
 
+            // synchronized: read-ahead calls readPage from background threads
             @Override
-            public Page readPage(PageId pid) throws NoSuchElementException {
+            public synchronized Page readPage(PageId pid) throws NoSuchElementException {
                 readCount += 1;
                 return super.readPage(pid);
             }
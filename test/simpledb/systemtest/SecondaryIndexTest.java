@@ -0,0 +1,132 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+    private static final int ROWS = 3000;
+    private static final int MAX_VALUE = 500;
+
+    private static File indexFile() throws IOException {
+        File f = File.createTempFile("index", ".idx");
+        f.deleteOnExit();
+        f.delete();
+        return f;
+    }
+
+    private static ArrayList<ArrayList<Integer>> matching(ArrayList<ArrayList<Integer>> tuples, int field,
+            Predicate.Op op, int value) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (new IntField(t.get(field)).compare(op, new IntField(value))) {
+                result.add(t);
+            }
+        }
+        return result;
+    }
+
+    /** the lookup returns the tuples matching ipred, in key order */
+    private static void validateLookup(SecondaryIndex index, ArrayList<ArrayList<Integer>> tuples,
+            Predicate.Op op, int value) throws Exception {
+        TransactionId tid = new TransactionId();
+        IndexLookup lookup = new IndexLookup(tid, index, "t", new IndexPredicate(op, new IntField(value)));
+        SystemTestUtil.matchTuples(lookup, matching(tuples, index.getField(), op, value));
+
+        lookup.open();
+        int last = Integer.MIN_VALUE;
+        while (lookup.hasNext()) {
+            int key = ((IntField) lookup.next().getField(index.getField())).getValue();
+            assertTrue(last <= key);
+            last = key;
+        }
+        lookup.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * An index built from an existing table finds the same tuples as a scan
+     */
+    @Test public void lookup() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, ROWS, MAX_VALUE, null, tuples);
+        SecondaryIndex index = Database.getCatalog().addIndex(table.getId(), 1, indexFile());
+        assertSame(index, Database.getCatalog().getIndex(table.getId(), 1));
+        assertNull(Database.getCatalog().getIndex(table.getId(), 0));
+        assertEquals(index.getFile().getId(),
+                Database.getCatalog().getTableId(Database.getCatalog().getTableName(table.getId()) + "_"
+                        + table.getTupleDesc().getFieldName(1) + "_idx"));
+
+        int value = tuples.get(ROWS / 2).get(1);
+        validateLookup(index, tuples, Predicate.Op.EQUALS, value);
+        validateLookup(index, tuples, Predicate.Op.LESS_THAN, MAX_VALUE / 10);
+        validateLookup(index, tuples, Predicate.Op.GREATER_THAN_OR_EQ, MAX_VALUE - MAX_VALUE / 10);
+        validateLookup(index, tuples, Predicate.Op.EQUALS, MAX_VALUE + 1);
+    }
+
+    /**
+     * Inserts and deletes through the buffer pool change the index in the same
+     * transaction, and are rolled back with it.
+     */
+    @Test public void maintained() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, tuples);
+        SecondaryIndex index = Database.getCatalog().addIndex(table.getId(), 0, indexFile());
+        int key = MAX_VALUE + 7;
+
+        // insert and commit
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 3; i++) {
+            Database.getBufferPool().insertTuple(tid, table.getId(), Utility.getHeapTuple(new int[] {key, i}));
+            ArrayList<Integer> t = new ArrayList<Integer>();
+            t.add(key);
+            t.add(i);
+            tuples.add(t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        validateLookup(index, tuples, Predicate.Op.EQUALS, key);
+
+        // delete the tuples with keys below 50 through the Delete operator
+        tid = new TransactionId();
+        Delete delete = new Delete(tid, new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(50)),
+                new SeqScan(tid, table.getId(), "")));
+        delete.open();
+        delete.next();
+        delete.close();
+        Database.getBufferPool().transactionComplete(tid);
+        tuples = matching(tuples, 0, Predicate.Op.GREATER_THAN_OR_EQ, 50);
+        validateLookup(index, tuples, Predicate.Op.LESS_THAN, 100);
+
+        // an insert that rolls back leaves no entry behind
+        tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, table.getId(), Utility.getHeapTuple(new int[] {key + 1, 0}));
+        Database.getBufferPool().transactionComplete(tid, false);
+        validateLookup(index, tuples, Predicate.Op.GREATER_THAN, MAX_VALUE);
+    }
+
+    @Test(expected = DbException.class)
+    public void onlyHeapFiles() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10, null, null, 0);
+        Database.getCatalog().addIndex(bf.getId(), 1, indexFile());
+    }
+
+    @Test(expected = DbException.class)
+    public void oneIndexPerField() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        Database.getCatalog().addIndex(table.getId(), 1, indexFile());
+        Database.getCatalog().addIndex(table.getId(), 1, indexFile());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SecondaryIndexTest.class);
+    }
+}